@@ -0,0 +1,131 @@
+package com.weather.app;
+
+/**
+ * Bounds how many requests the AggregationServer works on at once, so a surge is turned away with
+ * 503 and Retry-After instead of queueing until everything times out.
+ *
+ * The limit on requests in flight adapts by AIMD: every request that finishes within the target latency
+ * raises it by 1/limit (about one per limit requests), and a request that took longer cuts it by a
+ * tenth, at most once per such request's duration, so one slow burst is one cut. Latency is measured
+ * from admission to release, so time spent waiting to be admitted does not count against the limit.
+ * With acquire() a request arriving at the limit waits in a bounded queue for at most the target
+ * latency; when the queue is full or the wait runs out it is rejected.
+ *
+ * The nio engine keeps many requests in flight at once (a PUT stays admitted until its log sync
+ * completes), so the limit binds there too, but its selector thread must never wait: it admits with
+ * tryAcquire(), which rejects a request at the limit straight away instead of queueing it.
+ */
+public class AdmissionControl {
+
+    static final String ADMISSION_FLAG = "--admission=";
+    // acquire()'s and tryAcquire()'s answer for a request that must be turned away
+    static final long REJECTED = Long.MIN_VALUE;
+
+    private static final int INITIAL_LIMIT = 16;
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 1000;
+    private static final double BACKOFF = 0.9;
+
+    private final long targetNanos;
+    private final int queueCapacity;
+    private final long retryAfterSeconds;
+    private double limit = INITIAL_LIMIT;
+    private int inFlight;
+    private int waiting;
+    private long lastDecreaseNanos = System.nanoTime();
+    private long rejected;
+
+    // targetMillis: latency above which the limit is cut, and the longest a request waits to be admitted
+    public AdmissionControl(long targetMillis, int queueCapacity, long retryAfterSeconds) {
+        if (targetMillis < 1 || queueCapacity < 0 || retryAfterSeconds < 1) {
+            throw new IllegalArgumentException("Admission needs a positive target and Retry-After");
+        }
+        this.targetNanos = targetMillis * 1_000_000L;
+        this.queueCapacity = queueCapacity;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    // Admission control for an --admission=<targetMillis> argument, or null when absent
+    static AdmissionControl fromArgs(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(ADMISSION_FLAG)) {
+                long targetMillis = Long.parseLong(arg.substring(ADMISSION_FLAG.length()));
+                return new AdmissionControl(targetMillis, MAX_LIMIT, 1);
+            }
+        }
+        return null;
+    }
+
+    // Admission time in nanos to pass to release(), or REJECTED
+    public synchronized long acquire() {
+        if (inFlight < limit) {
+            inFlight++;
+            return System.nanoTime();
+        }
+        if (waiting >= queueCapacity) {
+            rejected++;
+            return REJECTED;
+        }
+        waiting++;
+        try {
+            long deadline = System.nanoTime() + targetNanos;
+            long remaining = targetNanos;
+            while (inFlight >= limit && remaining > 0) {
+                wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                remaining = deadline - System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting--;
+        }
+        if (inFlight >= limit) {
+            rejected++;
+            return REJECTED;
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    // Like acquire() but never waits: a request at the limit is rejected at once
+    public synchronized long tryAcquire() {
+        if (inFlight < limit) {
+            inFlight++;
+            return System.nanoTime();
+        }
+        rejected++;
+        return REJECTED;
+    }
+
+    public synchronized void release(long admittedNanos) {
+        inFlight--;
+        long now = System.nanoTime();
+        long latency = now - admittedNanos;
+        if (latency <= targetNanos) {
+            limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+        } else if (now - lastDecreaseNanos > latency) {
+            limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+            lastDecreaseNanos = now;
+        }
+        if (waiting > 0 && inFlight < limit) {
+            notify();
+        }
+    }
+
+    // Seconds a rejected client is told to wait, as sent in Retry-After
+    public long retryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized long rejected() {
+        return rejected;
+    }
+}
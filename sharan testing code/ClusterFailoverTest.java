@@ -0,0 +1,186 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Automated failover check for a replicated AggregationServer cluster on localhost ports.
+ *
+ * Starts NODE_COUNT ClusterNodes, keeps a writer PUTting sequence-numbered readings to whichever node is
+ * primary, kills the primary mid-run and reports how long writes were unavailable, how many acknowledged
+ * updates the new primary is missing, and whether the surviving nodes agree.
+ *
+ * Usage: ClusterFailoverTest [blocking|nio] [secondsBeforeKill] [secondsAfterKill]
+ */
+public class ClusterFailoverTest {
+
+    private static final int NODE_COUNT = 3;
+    private static final int BASE_PORT = 4600;
+    private static final int STATION_COUNT = 50;
+
+    public static void main(String[] args) throws Exception {
+        String engineName = args.length > 0 ? args[0] : ConnectionEngine.DEFAULT_ENGINE;
+        int secondsBeforeKill = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int secondsAfterKill = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < NODE_COUNT; i++) {
+            addresses.add(new InetSocketAddress("localhost", BASE_PORT + i));
+        }
+        ClusterNode[] nodes = new ClusterNode[NODE_COUNT];
+        ConnectionEngine[] engines = new ConnectionEngine[NODE_COUNT];
+        for (int i = 0; i < NODE_COUNT; i++) {
+            WeatherStore store = new WeatherStore();
+            nodes[i] = new ClusterNode(i, addresses, store, new WeatherRequestHandler(store));
+            engines[i] = ConnectionEngine.create(engineName, BASE_PORT + i, nodes[i]);
+            engines[i].start();
+            nodes[i].start();
+        }
+        waitForPrimary(nodes, -1);
+
+        Writer writer = new Writer(addresses);
+        Thread writerThread = new Thread(writer, "cluster-writer");
+        writerThread.start();
+        Thread.sleep(secondsBeforeKill * 1000L);
+
+        // Kill the primary: stop serving and drop every connection, as if the process died
+        int killed = waitForPrimary(nodes, -1);
+        long killedAt = System.nanoTime();
+        writer.killedAt = killedAt;
+        engines[killed].stop();
+        nodes[killed].stop();
+        int promoted = waitForPrimary(nodes, killed);
+        long promotedAt = System.nanoTime();
+
+        Thread.sleep(secondsAfterKill * 1000L);
+        writer.running.set(false);
+        writerThread.join();
+        Thread.sleep(500); // Let the last frames reach the replicas
+
+        Map<String, Long> onPrimary = latestSequences(addresses.get(promoted));
+        int lost = 0;
+        for (long[] ack : writer.acked) {
+            Long stored = onPrimary.get("station_" + ack[0]);
+            if (stored == null || stored < ack[1]) {
+                lost++;
+            }
+        }
+        boolean consistent = true;
+        for (int i = 0; i < NODE_COUNT; i++) {
+            if (i != killed && i != promoted) {
+                consistent &= latestSequences(addresses.get(i)).equals(onPrimary);
+            }
+        }
+
+        System.out.println(String.format(Locale.ROOT,
+                "{\"engine\":\"%s\",\"killedNode\":%d,\"promotedNode\":%d,\"promotionMs\":%.1f,"
+                        + "\"writeOutageMs\":%.1f,\"ackedUpdates\":%d,\"lostUpdates\":%d,\"rejectedWrites\":%d,"
+                        + "\"replicasConsistent\":%b}",
+                engineName, killed, promoted, (promotedAt - killedAt) / 1e6,
+                (writer.firstAckAfterKill - killedAt) / 1e6, writer.acked.size(), lost, writer.rejected,
+                consistent));
+
+        for (int i = 0; i < NODE_COUNT; i++) {
+            if (i != killed) {
+                engines[i].stop();
+                nodes[i].stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    // Index of the node that is primary, other than excluded; waits until there is one
+    private static int waitForPrimary(ClusterNode[] nodes, int excluded) throws InterruptedException {
+        while (true) {
+            for (ClusterNode node : nodes) {
+                if (node.index() != excluded && node.isPrimary()) {
+                    return node.index();
+                }
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    // Station id -> highest sequence number in a node's GET feed
+    private static Map<String, Long> latestSequences(InetSocketAddress address) throws IOException {
+        Map<String, Long> sequences = new HashMap<>();
+        try (WeatherHttpClient client = new WeatherHttpClient(address.getHostString(), address.getPort())) {
+            WeatherProtocol.Response response = client.send(new WeatherHttpClient.Request("GET", "/weather.json", null));
+            for (Map<String, String> record : WeatherProtocol.parseBatch(new String(response.bodyBytes(), StandardCharsets.UTF_8), null)) {
+                sequences.put(record.get("id"), Long.parseLong(record.get("seq")));
+            }
+        }
+        return sequences;
+    }
+
+    // PUTs readings to the current primary, moving on to the next node on 503 or a dead connection
+    private static class Writer implements Runnable {
+        final List<InetSocketAddress> addresses;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<long[]> acked = new ArrayList<>(); // {station, sequence}
+        volatile long killedAt = Long.MAX_VALUE;
+        long firstAckAfterKill = Long.MAX_VALUE;
+        int rejected;
+
+        Writer(List<InetSocketAddress> addresses) {
+            this.addresses = addresses;
+        }
+
+        @Override
+        public void run() {
+            WeatherHttpClient[] clients = new WeatherHttpClient[addresses.size()];
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = new WeatherHttpClient(addresses.get(i).getHostString(), addresses.get(i).getPort());
+            }
+            int target = 0;
+            int failuresInARow = 0;
+            long sequence = 0;
+            while (running.get()) {
+                long station = sequence % STATION_COUNT;
+                String body = "{\"id\":\"station_" + station + "\",\"seq\":\"" + (sequence + 1) + "\"}";
+                boolean ok = false;
+                try {
+                    WeatherProtocol.Response response = clients[target].send(
+                            new WeatherHttpClient.Request("PUT", "/weather.json", body.getBytes(StandardCharsets.UTF_8))
+                                    .header("Content-Type", "application/json"));
+                    ok = response.status == 200 || response.status == 201;
+                } catch (IOException e) {
+                    // Dead node; try the next one
+                }
+                if (ok) {
+                    sequence++;
+                    acked.add(new long[]{station, sequence});
+                    long now = System.nanoTime();
+                    if (now > killedAt && firstAckAfterKill == Long.MAX_VALUE) {
+                        firstAckAfterKill = now;
+                    }
+                    failuresInARow = 0;
+                } else {
+                    rejected++;
+                    target = (target + 1) % clients.length;
+                    if (++failuresInARow % clients.length == 0) {
+                        sleepQuietly(10); // Nobody is primary right now
+                    }
+                }
+            }
+            for (WeatherHttpClient client : clients) {
+                client.close();
+            }
+        }
+
+        private static void sleepQuietly(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.weather.app;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * One AggregationServer in a replicated cluster: a fixed, ordered list of nodes, one of them primary.
+ *
+ * The primary accepts PUTs and ships every applied update to the replicas as a stream of log frames
+ * (GET /replication?since=<feed version>), in the order it applied them. Replicas apply the frames, serve
+ * GETs and subscriptions, and answer PUTs with 503 naming the primary. Each frame carries the primary's
+ * feed version, so a replica that reconnects, to the same or a new primary, resumes from the last one
+ * it saw without missing an update.
+ *
+ * Failover goes by rank: a replica promotes itself once it has lost its primary, no node ranked before
+ * it has been reachable for FAILOVER_TIMEOUT_MS and no other node claims to be primary; a node that comes
+ * back follows whoever is primary. There is no quorum, so a network partition can produce two primaries,
+ * and replication is asynchronous, so updates a primary acknowledged but had not shipped when it died are lost.
+ *
+ * Frame: [feed version][WriteAheadLog frame], i.e. version, length, CRC32, then the records.
+ *
+ * Usage: ClusterNode <nodeIndex> <host:port,host:port,...> [--engine=blocking|nio] [--clock=lamport|hybrid] [--expire-after=<seconds>]
+ */
+public class ClusterNode implements RequestHandler {
+
+    public static final String REPLICATION_PATH = "/replication";
+    static final String LOG_CONTENT_TYPE = "application/x-weather-log";
+
+    private static final long HEARTBEAT_INTERVAL_MS = 250;
+    private static final int READ_TIMEOUT_MS = 1000;
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final long FAILOVER_TIMEOUT_MS = 1500;
+    private static final long RETRY_INTERVAL_MS = 100;
+    private static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    private enum Contact { UNREACHABLE, NOT_PRIMARY, FOLLOWED }
+
+    private final int index;
+    private final List<InetSocketAddress> nodes;
+    private final WeatherStore store;
+    private final WeatherRequestHandler handler;
+    private final UpdateBroadcaster log = new UpdateBroadcaster(encodeFrame(0, List.of()));
+    private volatile boolean running;
+    private volatile boolean primary;
+    private volatile int primaryIndex = -1;
+    private volatile Socket upstream;
+    private long replicatedVersion; // Follower thread only
+    private Thread follower;
+    private ScheduledExecutorService heartbeat;
+
+    public ClusterNode(int index, List<InetSocketAddress> nodes, WeatherStore store, WeatherRequestHandler handler) {
+        this.index = index;
+        this.nodes = nodes;
+        this.store = store;
+        this.handler = handler;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ClusterNode <nodeIndex> <host:port,host:port,...> [--engine=blocking|nio] [--clock=lamport|hybrid] [--expire-after=<seconds>] [--trace=<file>] [--admission=<targetMillis>]");
+            return;
+        }
+        int index = Integer.parseInt(args[0]);
+        List<InetSocketAddress> nodes = parseNodes(args[1]);
+        WeatherStore store = new WeatherStore();
+        WeatherRequestHandler handler = new WeatherRequestHandler(store, null, HybridLogicalClock.fromArgs(args));
+        TraceLog trace = TraceLog.fromArgs(args);
+        if (trace != null) {
+            handler.traceTo(trace);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    trace.close();
+                } catch (IOException e) {
+                    System.err.println("Could not finish the trace: " + e.getMessage());
+                }
+            }));
+        }
+        AdmissionControl admission = AdmissionControl.fromArgs(args);
+        if (admission != null) {
+            handler.admitWith(admission);
+        }
+        long ttlMillis = StationExpiry.ttlFromArgs(args);
+        if (ttlMillis > 0) {
+            handler.expireAfter(ttlMillis); // Acts only while this node is primary
+        }
+        ClusterNode node = new ClusterNode(index, nodes, store, handler);
+        ConnectionEngine engine = ConnectionEngine.create(ConnectionEngine.engineFromArgs(args),
+                nodes.get(index).getPort(), node);
+        engine.start();
+        node.start();
+        System.out.println("Cluster node " + index + " listening on port " + engine.getPort());
+    }
+
+    // "host:port,host:port,..." in rank order
+    public static List<InetSocketAddress> parseNodes(String spec) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String node : spec.split(",")) {
+            int colon = node.lastIndexOf(':');
+            nodes.add(new InetSocketAddress(node.substring(0, colon).trim(), Integer.parseInt(node.substring(colon + 1).trim())));
+        }
+        return nodes;
+    }
+
+    // Start following (or electing) a primary; the node's ConnectionEngine should already be serving
+    public void start() {
+        running = true;
+        handler.onApplied(records -> {
+            if (primary) {
+                log.publish(version -> encodeFrame(version, records), handler::feedVersion);
+            }
+        });
+        // Heartbeats let replicas tell a quiet primary from a dead one, and carry the feed version forward
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cluster-heartbeat-" + index);
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleAtFixedRate(() -> {
+            if (primary) {
+                log.publish(version -> encodeFrame(version, List.of()), handler::feedVersion);
+            }
+        }, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        follower = new Thread(this::followLoop, "cluster-follower-" + index);
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    public void stop() {
+        running = false;
+        primary = false;
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        Socket socket = upstream;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Only unblocking the follower
+            }
+        }
+        if (follower != null) {
+            follower.interrupt();
+        }
+    }
+
+    public boolean isPrimary() {
+        return primary;
+    }
+
+    public int index() {
+        return index;
+    }
+
+    @Override
+    public void connectionOpened() {
+        handler.connectionOpened();
+    }
+
+    @Override
+    public void connectionClosed() {
+        handler.connectionClosed();
+    }
+
+    @Override
+    public WeatherProtocol.Response handle(WeatherProtocol.Request request, byte[] body) {
+        if ("GET".equals(request.method) && request.path.startsWith(REPLICATION_PATH)) {
+            return primary ? openLog(request) : notPrimary();
+        }
+        if ("PUT".equals(request.method) && !primary) {
+            return notPrimary();
+        }
+        return handler.handle(request, body);
+    }
+
+    // A primary's PUTs wait for its log sync, if it has a log; everything else is answered right away
+    @Override
+    public CompletableFuture<WeatherProtocol.Response> handleAsync(WeatherProtocol.Request request, byte[] body) {
+        if ("PUT".equals(request.method) && primary) {
+            return handler.handleAsync(request, body);
+        }
+        return CompletableFuture.completedFuture(handle(request, body));
+    }
+
+    // Stream the log to a replica, starting with every record it is missing
+    private WeatherProtocol.Response openLog(WeatherProtocol.Request request) {
+        long since;
+        try {
+            String value = request.queryParameter("since");
+            since = value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return new WeatherProtocol.Response(400, "Bad Request",
+                    ("Invalid since: " + request.queryParameter("since")).getBytes(StandardCharsets.UTF_8));
+        }
+        // Subscribe before reading the store and read the version before the records, as for event streams
+        UpdateBroadcaster.Subscriber subscriber = log.subscribe();
+        long version = handler.feedVersion();
+        subscriber.backfill(ByteBuffer.wrap(encodeFrame(version, store.recordsSince(since))));
+        return new WeatherProtocol.Response(200, "OK")
+                .header("Content-Type", LOG_CONTENT_TYPE)
+                .stream(subscriber);
+    }
+
+    private WeatherProtocol.Response notPrimary() {
+        WeatherProtocol.Response response = new WeatherProtocol.Response(503, "Service Unavailable",
+                "Not the primary".getBytes(StandardCharsets.UTF_8));
+        int known = primaryIndex;
+        if (known >= 0 && known != index) {
+            InetSocketAddress address = nodes.get(known);
+            response.header("Primary", address.getHostString() + ":" + address.getPort());
+        }
+        return response;
+    }
+
+    private void followLoop() {
+        long lastContact = System.currentTimeMillis();
+        while (running && !primary) {
+            boolean rankedAheadAlive = false;
+            for (int j = 0; j < nodes.size() && running; j++) {
+                if (j == index) {
+                    continue;
+                }
+                Contact contact = follow(j);
+                if (contact == Contact.FOLLOWED) {
+                    rankedAheadAlive = true; // Lost our primary just now; look again before electing
+                    break;
+                }
+                if (contact == Contact.NOT_PRIMARY && j < index) {
+                    rankedAheadAlive = true; // It outranks us and will take over, or find the primary
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (rankedAheadAlive) {
+                lastContact = now;
+            } else if (now - lastContact >= FAILOVER_TIMEOUT_MS && running) {
+                promote();
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void promote() {
+        handler.stopReplicating();
+        primaryIndex = index;
+        primary = true;
+        System.out.println("Cluster node " + index + " promoted to primary at feed version " + handler.feedVersion());
+    }
+
+    // Replicate from node j for as long as it stays primary
+    private Contact follow(int j) {
+        InetSocketAddress address = nodes.get(j);
+        Socket socket = new Socket();
+        upstream = socket;
+        boolean following = false;
+        try (Socket s = socket) {
+            try {
+                s.connect(address, CONNECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                return Contact.UNREACHABLE;
+            }
+            s.setSoTimeout(READ_TIMEOUT_MS);
+            OutputStream out = s.getOutputStream();
+            out.write(("GET " + REPLICATION_PATH + "?since=" + replicatedVersion + " HTTP/1.1\r\n"
+                    + "Host: " + address.getHostString() + "\r\n"
+                    + "Accept: " + LOG_CONTENT_TYPE + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            if (readStatus(in) != 200) {
+                return Contact.NOT_PRIMARY;
+            }
+            following = true;
+            primaryIndex = j;
+            while (running) {
+                long version = in.readLong();
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Corrupt replication frame length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != crc) {
+                    throw new IOException("Replication frame checksum mismatch");
+                }
+                handler.applyReplicated(WriteAheadLog.decode(payload, 0, length), version);
+                replicatedVersion = Math.max(replicatedVersion, version);
+            }
+        } catch (IOException e) {
+            if (!following) {
+                return Contact.UNREACHABLE;
+            }
+        } finally {
+            upstream = null;
+            if (following) {
+                primaryIndex = -1;
+            }
+        }
+        return following ? Contact.FOLLOWED : Contact.UNREACHABLE;
+    }
+
+    // Status code from the response head; consumes the head up to the blank line
+    private static int readStatus(InputStream in) throws IOException {
+        StringBuilder statusLine = new StringBuilder();
+        int matched = 0;
+        boolean inStatusLine = true;
+        while (matched < 4) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("Connection closed in response head");
+            }
+            matched = (c == '\r' && (matched == 0 || matched == 2)) || (c == '\n' && (matched == 1 || matched == 3))
+                    ? matched + 1 : 0;
+            if (c == '\r') {
+                inStatusLine = false;
+            }
+            if (inStatusLine) {
+                statusLine.append((char) c);
+            }
+        }
+        String[] parts = statusLine.toString().split(" ");
+        try {
+            return parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static byte[] encodeFrame(long feedVersion, List<StationRecord> records) {
+        byte[] entry = WriteAheadLog.encode(records);
+        return ByteBuffer.allocate(8 + entry.length).putLong(feedVersion).put(entry).array();
+    }
+}
@@ -0,0 +1,42 @@
+package com.weather.app;
+
+import java.io.IOException;
+
+/**
+ * Accepts AggregationServer client connections, frames requests and hands them to a RequestHandler.
+ *
+ * The engine is picked at startup with --engine=blocking (one thread per connection) or
+ * --engine=nio (a single Selector loop, so idle content servers cost a buffer rather than a thread).
+ */
+public interface ConnectionEngine {
+
+    String ENGINE_FLAG = "--engine=";
+    String DEFAULT_ENGINE = "blocking";
+
+    void start() throws IOException;
+
+    void stop();
+
+    int getPort();
+
+    // Engine name from a --engine=<name> argument, or the default when absent
+    static String engineFromArgs(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(ENGINE_FLAG)) {
+                return arg.substring(ENGINE_FLAG.length());
+            }
+        }
+        return DEFAULT_ENGINE;
+    }
+
+    static ConnectionEngine create(String engine, int port, RequestHandler handler) {
+        switch (engine) {
+            case "blocking":
+                return new ThreadPerConnectionEngine(port, handler);
+            case "nio":
+                return new NioConnectionEngine(port, handler);
+            default:
+                throw new IllegalArgumentException("Unknown connection engine: " + engine);
+        }
+    }
+}
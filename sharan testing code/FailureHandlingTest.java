@@ -1,8 +1,23 @@
 package com.weather.app;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
 
 public class FailureHandlingTest {
 
@@ -10,6 +25,23 @@ public class FailureHandlingTest {
     private static final String FILE_PATH = "data.txt"; // Ensure this file exists with valid data
     private static final int NUM_CLIENTS = 5;
     private static final int RETRY_LIMIT = 3;
+    private static final int EXPIRY_PORT = 4568;
+    private static final long EXPIRY_TTL_MS = 2000;
+    private static final long EXPIRY_TOLERANCE_MS = 50;
+    private static final int RESTART_PORT = 4569;
+    private static final int HERD_CLIENTS = 50;
+    private static final long UPLOAD_INTERVAL_MS = 500;
+    private static final long RESTART_DOWNTIME_MS = 2000;
+    private static final long RECONNECT_DEADLINE_MS = 15000;
+    private static final int HEDGE_PRIMARY_PORT = 4570;
+    private static final int HEDGE_ALTERNATE_PORT = 4571;
+    private static final int HEDGE_REQUESTS = 400;
+    private static final int OUTBOX_PORT = 4572;
+    private static final int OUTBOX_STATIONS = 150;
+    private static final int OUTBOX_ROUNDS = 20;
+    private static final int OUTBOX_MEMORY_STATIONS = 100;
+    private static final long OUTBOX_DISK_BYTES = 256 * 1024;
+    private static final int MALFORMED_PORT = 4573;
 
     public static void main(String[] args) throws InterruptedException {
         // Start the AggregationServer in a separate thread
@@ -80,6 +112,446 @@ public class FailureHandlingTest {
 
         // Evaluate metrics after all attempts
         evaluateMetrics(disconnectionTimes, reconnectionTimes, reconnectionSuccess);
+
+        testExpiryLatency();
+        testReconnectPolicies();
+        testOutbox();
+        testMalformedInput();
+    }
+
+    // Bodies with broken escapes or raw control characters are refused and never reach the GET feed
+    private static void testMalformedInput() throws InterruptedException {
+        System.out.println("\n--- Malformed Input ---");
+        Map<String, String> bodies = new LinkedHashMap<>();
+        bodies.put("short \\u escape", "{\"id\":\"bad_0\",\"x\":\"\\u12\"}");
+        bodies.put("trailing backslash", "{\"id\":\"bad_1\",\"x\":\"abc\\\"}");
+        bodies.put("unknown escape", "{\"id\":\"bad_2\",\"x\":\"\\q\"}");
+        bodies.put("raw newline", "{\"id\":\"bad_3\",\"x\":\"a\ndata: injected\"}");
+        bodies.put("quote in literal", "{\"id\":\"bad_4\",\"x\":1\"2}");
+
+        int rejected = 0;
+        for (Map.Entry<String, String> body : bodies.entrySet()) {
+            try {
+                byte[] bytes = body.getValue().getBytes(StandardCharsets.UTF_8);
+                WeatherJsonReader.readBatch(bytes, 0, bytes.length, false, new WeatherReading(), reading -> { });
+                System.out.println("Parser accepted " + body.getKey());
+            } catch (IllegalArgumentException e) {
+                rejected++;
+            }
+        }
+        System.out.println("Rejected By The Parser: " + rejected + "/" + bodies.size()
+                + (rejected == bodies.size() ? " (PASS)" : " (FAIL)"));
+
+        WeatherStore store = new WeatherStore();
+        ConnectionEngine engine = ConnectionEngine.create(ConnectionEngine.DEFAULT_ENGINE, MALFORMED_PORT,
+                new WeatherRequestHandler(store));
+        try {
+            engine.start();
+        } catch (IOException e) {
+            System.err.println("Malformed input test server failed to start: " + e.getMessage());
+            return;
+        }
+        int refused = 0;
+        boolean feedValid = false;
+        try (WeatherHttpClient client = new WeatherHttpClient("localhost", MALFORMED_PORT)) {
+            putStation(client, "well_formed");
+            for (Map.Entry<String, String> body : bodies.entrySet()) {
+                WeatherProtocol.Response response = client.send(
+                        new WeatherHttpClient.Request("PUT", "/weather.json", body.getValue().getBytes(StandardCharsets.UTF_8))
+                                .header("Content-Type", "application/json"));
+                if (response.status >= 400) {
+                    refused++;
+                } else {
+                    System.out.println("PUT with " + body.getKey() + " answered " + response.status);
+                }
+            }
+            WeatherProtocol.Response feed = client.send(new WeatherHttpClient.Request("GET", "/weather.json", null));
+            String text = new String(feed.bodyBytes(), StandardCharsets.UTF_8);
+            feedValid = feed.status == 200 && text.contains("well_formed") && !text.contains("bad_");
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) < 0x20 && !Character.isWhitespace(text.charAt(i))) {
+                    feedValid = false;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Malformed input test failed: " + e.getMessage());
+        } finally {
+            engine.stop();
+        }
+        System.out.println("Refused By The Server: " + refused + "/" + bodies.size()
+                + (refused == bodies.size() ? " (PASS)" : " (FAIL)"));
+        System.out.println("Feed Holds Only Well-Formed Stations: " + (feedValid ? "yes (PASS)" : "no (FAIL)"));
+    }
+
+    // A content server keeps producing readings while the server is down, then catches up in one batch
+    private static void testOutbox() throws InterruptedException {
+        System.out.println("\n--- Outbox While Disconnected (" + OUTBOX_STATIONS + " stations x " + OUTBOX_ROUNDS
+                + " rounds, " + OUTBOX_MEMORY_STATIONS + " in memory) ---");
+        WeatherStore store = new WeatherStore();
+        WeatherRequestHandler handler = new WeatherRequestHandler(store);
+        ConnectionEngine engine = ConnectionEngine.create(ConnectionEngine.DEFAULT_ENGINE, OUTBOX_PORT, handler);
+        Path spillPath;
+        try {
+            spillPath = Files.createTempFile("outbox", ".spill");
+        } catch (IOException e) {
+            System.err.println("Could not create the outbox spill file: " + e.getMessage());
+            return;
+        }
+        UploadOutbox outbox = new UploadOutbox(OUTBOX_MEMORY_STATIONS, spillPath, OUTBOX_DISK_BYTES);
+        int failedFlushes = 0;
+        try (WeatherHttpClient client = new WeatherHttpClient("localhost", OUTBOX_PORT)) {
+            long clock = 0;
+            for (int round = 0; round < OUTBOX_ROUNDS; round++) {
+                for (int station = 0; station < OUTBOX_STATIONS; station++) {
+                    Map<String, String> reading = new LinkedHashMap<>();
+                    reading.put("id", "outbox_" + station);
+                    reading.put("air_temp", String.valueOf(10 + round));
+                    reading.put("round", String.valueOf(round));
+                    outbox.offer(reading, ++clock);
+                }
+                try {
+                    outbox.flush(client::send); // Server is still down
+                } catch (IOException e) {
+                    failedFlushes++;
+                }
+            }
+
+            engine.start();
+            long start = System.nanoTime();
+            int sent = outbox.flush(client::send);
+            double flushMs = (System.nanoTime() - start) / 1e6;
+
+            int latest = 0;
+            for (int station = 0; station < OUTBOX_STATIONS; station++) {
+                StationRecord record = store.get("outbox_" + station);
+                if (record != null && String.valueOf(OUTBOX_ROUNDS - 1).equals(record.fields.get("round"))) {
+                    latest++;
+                }
+            }
+            System.out.println("Readings Produced: " + outbox.offered() + ", coalesced: " + outbox.coalesced()
+                    + ", dropped: " + outbox.dropped() + ", failed flushes while down: " + failedFlushes);
+            System.out.println("Catch-Up Batch: " + sent + " readings in one PUT, " + outbox.bytesSent() + " bytes sent ("
+                    + outbox.bytesBeforeCompression() + " uncompressed) in " + String.format("%.1f", flushMs) + " ms");
+            System.out.println("Stations With Their Latest Reading: " + latest + "/" + OUTBOX_STATIONS
+                    + (latest == OUTBOX_STATIONS ? " (PASS)" : " (FAIL)"));
+        } catch (IOException e) {
+            System.err.println("Outbox catch-up failed: " + e.getMessage());
+        } finally {
+            engine.stop();
+            try {
+                Files.deleteIfExists(spillPath);
+            } catch (IOException ignored) {
+                // Temporary file; nothing else to do
+            }
+        }
+    }
+
+    // Restart a server under HERD_CLIENTS content servers and compare how each retry policy brings them back
+    private static void testReconnectPolicies() throws InterruptedException {
+        System.out.println("\n--- Reconnect Time After Server Restart (" + HERD_CLIENTS + " content servers, "
+                + RESTART_DOWNTIME_MS + " ms down) ---");
+        List<Supplier<RetryPolicy>> policies = List.of(
+                () -> RetryPolicy.fixed(3000, RETRY_LIMIT),
+                () -> RetryPolicy.decorrelatedJitter(100, 3000, 8),
+                () -> RetryPolicy.decorrelatedJitter(100, 3000, 8).withBudget(0.2, 3).withCircuitBreaker(3, 1000));
+        reportFirstDelays(policies);
+        for (Supplier<RetryPolicy> policy : policies) {
+            reportRestart(policy);
+        }
+        reportHedging();
+    }
+
+    // The delay each of HERD_CLIENTS content servers waits before its first retry; with jitter they must
+    // not all come back at the same moment
+    private static void reportFirstDelays(List<Supplier<RetryPolicy>> policies) {
+        for (Supplier<RetryPolicy> policy : policies) {
+            String name = policy.get().name();
+            LatencyHistogram firstDelayMs = new LatencyHistogram();
+            Set<Long> distinct = new HashSet<>();
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < HERD_CLIENTS; i++) {
+                long delay = policy.get().nextDelay(0);
+                firstDelayMs.recordValue(delay);
+                distinct.add(delay);
+                min = Math.min(min, delay);
+            }
+            boolean jitter = name.startsWith("jitter");
+            System.out.println(name + ": first retry after min " + min
+                    + " ms, p50 " + firstDelayMs.getValueAtPercentile(50) + " ms, max " + firstDelayMs.getMaxValue()
+                    + " ms, " + distinct.size() + " distinct delays for " + HERD_CLIENTS + " clients"
+                    + (jitter ? (distinct.size() > HERD_CLIENTS / 2 ? " (PASS)" : " (FAIL)") : ""));
+        }
+    }
+
+    private static void reportRestart(Supplier<RetryPolicy> policies) throws InterruptedException {
+        WeatherStore store = new WeatherStore();
+        WeatherRequestHandler handler = new WeatherRequestHandler(store);
+        ConcurrentLinkedQueue<Long> arrivals = new ConcurrentLinkedQueue<>();
+        RequestHandler counting = (request, body) -> {
+            arrivals.add(System.currentTimeMillis());
+            return handler.handle(request, body);
+        };
+        ConnectionEngine engine = ConnectionEngine.create(ConnectionEngine.DEFAULT_ENGINE, RESTART_PORT, counting);
+        try {
+            engine.start();
+        } catch (IOException e) {
+            System.err.println("Restart test server failed to start: " + e.getMessage());
+            return;
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        long[] restartedAt = {Long.MAX_VALUE};
+        AtomicLongArray reconnectedAt = new AtomicLongArray(HERD_CLIENTS);
+        List<RetryingWeatherClient> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        String name = policies.get().name();
+        for (int i = 0; i < HERD_CLIENTS; i++) {
+            int clientId = i;
+            RetryingWeatherClient client = new RetryingWeatherClient("localhost", RESTART_PORT, policies.get());
+            clients.add(client);
+            Thread thread = new Thread(() -> {
+                byte[] body = ("{\"id\":\"herd_" + clientId + "\",\"air_temp\":\"13.3\"}").getBytes(StandardCharsets.UTF_8);
+                while (running.get()) {
+                    try {
+                        client.send(new WeatherHttpClient.Request("PUT", "/weather.json", body)
+                                .header("Content-Type", "application/json"));
+                        long now = System.currentTimeMillis();
+                        if (now >= restartedAt[0]) {
+                            reconnectedAt.compareAndSet(clientId, 0, now);
+                        }
+                    } catch (IOException e) {
+                        // Gave up on this upload; the next one starts over
+                    }
+                    try {
+                        Thread.sleep(UPLOAD_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        Thread.sleep(1000);
+        engine.stop();
+        long attemptsBefore = 0;
+        for (RetryingWeatherClient client : clients) {
+            attemptsBefore += client.attempts();
+        }
+        Thread.sleep(RESTART_DOWNTIME_MS);
+        engine = ConnectionEngine.create(ConnectionEngine.DEFAULT_ENGINE, RESTART_PORT, counting);
+        try {
+            engine.start();
+        } catch (IOException e) {
+            System.err.println("Restart test server failed to restart: " + e.getMessage());
+            running.set(false);
+            return;
+        }
+        long restarted = System.currentTimeMillis();
+        restartedAt[0] = restarted;
+
+        int reconnected = 0;
+        while (System.currentTimeMillis() - restarted < RECONNECT_DEADLINE_MS) {
+            reconnected = 0;
+            for (int i = 0; i < HERD_CLIENTS; i++) {
+                if (reconnectedAt.get(i) != 0) {
+                    reconnected++;
+                }
+            }
+            if (reconnected == HERD_CLIENTS) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join();
+        }
+        long attempts = -attemptsBefore;
+        for (RetryingWeatherClient client : clients) {
+            attempts += client.attempts();
+            client.close();
+        }
+        engine.stop();
+
+        LatencyHistogram reconnectMs = new LatencyHistogram();
+        for (int i = 0; i < HERD_CLIENTS; i++) {
+            if (reconnectedAt.get(i) != 0) {
+                reconnectMs.recordValue(reconnectedAt.get(i) - restarted);
+            }
+        }
+        // Largest number of requests reaching the server in any 100 ms after it came back
+        Map<Long, Integer> perWindow = new HashMap<>();
+        for (long at : arrivals) {
+            if (at >= restarted) {
+                perWindow.merge((at - restarted) / 100, 1, Integer::sum);
+            }
+        }
+        int peak = perWindow.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+
+        System.out.println(name + ": reconnected " + reconnected + "/" + HERD_CLIENTS
+                + ", reconnect time p50 " + reconnectMs.getValueAtPercentile(50)
+                + " ms, p90 " + reconnectMs.getValueAtPercentile(90)
+                + " ms, p99 " + reconnectMs.getValueAtPercentile(99)
+                + " ms, max " + reconnectMs.getMaxValue()
+                + " ms; peak " + peak + " requests/100 ms after restart; " + attempts + " attempts since the crash");
+    }
+
+    // A primary that stalls on a few requests, with and without hedging to an alternate
+    private static void reportHedging() throws InterruptedException {
+        System.out.println("\n--- Hedged GETs (primary stalls 100 ms on 3% of requests) ---");
+        WeatherStore primaryStore = new WeatherStore();
+        WeatherRequestHandler primaryHandler = new WeatherRequestHandler(primaryStore);
+        Random random = new Random(42);
+        RequestHandler stalling = (request, body) -> {
+            boolean stall;
+            synchronized (random) {
+                stall = random.nextInt(100) < 3;
+            }
+            if (stall) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return primaryHandler.handle(request, body);
+        };
+        WeatherStore alternateStore = new WeatherStore();
+        ConnectionEngine primary = ConnectionEngine.create(ConnectionEngine.DEFAULT_ENGINE, HEDGE_PRIMARY_PORT, stalling);
+        ConnectionEngine alternate = ConnectionEngine.create(ConnectionEngine.DEFAULT_ENGINE, HEDGE_ALTERNATE_PORT,
+                new WeatherRequestHandler(alternateStore));
+        try {
+            primary.start();
+            alternate.start();
+        } catch (IOException e) {
+            System.err.println("Hedging test servers failed to start: " + e.getMessage());
+            return;
+        }
+        // Both servers hold the same stations, so either answer to a hedged GET will do
+        for (int port : new int[]{HEDGE_PRIMARY_PORT, HEDGE_ALTERNATE_PORT}) {
+            try (WeatherHttpClient seeder = new WeatherHttpClient("localhost", port)) {
+                for (int i = 0; i < 10; i++) {
+                    putStation(seeder, "hedged_" + i);
+                }
+            } catch (IOException e) {
+                System.err.println("Seeding hedging test server failed: " + e.getMessage());
+            }
+        }
+        for (RetryPolicy policy : List.of(RetryPolicy.decorrelatedJitter(100, 3000, 3),
+                RetryPolicy.decorrelatedJitter(100, 3000, 3).withHedging(95))) {
+            LatencyHistogram latencyMicros = new LatencyHistogram();
+            try (RetryingWeatherClient client = new RetryingWeatherClient(
+                    "localhost", HEDGE_PRIMARY_PORT, "localhost", HEDGE_ALTERNATE_PORT, policy)) {
+                for (int i = 0; i < HEDGE_REQUESTS; i++) {
+                    long start = System.nanoTime();
+                    try {
+                        client.send(new WeatherHttpClient.Request("GET", "/weather.json", null));
+                    } catch (IOException e) {
+                        System.err.println("Hedged GET failed: " + e.getMessage());
+                    }
+                    latencyMicros.recordValue((System.nanoTime() - start) / 1000);
+                }
+                System.out.println(policy.name() + ": latency p50 " + latencyMicros.getValueAtPercentile(50) / 1000.0
+                        + " ms, p99 " + latencyMicros.getValueAtPercentile(99) / 1000.0
+                        + " ms, max " + latencyMicros.getMaxValue() / 1000.0
+                        + " ms; " + client.hedges() + " hedges, " + client.hedgesWon() + " won");
+            }
+        }
+        primary.stop();
+        alternate.stop();
+    }
+
+    // Content servers that disconnect must have their stations expire EXPIRY_TTL_MS after their last PUT,
+    // within EXPIRY_TOLERANCE_MS; one that reconnects halfway through pushes its deadline back
+    private static void testExpiryLatency() throws InterruptedException {
+        System.out.println("\n--- Expiry Latency Results ---");
+        WeatherStore store = new WeatherStore();
+        WeatherRequestHandler handler = new WeatherRequestHandler(store);
+        handler.expireAfter(EXPIRY_TTL_MS);
+        ConnectionEngine engine = ConnectionEngine.create(ConnectionEngine.DEFAULT_ENGINE, EXPIRY_PORT, handler);
+        try {
+            engine.start();
+        } catch (IOException e) {
+            System.err.println("Expiry test server failed to start: " + e.getMessage());
+            return;
+        }
+        UpdateBroadcaster.Subscriber subscriber = handler.updates().subscribe();
+
+        // Last time each station was sent, taken before the PUT so the server's receive time is not earlier
+        Map<String, Long> lastSent = new HashMap<>();
+        try (WeatherHttpClient client = new WeatherHttpClient("localhost", EXPIRY_PORT)) {
+            for (int i = 0; i < NUM_CLIENTS; i++) {
+                lastSent.put("expiring_" + i, System.currentTimeMillis());
+                putStation(client, "expiring_" + i);
+            }
+            // Content server 0 reconnects and sends again before its station expires
+            Thread.sleep(EXPIRY_TTL_MS / 2);
+            lastSent.put("expiring_0", System.currentTimeMillis());
+            putStation(client, "expiring_0");
+        } catch (IOException e) {
+            System.err.println("Expiry test PUT failed: " + e.getMessage());
+        }
+
+        Map<String, Long> expiredAt = new HashMap<>();
+        long waitUntil = System.currentTimeMillis() + 2 * EXPIRY_TTL_MS;
+        while (expiredAt.size() < lastSent.size() && System.currentTimeMillis() < waitUntil) {
+            ByteBuffer frame = subscriber.take(100, TimeUnit.MILLISECONDS);
+            if (frame == null) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            String text = StandardCharsets.UTF_8.decode(frame).toString();
+            int expired = text.indexOf("\"expired\":[");
+            if (expired < 0) {
+                continue;
+            }
+            for (String id : text.substring(expired + 11, text.indexOf(']', expired)).split(",")) {
+                expiredAt.putIfAbsent(id.replace("\"", "").trim(), now);
+            }
+        }
+        subscriber.close();
+        engine.stop();
+        handler.stopExpiring();
+
+        long maxLatency = Long.MIN_VALUE;
+        long totalLatency = 0;
+        int onTime = 0;
+        for (Map.Entry<String, Long> station : lastSent.entrySet()) {
+            Long at = expiredAt.get(station.getKey());
+            if (at == null) {
+                System.out.println("Station " + station.getKey() + " never expired");
+                continue;
+            }
+            long latency = at - station.getValue() - EXPIRY_TTL_MS;
+            maxLatency = Math.max(maxLatency, latency);
+            totalLatency += latency;
+            if (latency >= 0 && latency <= EXPIRY_TOLERANCE_MS) {
+                onTime++;
+            } else {
+                System.out.println("Station " + station.getKey() + " expired " + latency + " ms off its deadline");
+            }
+        }
+        System.out.println("Stations Expired: " + expiredAt.size() + "/" + lastSent.size());
+        if (!expiredAt.isEmpty()) {
+            System.out.println("Average Expiry Latency: " + totalLatency / expiredAt.size() + " ms after deadline");
+            System.out.println("Maximum Expiry Latency: " + maxLatency + " ms after deadline");
+        }
+        System.out.println("Expired Within " + EXPIRY_TOLERANCE_MS + " ms: " + onTime + "/" + lastSent.size()
+                + (onTime == lastSent.size() ? " (PASS)" : " (FAIL)"));
+        System.out.println("Stations Left In Store: " + store.size());
+    }
+
+    private static void putStation(WeatherHttpClient client, String stationId) throws IOException {
+        String body = "{\"id\":\"" + stationId + "\",\"air_temp\":\"13.3\"}";
+        WeatherProtocol.Response response = client.send(
+                new WeatherHttpClient.Request("PUT", "/weather.json", body.getBytes(StandardCharsets.UTF_8))
+                        .header("Content-Type", "application/json"));
+        if (response.status != 200 && response.status != 201) {
+            throw new IOException("PUT " + stationId + " answered " + response.status);
+        }
     }
 
     private static void evaluateMetrics(List<Long> disconnectionTimes, List<Long> reconnectionTimes, List<Boolean> reconnectionSuccess) {
@@ -0,0 +1,93 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a StationFanOut against an in-process AggregationServer and reports whether a handful of
+ * connections keep thousands of station feeds on schedule.
+ *
+ * Every station uploads once per INTERVAL_MILLIS. After WARMUP_SECONDS the report gives the upload rate
+ * reached against the rate asked for, how late uploads went out (p50/p99, microseconds), failures, the
+ * number of uploader threads, and how many stations the server holds, followed by the server's own view
+ * from GET /metrics.
+ *
+ * Usage: FanOutTest [stations] [connections] [dataFile] [blocking|nio]
+ */
+public class FanOutTest {
+
+    private static final int PORT = 4800;
+    private static final long INTERVAL_MILLIS = 1000;
+    private static final int WARMUP_SECONDS = 3;
+    private static final int RUN_SECONDS = 10;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        List<Map<String, String>> records = args.length > 2
+                ? StationFileReader.readRecords(Path.of(args[2]))
+                : List.of(sampleRecord());
+        String engineName = args.length > 3 ? args[3] : ConnectionEngine.DEFAULT_ENGINE;
+
+        WeatherStore store = new WeatherStore();
+        ConnectionEngine engine = ConnectionEngine.create(engineName, PORT, new WeatherRequestHandler(store));
+        engine.start();
+        try (StationFanOut fanOut = new StationFanOut("localhost", PORT, connections)) {
+            fanOut.addStations(records, stations, INTERVAL_MILLIS);
+            fanOut.start();
+            Thread.sleep(WARMUP_SECONDS * 1000L); // Connections opened and the JIT warmed before measuring
+            fanOut.lateMicros().reset();
+            long warmupUploads = fanOut.uploads();
+            Thread.sleep(RUN_SECONDS * 1000L);
+            long uploads = fanOut.uploads() - warmupUploads;
+            long threads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> t.getName().startsWith("fan-out-")).count();
+
+            System.out.println("\n--- Fan-Out Results (" + fanOut.stationCount() + " stations, " + connections
+                    + " connections, every " + INTERVAL_MILLIS + " ms) ---");
+            System.out.println("Uploads Per Second: " + uploads / RUN_SECONDS + " (asked for "
+                    + fanOut.stationCount() * 1000L / INTERVAL_MILLIS + "), failures: " + fanOut.failures());
+            System.out.println("Late By (us): p50 " + fanOut.lateMicros().getValueAtPercentile(50)
+                    + ", p99 " + fanOut.lateMicros().getValueAtPercentile(99));
+            System.out.println("Uploader Threads: " + threads);
+            System.out.println("Stations Held By Server: " + store.size() + "/" + fanOut.stationCount()
+                    + (store.size() == fanOut.stationCount() ? " (PASS)" : " (FAIL)"));
+            printServerMetrics();
+        } finally {
+            engine.stop();
+        }
+    }
+
+    private static void printServerMetrics() {
+        try (WeatherHttpClient client = new WeatherHttpClient("localhost", PORT)) {
+            String exposition = new String(client.send(new WeatherHttpClient.Request("GET", "/metrics", new byte[0]))
+                    .bodyBytes(), StandardCharsets.UTF_8);
+            for (String line : exposition.split("\n")) {
+                if (line.startsWith("weather_requests_total{method=\"PUT\"}")
+                        || line.startsWith("weather_request_duration_seconds_count{method=\"PUT\"}")
+                        || line.startsWith("weather_active_connections ")
+                        || line.startsWith("weather_stations ")
+                        || line.startsWith("weather_lamport_clock ")) {
+                    System.out.println("Server Metric: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read /metrics: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, String> sampleRecord() {
+        Map<String, String> record = new LinkedHashMap<>();
+        record.put("id", "station");
+        record.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        record.put("state", "SA");
+        record.put("air_temp", "13.3");
+        record.put("rel_hum", "60");
+        record.put("wind_dir", "S");
+        return record;
+    }
+}
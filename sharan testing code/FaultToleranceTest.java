@@ -1,7 +1,6 @@
 package com.weather.app;
 
 import java.io.*;
-import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -12,6 +11,9 @@ public class FaultToleranceTest {
     private static final List<Long> reconnectionLatencies = new ArrayList<>();
     private static final Map<String, String> sentData = new ConcurrentHashMap<>();
     private static final Map<String, String> receivedData = new ConcurrentHashMap<>();
+    private static final Map<Integer, WeatherHttpClient> clients = new ConcurrentHashMap<>();
+    private static final Set<String> recoveredStations = ConcurrentHashMap.newKeySet();
+    private static long timeToFirstGet = -1;
 
     public static void main(String[] args) throws InterruptedException, IOException {
         System.out.println("Fault Tolerance Test Started");
@@ -41,6 +43,9 @@ public class FaultToleranceTest {
         System.in.read(); // Wait for user to manually restart the server
 
         // Step 3: Testing Data Consistency After Restart
+        System.out.println("Timing server startup and checking which uploads survived the restart...");
+        checkRecoveredData();
+
         System.out.println("Testing data consistency and reconnections after restart...");
         ExecutorService reconnectionPool = Executors.newFixedThreadPool(5);
 
@@ -61,33 +66,26 @@ public class FaultToleranceTest {
         reconnectionPool.awaitTermination(5, TimeUnit.SECONDS);
 
         // Step 4: Display Metrics and Results
+        clients.values().forEach(WeatherHttpClient::close);
         displayMetrics();
     }
 
-    // Send test data to the server from clients
+    // Send test data to the server from clients, reusing each client's keep-alive connection
     private static void sendTestData(int clientId, boolean isInitial) {
-        try (Socket socket = new Socket("localhost", SERVER_PORT);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
+        WeatherHttpClient client = clients.computeIfAbsent(clientId, id -> new WeatherHttpClient("localhost", SERVER_PORT));
+        try {
             // Prepare test data with a unique ID for each client
             String testData = "{ \"id\": \"station_" + clientId + "\", \"temperature\": \"" + (20 + clientId) + "\" }";
             sentData.put("station_" + clientId, testData); // Record sent data for verification
 
-            socket.getOutputStream().write(("PUT /weather.json HTTP/1.1\r\n" +
-                    "Host: localhost\r\n" +
-                    "Content-Type: application/json\r\n" +
-                    "Content-Length: " + testData.length() + "\r\n" +
-                    "Lamport-Clock: 0\r\n" +
-                    "\r\n" +
-                    testData).getBytes());
-            socket.getOutputStream().flush();
-
-            // Read server response and check consistency
-            String responseLine;
-            while ((responseLine = in.readLine()) != null) {
-                if (responseLine.contains("200 OK") || responseLine.contains("201 Created")) {
-                    receivedData.put("station_" + clientId, testData); // Record received data for consistency check
-                }
+            WeatherProtocol.Response response = client.send(
+                    new WeatherHttpClient.Request("PUT", "/weather.json", testData.getBytes())
+                            .header("Content-Type", "application/json")
+                            .header("Lamport-Clock", "0"));
+
+            // Check the response status for consistency
+            if (response.status == 200 || response.status == 201) {
+                receivedData.put("station_" + clientId, testData); // Record received data for consistency check
             }
             System.out.println("Client " + clientId + " server response processed.");
 
@@ -96,6 +94,36 @@ public class FaultToleranceTest {
         }
     }
 
+    // Poll the restarted server until it serves the feed, timing it, and note which acknowledged stations it still has
+    private static void checkRecoveredData() {
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            try (WeatherHttpClient client = new WeatherHttpClient("localhost", SERVER_PORT)) {
+                WeatherProtocol.Response response = client.send(new WeatherHttpClient.Request("GET", "/weather.json", null));
+                if (response.status == 200) {
+                    timeToFirstGet = (System.nanoTime() - startTime) / 1_000_000;
+                    for (Map<String, String> record : WeatherProtocol.parseBatch(new String(response.bodyBytes()), null)) {
+                        String stationId = record.get("id");
+                        if (stationId != null && receivedData.containsKey(stationId)) {
+                            recoveredStations.add(stationId);
+                        }
+                    }
+                    return;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // Server not ready yet; try again shortly
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.err.println("Server did not serve the feed within 30 seconds of the restart");
+    }
+
     // Display the captured metrics
     private static void displayMetrics() {
         System.out.println("\nMetrics Summary:");
@@ -121,5 +149,10 @@ public class FaultToleranceTest {
             System.out.println("Sent Data: " + sentData);
             System.out.println("Received Data: " + receivedData);
         }
+
+        // Durability Check: acknowledged uploads still present after the restart
+        System.out.println("\nDurability Check:");
+        System.out.println("Time to first GET after restart: " + timeToFirstGet + " ms");
+        System.out.println("Stations recovered after restart: " + recoveredStations.size() + " of " + receivedData.size());
     }
 }
@@ -0,0 +1,137 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares re-reading a content-server data file on every send with tailing it (StationFileTailer).
+ *
+ * Writes a data file of the given number of stations, then runs CYCLES cycles that each append
+ * APPENDS_PER_CYCLE station readings and prepare the next upload: once by reading and converting the whole
+ * file, once by waiting on the tailer. Reports time, bytes read and bytes of JSON that would be sent per
+ * cycle, the cost of a cycle in which nothing changed, and checks that the tailer ends up having sent the
+ * latest reading of every station in the file.
+ *
+ * Usage: FileTailingTest [stations]
+ */
+public class FileTailingTest {
+
+    private static final int CYCLES = 100;
+    private static final int APPENDS_PER_CYCLE = 10;
+    private static final long WAIT_MILLIS = 2000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Path dir = Files.createTempDirectory("tailing");
+        Path rereadFile = dir.resolve("reread.txt");
+        Path tailedFile = dir.resolve("data.txt");
+        writeStations(rereadFile, 0, stations, 0, false);
+        writeStations(tailedFile, 0, stations, 0, false);
+        long fileBytes = Files.size(tailedFile);
+
+        // Whole file every cycle, as readDataFromFile + convertToJson do
+        long rereadNanos = 0;
+        long rereadBytesRead = 0;
+        long rereadBytesSent = 0;
+        for (int cycle = 1; cycle <= CYCLES; cycle++) {
+            writeStations(rereadFile, (cycle * APPENDS_PER_CYCLE) % stations, APPENDS_PER_CYCLE, cycle, true);
+            long start = System.nanoTime();
+            rereadBytesRead += Files.size(rereadFile);
+            List<Map<String, String>> records = StationFileReader.readRecords(rereadFile);
+            rereadBytesSent += WeatherProtocol.toBatchJson(records).getBytes(StandardCharsets.UTF_8).length;
+            rereadNanos += System.nanoTime() - start;
+        }
+
+        Map<String, Map<String, String>> sent = new HashMap<>();
+        try (StationFileTailer tailer = new StationFileTailer(tailedFile)) {
+            for (Map<String, String> record : tailer.readChanges()) {
+                sent.put(record.get("id"), record);
+            }
+            long initialBytes = tailer.bytesRead();
+
+            long tailNanos = 0;
+            long tailBytesSent = 0;
+            int timeouts = 0;
+            for (int cycle = 1; cycle <= CYCLES; cycle++) {
+                writeStations(tailedFile, (cycle * APPENDS_PER_CYCLE) % stations, APPENDS_PER_CYCLE, cycle, true);
+                long start = System.nanoTime();
+                List<Map<String, String>> changes = tailer.awaitChanges(WAIT_MILLIS);
+                if (changes.isEmpty()) {
+                    timeouts++;
+                }
+                tailBytesSent += WeatherProtocol.toBatchJson(changes).getBytes(StandardCharsets.UTF_8).length;
+                tailNanos += System.nanoTime() - start;
+                for (Map<String, String> record : changes) {
+                    sent.put(record.get("id"), record);
+                }
+            }
+            long tailBytesRead = tailer.bytesRead() - initialBytes;
+            // The station appended last is complete once a read finds the file has stopped growing
+            for (Map<String, String> record : tailer.readChanges()) {
+                sent.put(record.get("id"), record);
+            }
+
+            long idleStart = System.nanoTime();
+            int idleChanges = 0;
+            for (int i = 0; i < CYCLES; i++) {
+                idleChanges += tailer.readChanges().size();
+            }
+            double idleMicros = (System.nanoTime() - idleStart) / 1e3 / CYCLES;
+
+            Map<String, Map<String, String>> latest = new HashMap<>();
+            for (Map<String, String> record : StationFileReader.readRecords(tailedFile)) {
+                latest.put(record.get("id"), record);
+            }
+            boolean consistent = latest.equals(sent);
+
+            System.out.println("\n--- File Tailing Results (" + stations + " stations, " + fileBytes + " bytes, "
+                    + APPENDS_PER_CYCLE + " appended per cycle) ---");
+            System.out.println("Re-read Per Cycle: " + String.format("%.2f", rereadNanos / 1e6 / CYCLES) + " ms, "
+                    + rereadBytesRead / CYCLES + " bytes read, " + rereadBytesSent / CYCLES + " bytes to send");
+            System.out.println("Tail Per Cycle: " + String.format("%.3f", tailNanos / 1e6 / CYCLES) + " ms, "
+                    + tailBytesRead / CYCLES + " bytes read, " + tailBytesSent / CYCLES + " bytes to send"
+                    + (timeouts > 0 ? " (" + timeouts + " cycles timed out)" : ""));
+            System.out.println("Unchanged File: " + String.format("%.1f", idleMicros) + " us per check, "
+                    + idleChanges + " records to send");
+            System.out.println("Latest Reading Of Every Station Sent: " + (consistent ? "PASS" : "FAIL"));
+        } finally {
+            Files.deleteIfExists(rereadFile);
+            Files.deleteIfExists(tailedFile);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // count station blocks starting at station first, tagged with round
+    private static void writeStations(Path file, int first, int count, int round, boolean append) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int i = first; i < first + count; i++) {
+                out.write("id:station_" + i + "\n"
+                        + "name:Adelaide (West Terrace /  ngayirdapira)\n"
+                        + "state:SA\n"
+                        + "time_zone:CST\n"
+                        + "lat:-34.9\n"
+                        + "lon:138.6\n"
+                        + "local_date_time:15/04:00pm\n"
+                        + "local_date_time_full:20230715160000\n"
+                        + "air_temp:" + (13 + round % 10) + ".3\n"
+                        + "apparent_t:9.5\n"
+                        + "cloud:Partly cloudy\n"
+                        + "dewpt:5.7\n"
+                        + "press:1023.9\n"
+                        + "rel_hum:60\n"
+                        + "wind_dir:S\n"
+                        + "wind_spd_kmh:15\n"
+                        + "wind_spd_kt:8\n"
+                        + "round:" + round + "\n");
+            }
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package com.weather.app;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class LamportClockOrderTest {
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws Exception {
         // Start the AggregationServer in a separate thread
         Thread serverThread = new Thread(() -> {
             try {
@@ -27,6 +36,10 @@ public class LamportClockOrderTest {
         // Define the number of concurrent clients for Lamport clock testing
         int numClients = 10;
 
+        // Subscribe to the update stream before any client sends, so every applied update is observed
+        List<long[]> updates = new ArrayList<>();
+        Socket subscription = subscribe("localhost", 4567, updates);
+
         System.out.println("Testing Lamport clock with " + numClients + " concurrent clients.");
         ExecutorService clientPool = Executors.newFixedThreadPool(numClients);
 
@@ -47,6 +60,83 @@ public class LamportClockOrderTest {
         clientPool.shutdown();
         clientPool.awaitTermination(10, TimeUnit.SECONDS);
 
-        System.out.println("Lamport clock test completed. Check server logs for Lamport clock ordering consistency.");
+        // Give the last frames time to arrive
+        Thread.sleep(1000);
+        subscription.close();
+        checkOrdering(updates, numClients);
+    }
+
+    // Each update frame as {feed version (event id), Lamport clock assigned to the update}
+    private static Socket subscribe(String host, int port, List<long[]> updates) throws Exception {
+        Socket socket = new Socket(host, port);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET /weather.json HTTP/1.1\r\nHost: " + host + "\r\nAccept: text/event-stream\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                long id = -1;
+                String event = null;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("id: ")) {
+                        id = Long.parseLong(line.substring(4));
+                    } else if (line.startsWith("event: ")) {
+                        event = line.substring(7);
+                    } else if (line.startsWith("data: ") && "update".equals(event)) {
+                        synchronized (updates) {
+                            updates.add(new long[]{id, lamportClockOf(line)});
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // Subscription closed at the end of the test
+            }
+        }, "update-subscriber");
+        reader.setDaemon(true);
+        reader.start();
+        return socket;
+    }
+
+    private static long lamportClockOf(String dataLine) {
+        String key = "\"lamport_clock\":";
+        int start = dataLine.indexOf(key) + key.length();
+        int end = start;
+        while (end < dataLine.length() && Character.isDigit(dataLine.charAt(end))) {
+            end++;
+        }
+        return Long.parseLong(dataLine.substring(start, end));
+    }
+
+    // Event ids (feed versions) must never go backwards and no update may be delivered twice
+    private static void checkOrdering(List<long[]> updates, int numClients) {
+        synchronized (updates) {
+            int versionRegressions = 0;
+            int outOfClockOrder = 0;
+            Set<Long> clocks = new HashSet<>();
+            int duplicates = 0;
+            for (int i = 0; i < updates.size(); i++) {
+                long[] update = updates.get(i);
+                if (!clocks.add(update[1])) {
+                    duplicates++;
+                }
+                if (i > 0 && update[0] < updates.get(i - 1)[0]) {
+                    versionRegressions++;
+                }
+                if (i > 0 && update[1] < updates.get(i - 1)[1]) {
+                    outOfClockOrder++; // Concurrent PUTs may be applied in a different order than clocked
+                }
+            }
+
+            System.out.println("\n--- Lamport Clock Ordering ---");
+            System.out.println("Updates streamed: " + updates.size() + " (from " + numClients + " clients)");
+            System.out.println("Duplicate clocks: " + duplicates);
+            System.out.println("Feed version regressions: " + versionRegressions);
+            System.out.println("Applied out of clock order (allowed for concurrent PUTs): " + outOfClockOrder);
+            System.out.println(duplicates == 0 && versionRegressions == 0
+                    ? "Lamport clock ordering: CONSISTENT"
+                    : "Lamport clock ordering: VIOLATED");
+        }
     }
 }
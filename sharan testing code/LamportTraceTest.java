@@ -0,0 +1,90 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drives concurrent PUTs straight into a traced WeatherRequestHandler, then runs TraceVerifier on the trace.
+ *
+ * Each of THREADS writers acts as a content server with its own Lamport clock, sending readings for
+ * random stations out of STATIONS so that concurrent updates to one station are common. The same load
+ * is run once without tracing to show what tracing costs. Finally a hand-written trace with a lost
+ * update and a clock assigned below the one received must be reported as violated.
+ *
+ * Usage: LamportTraceTest [updatesPerThread]
+ */
+public class LamportTraceTest {
+
+    private static final int THREADS = 8;
+    private static final int STATIONS = 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int updatesPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 250_000;
+        Path traceFile = Files.createTempFile("lamport", ".trace");
+        try {
+            run(null, updatesPerThread / 4); // JIT warm-up, so neither measured run pays for compilation
+            double untracedRate = run(null, updatesPerThread);
+            TraceLog trace = new TraceLog(traceFile);
+            double tracedRate = run(trace, updatesPerThread);
+            trace.close();
+
+            System.out.println("\n--- Traced Load (" + THREADS + " writers, " + STATIONS + " stations) ---");
+            System.out.println("PUTs Per Second: " + (long) untracedRate + " untraced, " + (long) tracedRate
+                    + " traced, trace file " + Files.size(traceFile) + " bytes");
+            TraceVerifier.print(TraceVerifier.verify(traceFile));
+
+            // A trace of a broken server: an update lost to a concurrent one, and a clock that went backwards
+            TraceLog broken = new TraceLog(traceFile);
+            broken.receive(0, 1);
+            broken.apply("station_0", 1, -1, true);
+            broken.receive(0, 2);
+            broken.receive(5, 3);
+            broken.apply("station_0", 2, 1, true);
+            broken.apply("station_0", 3, 1, true);
+            broken.close();
+            TraceVerifier.Result result = TraceVerifier.verify(traceFile);
+            System.out.println("\n--- Deliberately Broken Trace ---");
+            System.out.println("Violations Found: " + result.violations.keySet()
+                    + (result.violations.size() == 2 ? " (PASS)" : " (FAIL)"));
+        } finally {
+            Files.deleteIfExists(traceFile);
+        }
+    }
+
+    // PUTs per second across all writers
+    private static double run(TraceLog trace, int updatesPerThread) throws InterruptedException {
+        WeatherStore store = new WeatherStore();
+        WeatherRequestHandler handler = new WeatherRequestHandler(store);
+        if (trace != null) {
+            handler.traceTo(trace);
+        }
+        List<Thread> writers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int w = 0; w < THREADS; w++) {
+            Thread writer = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long clock = 0;
+                for (int i = 0; i < updatesPerThread; i++) {
+                    String body = "{\"id\":\"station_" + random.nextInt(STATIONS) + "\",\"air_temp\":\""
+                            + random.nextInt(40) + "\"}";
+                    byte[] head = ("PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\n"
+                            + "Lamport-Clock: " + (++clock) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                    WeatherProtocol.Response response = handler.handle(WeatherProtocol.parseHead(head, head.length),
+                            body.getBytes(StandardCharsets.UTF_8));
+                    clock = Math.max(clock, Long.parseLong(response.headers.get("Lamport-Clock")));
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        return (double) THREADS * updatesPerThread / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,200 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the station store that is memory-mapped rather than parsed on startup.
+ *
+ * Layout: a 32-byte header (magic, version, count, max clock, index offset), then one entry per
+ * station (clock, receivedAt, id, and the record's pre-encoded JSON), then an index of entry offsets
+ * and a table of (id hash, entry) pairs sorted by hash. Opening maps the file and reads only the header; entries are decoded when first looked up,
+ * and the JSON of untouched stations can be copied straight into a GET response.
+ */
+public final class MappedSnapshot {
+
+    private static final int MAGIC = 0x57534e50; // "WSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int offsetsStart;
+    private final int hashesStart;
+
+    private MappedSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a weather snapshot");
+        }
+        this.count = buffer.getInt(8);
+        this.offsetsStart = (int) buffer.getLong(24);
+        this.hashesStart = offsetsStart + count * 8;
+        if (hashesStart + count * 8L > buffer.capacity()) {
+            throw new IOException("Snapshot index is truncated");
+        }
+    }
+
+    public static MappedSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot larger than 2 GB: " + file);
+            }
+            return new MappedSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Write records to file through a memory mapping and force them to disk
+    public static void write(Path file, List<StationRecord> records) throws IOException {
+        int n = records.size();
+        byte[][] ids = new byte[n][];
+        byte[][] jsons = new byte[n][];
+        long size = HEADER_SIZE;
+        for (int i = 0; i < n; i++) {
+            StationRecord record = records.get(i);
+            ids[i] = record.stationId.getBytes(StandardCharsets.UTF_8);
+            jsons[i] = record.json();
+            size += 8 + 8 + 4 + ids[i].length + 4 + jsons[i].length;
+        }
+        long indexStart = size;
+        size += n * 16L;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot would exceed 2 GB");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            long maxClock = 0;
+            for (StationRecord record : records) {
+                maxClock = Math.max(maxClock, record.lamportClock);
+            }
+            out.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(0).putLong(maxClock).putLong(indexStart);
+
+            long[] offsets = new long[n];
+            long[] hashes = new long[n];
+            for (int i = 0; i < n; i++) {
+                StationRecord record = records.get(i);
+                offsets[i] = out.position();
+                out.putLong(record.lamportClock).putLong(record.receivedAtMillis);
+                out.putInt(ids[i].length).put(ids[i]);
+                out.putInt(jsons[i].length).put(jsons[i]);
+                // Hash in the high half so sorting orders by hash, entry number in the low half
+                hashes[i] = ((long) record.stationId.hashCode() << 32) | i;
+            }
+            for (long offset : offsets) {
+                out.putLong(offset);
+            }
+            Arrays.sort(hashes);
+            for (long h : hashes) {
+                out.putInt((int) (h >> 32)).putInt((int) h);
+            }
+            out.force();
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Highest Lamport clock of any entry, so the server can resume its clock without reading them
+    public long maxClock() {
+        return buffer.getLong(16);
+    }
+
+    // Entry number of a station, or -1 if the snapshot does not contain it
+    public int indexOf(String stationId) {
+        int hash = stationId.hashCode();
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midHash = buffer.getInt(hashesStart + mid * 8);
+            if (midHash < hash) {
+                lo = mid + 1;
+            } else if (midHash > hash) {
+                hi = mid - 1;
+            } else {
+                // Walk back to the first entry with this hash, then check each candidate's id
+                int i = mid;
+                while (i > 0 && buffer.getInt(hashesStart + (i - 1) * 8) == hash) {
+                    i--;
+                }
+                for (; i < count && buffer.getInt(hashesStart + i * 8) == hash; i++) {
+                    int entry = buffer.getInt(hashesStart + i * 8 + 4);
+                    if (stationId.equals(stationIdAt(entry))) {
+                        return entry;
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    public String stationIdAt(int entry) {
+        int pos = entryOffset(entry) + 16;
+        int idLength = buffer.getInt(pos);
+        byte[] id = new byte[idLength];
+        buffer.get(pos + 4, id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    public long clockAt(int entry) {
+        return buffer.getLong(entryOffset(entry));
+    }
+
+    public StationRecord recordAt(int entry) {
+        int pos = entryOffset(entry);
+        long clock = buffer.getLong(pos);
+        long receivedAt = buffer.getLong(pos + 8);
+        String stationId = stationIdAt(entry);
+        Map<String, String> fields = WeatherProtocol.parseRecord(
+                new String(jsonBytes(entry), StandardCharsets.UTF_8));
+        return new StationRecord(stationId, fields, clock, receivedAt);
+    }
+
+    public List<StationRecord> records() {
+        List<StationRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(recordAt(i));
+        }
+        return records;
+    }
+
+    // The entry's pre-encoded JSON object, as stored
+    public byte[] jsonBytes(int entry) {
+        int pos = jsonOffset(entry);
+        byte[] json = new byte[buffer.getInt(pos)];
+        buffer.get(pos + 4, json);
+        return json;
+    }
+
+    public int jsonLength(int entry) {
+        return buffer.getInt(jsonOffset(entry));
+    }
+
+    // Copy the entry's JSON into dst at offset without decoding it
+    public void copyJson(int entry, byte[] dst, int offset) {
+        int pos = jsonOffset(entry);
+        buffer.get(pos + 4, dst, offset, buffer.getInt(pos));
+    }
+
+    private int entryOffset(int entry) {
+        return (int) buffer.getLong(offsetsStart + entry * 8);
+    }
+
+    private int jsonOffset(int entry) {
+        int pos = entryOffset(entry) + 16;
+        return pos + 4 + buffer.getInt(pos);
+    }
+}
@@ -0,0 +1,78 @@
+package com.weather.app;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Minimal in-process benchmark runner: timed warmup and measurement iterations,
+ * reporting ns/op and allocated bytes/op for the calling thread.
+ *
+ * Each result is printed as one JSON line so runs can be diffed between changes.
+ */
+public class MicroBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are folded in here so the JIT cannot discard the benchmarked work
+    private static volatile int sink;
+
+    private final String suite;
+
+    public MicroBenchmark(String suite) {
+        this.suite = suite;
+    }
+
+    // Run op repeatedly, print and return the best ns/op across measurement iterations
+    public double run(String name, Supplier<?> op) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(op);
+        }
+
+        double bestNanosPerOp = Double.MAX_VALUE;
+        double bytesPerOp = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long threadId = Thread.currentThread().getId();
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long[] result = runIteration(op);
+            long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            double nanosPerOp = (double) result[1] / result[0];
+            if (nanosPerOp < bestNanosPerOp) {
+                bestNanosPerOp = nanosPerOp;
+                bytesPerOp = (double) allocated / result[0];
+            }
+        }
+
+        System.out.println(String.format(Locale.ROOT,
+                "{\"suite\":\"%s\",\"benchmark\":\"%s\",\"nsPerOp\":%.1f,\"bytesPerOp\":%.1f}",
+                suite, name, bestNanosPerOp, bytesPerOp));
+        return bestNanosPerOp;
+    }
+
+    // Returns {operations, elapsedNanos}
+    private static long[] runIteration(Supplier<?> op) {
+        long ops = 0;
+        int acc = 0;
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_NANOS;
+        long now;
+        do {
+            // Check the clock every 64 calls so timing overhead stays out of the measurement
+            for (int i = 0; i < 64; i++) {
+                Object value = op.get();
+                acc += value == null ? 0 : System.identityHashCode(value);
+            }
+            ops += 64;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink = acc;
+        return new long[]{ops, now - start};
+    }
+}
@@ -0,0 +1,375 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking engine: one Selector thread owns every connection.
+ *
+ * All reads go through a single shared buffer; a connection only keeps bytes of its own while a
+ * request is partially received, so tens of thousands of idle content servers cost a key each.
+ * Keep-alive connections may pipeline requests; responses are written back in request order.
+ * The loop never waits on a request: one whose handleAsync() response is not ready (a PUT waiting for its
+ * log sync, a GET gathered from other shards) parks its connection, and the completed response is handed
+ * back to the loop to be written, so other connections are served meanwhile.
+ * Event-stream subscribers wake the selector when frames are queued for them and are written to like
+ * any other connection, so a subscriber costs a key and a frame queue, not a thread.
+ */
+public class NioConnectionEngine implements ConnectionEngine {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final RequestHandler handler;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // Subscriber connections with newly queued frames, handed over from publishing threads
+    private final ConcurrentLinkedQueue<SelectionKey> readyStreams = new ConcurrentLinkedQueue<>();
+    // Responses completed by other threads, in the order they completed
+    private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+
+    public NioConnectionEngine(int port, RequestHandler handler) {
+        this.port = port;
+        this.handler = handler;
+    }
+
+    @Override
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port), 4096);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        Thread loop = new Thread(this::eventLoop, "nio-event-loop-" + port);
+        loop.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public int getPort() {
+        try {
+            return serverChannel != null ? ((InetSocketAddress) serverChannel.getLocalAddress()).getPort() : port;
+        } catch (IOException e) {
+            return port;
+        }
+    }
+
+    // Per-connection state: partially received request bytes and responses waiting to be written
+    private static class Connection {
+        byte[] pending;
+        int pendingLength;
+        final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        boolean closeAfterWrite;
+        boolean closed;
+        // A request is being handled elsewhere; nothing further is read or handled until its response is queued
+        boolean awaiting;
+        UpdateBroadcaster.Subscriber stream;
+    }
+
+    // A response that became ready off the event loop, handed over to be written
+    private static class Completion {
+        final SelectionKey key;
+        final WeatherProtocol.Response response;
+        final boolean keepAlive;
+
+        Completion(SelectionKey key, WeatherProtocol.Response response, boolean keepAlive) {
+            this.key = key;
+            this.response = response;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    private void eventLoop() {
+        try {
+            while (running) {
+                selector.select();
+                SelectionKey ready;
+                while ((ready = readyStreams.poll()) != null) {
+                    try {
+                        if (ready.isValid()) {
+                            ready.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            write(ready);
+                        }
+                    } catch (IOException e) {
+                        close(ready);
+                    } catch (RuntimeException e) {
+                        failed(ready, e);
+                    }
+                }
+                Completion done;
+                while ((done = completions.poll()) != null) {
+                    try {
+                        if (done.key.isValid()) {
+                            Connection connection = (Connection) done.key.attachment();
+                            connection.awaiting = false;
+                            deliver(done.key, connection, done.response, done.keepAlive);
+                            process(done.key);
+                        }
+                    } catch (IOException e) {
+                        close(done.key);
+                    } catch (RuntimeException e) {
+                        failed(done.key, e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    } catch (RuntimeException e) {
+                        failed(key, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("NIO event loop failed: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+            handler.connectionOpened();
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            close(key);
+            return;
+        }
+        if (connection.stream != null) {
+            return; // Nothing more is expected from a subscriber; reading just notices when it leaves
+        }
+        readBuffer.flip();
+        append(connection, readBuffer);
+        process(key);
+    }
+
+    // Handle every complete request received so far, in order, so pipelined requests are answered in sequence.
+    // A response that is not ready yet (e.g. waiting for a log sync) holds back the requests behind it until
+    // it is delivered; the connection is not read meanwhile.
+    private void process(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        while (!connection.closeAfterWrite && !connection.awaiting && connection.stream == null) {
+            CompletableFuture<WeatherProtocol.Response> response;
+            boolean keepAlive = false;
+            try {
+                WeatherProtocol.Request request = WeatherProtocol.parseHead(connection.pending, connection.pendingLength);
+                if (request == null) {
+                    if (connection.pendingLength > WeatherProtocol.MAX_HEAD_SIZE) {
+                        throw new IllegalArgumentException("Request head too large");
+                    }
+                    break;
+                }
+                int contentLength = request.contentLength();
+                if (contentLength > WeatherProtocol.MAX_BODY_SIZE) {
+                    // Refused before the body is buffered; the stream cannot be framed past it, so the connection ends
+                    connection.pending = null;
+                    connection.pendingLength = 0;
+                    deliver(key, connection, WeatherProtocol.payloadTooLarge(), false);
+                    break;
+                }
+                int requestEnd = request.bodyOffset + contentLength;
+                if (connection.pendingLength < requestEnd) {
+                    break;
+                }
+                byte[] body = Arrays.copyOfRange(connection.pending, request.bodyOffset, requestEnd);
+                keepAlive = WeatherProtocol.isKeepAlive(request);
+                consume(connection, requestEnd);
+                response = handler.handleAsync(request, body);
+            } catch (IllegalArgumentException e) {
+                response = CompletableFuture.completedFuture(new WeatherProtocol.Response(400, "Bad Request",
+                        String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8)));
+            } catch (RuntimeException e) {
+                // A handler bug costs this request a 500, not the loop every connection depends on
+                System.err.println("Request failed: " + e);
+                response = CompletableFuture.completedFuture(WeatherProtocol.serverError(e));
+            }
+            if (!response.isDone()) {
+                connection.awaiting = true;
+                boolean keep = keepAlive;
+                response.handle(NioConnectionEngine::orServerError).thenAccept(ready -> {
+                    completions.add(new Completion(key, ready, keep));
+                    selector.wakeup();
+                });
+                break;
+            }
+            deliver(key, connection, response.handle(NioConnectionEngine::orServerError).join(), keepAlive);
+        }
+
+        if (!connection.outbound.isEmpty()) {
+            // Stop reading until the responses are flushed; unread pipelined requests wait in the socket buffer
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        } else if (connection.awaiting) {
+            key.interestOps(0);
+        }
+    }
+
+    // Queue a response behind those already waiting to be written
+    private void deliver(SelectionKey key, Connection connection, WeatherProtocol.Response response, boolean keepAlive) {
+        if (response.stream != null) {
+            startStream(key, connection, response);
+            return;
+        }
+        connection.outbound.add(ByteBuffer.wrap(response.encodeHead(keepAlive)));
+        if (response.body.hasRemaining()) {
+            connection.outbound.add(response.body.duplicate());
+        }
+        connection.closeAfterWrite = !keepAlive;
+    }
+
+    private static WeatherProtocol.Response orServerError(WeatherProtocol.Response response, Throwable failure) {
+        return response != null ? response : WeatherProtocol.serverError(failure);
+    }
+
+    // Anything else that goes wrong outside a request ends that connection only; the loop keeps serving
+    private void failed(SelectionKey key, RuntimeException e) {
+        System.err.println("Closing connection after an unexpected error: " + e);
+        if (key.channel() != serverChannel) {
+            close(key);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        do {
+            if (!connection.outbound.isEmpty()) {
+                // Gathering write, so a response head and its (shared) body buffer go out in one call
+                channel.write(connection.outbound.toArray(new ByteBuffer[0]));
+                while (!connection.outbound.isEmpty() && !connection.outbound.peek().hasRemaining()) {
+                    connection.outbound.poll();
+                }
+                if (!connection.outbound.isEmpty()) {
+                    return; // Socket buffer full, wait for the next OP_WRITE
+                }
+            }
+        } while (pullFrames(connection));
+        if (connection.closeAfterWrite || (connection.stream != null && connection.stream.isClosed())) {
+            close(key);
+        } else {
+            key.interestOps(connection.awaiting ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    // Switch the connection to streaming: head now, then frames whenever the subscriber has some
+    private void startStream(SelectionKey key, Connection connection, WeatherProtocol.Response response) {
+        connection.outbound.add(ByteBuffer.wrap(response.encodeHead(false)));
+        connection.stream = response.stream;
+        connection.pending = null;
+        connection.pendingLength = 0;
+        connection.stream.onAvailable(() -> {
+            readyStreams.add(key);
+            selector.wakeup();
+        });
+    }
+
+    // Move a subscriber's queued frames to the outbound queue; false if there were none
+    private static boolean pullFrames(Connection connection) {
+        if (connection.stream == null) {
+            return false;
+        }
+        boolean pulled = false;
+        ByteBuffer frame;
+        while ((frame = connection.stream.poll()) != null) {
+            connection.outbound.add(frame);
+            pulled = true;
+        }
+        return pulled;
+    }
+
+    // Drop the first n bytes, releasing the buffer entirely when nothing is left
+    private static void consume(Connection connection, int n) {
+        int remaining = connection.pendingLength - n;
+        if (remaining == 0) {
+            connection.pending = null;
+        } else {
+            System.arraycopy(connection.pending, n, connection.pending, 0, remaining);
+        }
+        connection.pendingLength = remaining;
+    }
+
+    private static void append(Connection connection, ByteBuffer data) {
+        int needed = connection.pendingLength + data.remaining();
+        if (connection.pending == null) {
+            connection.pending = new byte[Math.max(needed, 1024)];
+        } else if (connection.pending.length < needed) {
+            connection.pending = Arrays.copyOf(connection.pending, Math.max(needed, connection.pending.length * 2));
+        }
+        data.get(connection.pending, connection.pendingLength, data.remaining());
+        connection.pendingLength = needed;
+    }
+
+    private void close(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        if (connection != null && !connection.closed) {
+            connection.closed = true;
+            if (connection.stream != null) {
+                connection.stream.close();
+            }
+            handler.connectionClosed();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Already closed by the peer
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes an in-process AggregationServer (blocking engine) past its capacity, once without and once with
+ * AdmissionControl, and reports what the clients got out of it.
+ *
+ * Capacity is measured first with clients sending batch PUTs back-to-back. Then PUTs arrive open-loop at
+ * overloadFactor times that rate for runSeconds, over clients keep-alive connections, and latency is taken
+ * from each request's scheduled send time. Each run prints one JSON line: goodput (PUTs stored within
+ * DEADLINE_MILLIS of being due, per second; a content server would have given up on the rest), PUTs stored
+ * in all, 503s, other failures, and p50/p99 latency of the stored PUTs in microseconds.
+ *
+ * Usage: OverloadTest [clients] [overloadFactor] [targetMillis] [runSeconds]
+ */
+public class OverloadTest {
+
+    private static final int PORT = 4810;
+    private static final long DEADLINE_MILLIS = 1000;
+    private static final int RECORDS_PER_PUT = 100;
+    private static final int CAPACITY_SECONDS = 3;
+
+    // Each run gets a fresh server on the next port
+    private static int runs;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double overloadFactor = args.length > 1 ? Double.parseDouble(args[1]) : 1.5;
+        long targetMillis = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        int runSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        byte[] body = batchBody();
+
+        run(null, clients, body, 0, CAPACITY_SECONDS); // JIT warm-up
+        double capacity = run(null, clients, body, 0, CAPACITY_SECONDS).goodput();
+        System.out.println("\n--- Overload Results (" + clients + " clients, " + RECORDS_PER_PUT + " records per PUT) ---");
+        System.out.println("Capacity: " + (long) capacity + " PUTs/s; offering " + (long) (capacity * overloadFactor));
+
+        RunResult unbounded = run(null, clients, body, capacity * overloadFactor, runSeconds);
+        System.out.println(unbounded.toJson("none"));
+        AdmissionControl admission = new AdmissionControl(targetMillis, clients, 1);
+        RunResult admitted = run(admission, clients, body, capacity * overloadFactor, runSeconds);
+        System.out.println(admitted.toJson("aimd-" + targetMillis + "ms") + " limit " + admission.limit());
+        System.out.println("Admission Control: goodput " + (long) admitted.goodput() + " vs " + (long) unbounded.goodput()
+                + "/s, p99 " + admitted.latency.getValueAtPercentile(99) + " vs "
+                + unbounded.latency.getValueAtPercentile(99) + " us"
+                + (admitted.goodput() > unbounded.goodput()
+                        && admitted.latency.getValueAtPercentile(99) < unbounded.latency.getValueAtPercentile(99)
+                        ? " (PASS)" : " (FAIL)"));
+    }
+
+    // ratePerSecond 0: closed loop, every client sends as soon as its previous PUT is answered
+    private static RunResult run(AdmissionControl admission, int clients, byte[] body, double ratePerSecond, int seconds)
+            throws IOException, InterruptedException {
+        WeatherRequestHandler handler = new WeatherRequestHandler(new WeatherStore());
+        if (admission != null) {
+            handler.admitWith(admission);
+        }
+        int port = PORT + runs++;
+        ConnectionEngine engine = ConnectionEngine.create("blocking", port, handler);
+        engine.start();
+        RunResult result = new RunResult(seconds);
+        ConcurrentLinkedQueue<WeatherHttpClient> idle = new ConcurrentLinkedQueue<>();
+        ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+        AtomicLong lamportClock = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        try {
+            if (ratePerSecond <= 0) {
+                for (int i = 0; i < clients; i++) {
+                    clientPool.execute(() -> {
+                        while (System.nanoTime() < deadline) {
+                            put(idle, port, body, lamportClock, System.nanoTime(), result);
+                        }
+                    });
+                }
+            } else {
+                long intervalNanos = (long) (1e9 / ratePerSecond);
+                for (long n = 0; ; n++) {
+                    long scheduledTime = start + n * intervalNanos;
+                    if (scheduledTime >= deadline) {
+                        break;
+                    }
+                    long wait = scheduledTime - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    clientPool.execute(() -> put(idle, port, body, lamportClock, scheduledTime, result));
+                }
+            }
+            clientPool.shutdown();
+            clientPool.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        } finally {
+            clientPool.shutdownNow();
+            WeatherHttpClient client;
+            while ((client = idle.poll()) != null) {
+                client.close();
+            }
+            engine.stop();
+        }
+        return result;
+    }
+
+    private static void put(ConcurrentLinkedQueue<WeatherHttpClient> idle, int port, byte[] body, AtomicLong lamportClock,
+                            long scheduledTime, RunResult result) {
+        WeatherHttpClient client = idle.poll();
+        if (client == null) {
+            client = new WeatherHttpClient("localhost", port);
+        }
+        try {
+            WeatherProtocol.Response response = client.send(new WeatherHttpClient.Request("PUT", "/weather.json", body)
+                    .header("Content-Type", "application/json")
+                    .header("Lamport-Clock", String.valueOf(lamportClock.incrementAndGet())));
+            idle.add(client);
+            String serverClock = response.headers.get(WeatherProtocol.LAMPORT_HEADER);
+            if (serverClock != null) {
+                lamportClock.accumulateAndGet(Long.parseLong(serverClock), Math::max);
+            }
+            if (response.status == 200 || response.status == 201) {
+                long latencyMicros = (System.nanoTime() - scheduledTime) / 1000;
+                result.latency.recordValue(latencyMicros);
+                if (latencyMicros <= DEADLINE_MILLIS * 1000) {
+                    result.inTime.incrementAndGet();
+                }
+            } else if (response.status == 503) {
+                result.rejected.incrementAndGet();
+            } else {
+                result.errors.incrementAndGet();
+            }
+        } catch (IOException e) {
+            client.close();
+            result.errors.incrementAndGet();
+        }
+    }
+
+    private static byte[] batchBody() {
+        List<Map<String, String>> records = new ArrayList<>(RECORDS_PER_PUT);
+        for (int i = 0; i < RECORDS_PER_PUT; i++) {
+            Map<String, String> record = new LinkedHashMap<>();
+            record.put("id", "station_" + i);
+            record.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+            record.put("state", "SA");
+            record.put("air_temp", String.valueOf(10 + i % 20));
+            record.put("rel_hum", "60");
+            record.put("wind_dir", "S");
+            records.add(record);
+        }
+        return WeatherProtocol.toBatchJson(records).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Stored PUTs (with latency), 503s and other failures over one run
+    private static class RunResult {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong inTime = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final int seconds;
+
+        RunResult(int seconds) {
+            this.seconds = seconds;
+        }
+
+        double goodput() {
+            return (double) inTime.get() / seconds;
+        }
+
+        String toJson(String admission) {
+            return String.format(Locale.ROOT,
+                    "{\"admission\":\"%s\",\"stored\":%d,\"goodputPerSecond\":%.1f,\"rejected503\":%d,\"errors\":%d,"
+                            + "\"p50Us\":%d,\"p99Us\":%d,\"maxUs\":%d}",
+                    admission, latency.getTotalCount(), goodput(), rejected.get(), errors.get(),
+                    latency.getValueAtPercentile(50.0), latency.getValueAtPercentile(99.0), latency.getMaxValue());
+        }
+    }
+}
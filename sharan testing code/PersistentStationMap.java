@@ -0,0 +1,209 @@
+package com.weather.app;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Immutable map from station id to its record, a hash array mapped trie.
+ *
+ * Each level takes five bits of the id's hash and keeps only the slots in use, so a node is a bitmap and
+ * a dense array of records and child nodes. with() and without() copy the nodes on the way to the station
+ * (at most seven, usually two or three) and share everything else with the map they were called on, so
+ * a new version costs a few small arrays however many stations there are. Ids whose hashes are equal
+ * end up together in a list below the last level.
+ */
+final class PersistentStationMap {
+
+    static final PersistentStationMap EMPTY = new PersistentStationMap(Node.EMPTY, 0);
+
+    private static final int BITS = 5;
+    // Past this shift the hash is used up and a node is a plain list of colliding records
+    private static final int MAX_SHIFT = 32;
+
+    private final Node root;
+    private final int size;
+
+    private PersistentStationMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    StationRecord get(String stationId) {
+        return root.get(stationId, stationId.hashCode(), 0);
+    }
+
+    // This map with the station's record set to record
+    PersistentStationMap with(StationRecord record) {
+        boolean[] added = {false};
+        Node updated = root.with(record, record.stationId.hashCode(), 0, added);
+        return updated == root ? this : new PersistentStationMap(updated, added[0] ? size + 1 : size);
+    }
+
+    // This map without the station
+    PersistentStationMap without(String stationId) {
+        Node updated = root.without(stationId, stationId.hashCode(), 0);
+        return updated == root ? this : new PersistentStationMap(updated, size - 1);
+    }
+
+    void forEach(Consumer<StationRecord> action) {
+        root.forEach(action);
+    }
+
+    private static final class Node {
+        static final Node EMPTY = new Node(0, new Object[0]);
+
+        // Bit i set: the slot for hash digit i is in use; unused below MAX_SHIFT's list nodes
+        final int bitmap;
+        // StationRecord or Node, in digit order
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        StationRecord get(String stationId, int hash, int shift) {
+            if (shift >= MAX_SHIFT) {
+                for (Object slot : slots) {
+                    if (((StationRecord) slot).stationId.equals(stationId)) {
+                        return (StationRecord) slot;
+                    }
+                }
+                return null;
+            }
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = slots[index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).get(stationId, hash, shift + BITS);
+            }
+            StationRecord record = (StationRecord) slot;
+            return record.stationId.equals(stationId) ? record : null;
+        }
+
+        Node with(StationRecord record, int hash, int shift, boolean[] added) {
+            if (shift >= MAX_SHIFT) {
+                for (int i = 0; i < slots.length; i++) {
+                    if (((StationRecord) slots[i]).stationId.equals(record.stationId)) {
+                        return slots[i] == record ? this : new Node(0, replace(slots, i, record));
+                    }
+                }
+                added[0] = true;
+                Object[] grown = Arrays.copyOf(slots, slots.length + 1);
+                grown[slots.length] = record;
+                return new Node(0, grown);
+            }
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                return new Node(bitmap | bit, insert(slots, index, record));
+            }
+            Object slot = slots[index];
+            if (slot instanceof Node) {
+                Node child = (Node) slot;
+                Node updated = child.with(record, hash, shift + BITS, added);
+                return updated == child ? this : new Node(bitmap, replace(slots, index, updated));
+            }
+            StationRecord existing = (StationRecord) slot;
+            if (existing.stationId.equals(record.stationId)) {
+                return existing == record ? this : new Node(bitmap, replace(slots, index, record));
+            }
+            // Two stations share this digit: push both a level down
+            added[0] = true;
+            Node pair = pair(existing, existing.stationId.hashCode(), record, hash, shift + BITS);
+            return new Node(bitmap, replace(slots, index, pair));
+        }
+
+        Node without(String stationId, int hash, int shift) {
+            if (shift >= MAX_SHIFT) {
+                for (int i = 0; i < slots.length; i++) {
+                    if (((StationRecord) slots[i]).stationId.equals(stationId)) {
+                        return new Node(0, remove(slots, i));
+                    }
+                }
+                return this;
+            }
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object slot = slots[index];
+            if (slot instanceof Node) {
+                Node child = (Node) slot;
+                Node updated = child.without(stationId, hash, shift + BITS);
+                if (updated == child) {
+                    return this;
+                }
+                if (updated.slots.length == 0) {
+                    return new Node(bitmap & ~bit, remove(slots, index));
+                }
+                // A child left with one record folds back into this node, so lookups stay short
+                Object only = updated.slots.length == 1 && !(updated.slots[0] instanceof Node) ? updated.slots[0] : updated;
+                return new Node(bitmap, replace(slots, index, only));
+            }
+            if (!((StationRecord) slot).stationId.equals(stationId)) {
+                return this;
+            }
+            return new Node(bitmap & ~bit, remove(slots, index));
+        }
+
+        void forEach(Consumer<StationRecord> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Node) {
+                    ((Node) slot).forEach(action);
+                } else {
+                    action.accept((StationRecord) slot);
+                }
+            }
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private static Node pair(StationRecord a, int hashA, StationRecord b, int hashB, int shift) {
+            if (shift >= MAX_SHIFT) {
+                return new Node(0, new Object[]{a, b});
+            }
+            int bitA = bit(hashA, shift);
+            int bitB = bit(hashB, shift);
+            if (bitA == bitB) {
+                return new Node(bitA, new Object[]{pair(a, hashA, b, hashB, shift + BITS)});
+            }
+            return new Node(bitA | bitB, Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[]{a, b} : new Object[]{b, a});
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        private static Object[] insert(Object[] slots, int index, Object value) {
+            Object[] grown = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, grown, 0, index);
+            grown[index] = value;
+            System.arraycopy(slots, index, grown, index + 1, slots.length - index);
+            return grown;
+        }
+
+        private static Object[] replace(Object[] slots, int index, Object value) {
+            Object[] copy = slots.clone();
+            copy[index] = value;
+            return copy;
+        }
+
+        private static Object[] remove(Object[] slots, int index) {
+            Object[] shrunk = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, shrunk, 0, index);
+            System.arraycopy(slots, index + 1, shrunk, index, slots.length - index - 1);
+            return shrunk;
+        }
+    }
+}
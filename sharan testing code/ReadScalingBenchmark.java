@@ -0,0 +1,109 @@
+package com.weather.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * GET /weather.json throughput at 1-64 reader threads while a writer PUTs at a steady rate, all through
+ * WeatherRequestHandler. Every write publishes a new version of the store, so a reader finds either the
+ * feed its version already encoded or encodes it once for every reader of that version.
+ *
+ * Each reader count prints one JSON line: GETs per second, GET latency p50/p99 (microseconds), the write
+ * rate reached, and how often a reader got a different body buffer than on its previous GET, summed over
+ * readers (at most once per version when readers share each version's encoding).
+ *
+ * Usage: ReadScalingBenchmark [secondsPerRun] [stations] [writesPerSecond]
+ */
+public class ReadScalingBenchmark {
+
+    private static final int[] READER_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int stations = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int writesPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        run(4, seconds, stations, writesPerSecond, false); // JIT warm-up
+        for (int readers : READER_COUNTS) {
+            run(readers, seconds, stations, writesPerSecond, true);
+        }
+    }
+
+    private static void run(int readers, int seconds, int stations, int writesPerSecond, boolean print)
+            throws InterruptedException {
+        WeatherRequestHandler handler = new WeatherRequestHandler(new WeatherStore());
+        for (int i = 0; i < stations; i++) {
+            put(handler, i, i);
+        }
+        byte[] get = "GET /weather.json HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        WeatherProtocol.Request getRequest = WeatherProtocol.parseHead(get, get.length);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder reads = new LongAdder();
+        LongAdder writes = new LongAdder();
+        LongAdder bodyChanges = new LongAdder();
+        LatencyHistogram latency = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+
+        Thread writer = new Thread(() -> {
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / writesPerSecond;
+            long next = System.nanoTime();
+            for (long n = stations; running.get(); n++) {
+                put(handler, ThreadLocalRandom.current().nextInt(stations), n);
+                writes.increment();
+                next += intervalNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }, "steady-writer");
+        threads.add(writer);
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(() -> {
+                Object lastBody = null;
+                while (running.get()) {
+                    long start = System.nanoTime();
+                    WeatherProtocol.Response response = handler.handle(getRequest, new byte[0]);
+                    latency.recordValue((System.nanoTime() - start) / 1000);
+                    reads.increment();
+                    if (response.body.array() != lastBody) {
+                        lastBody = response.body.array();
+                        bodyChanges.increment();
+                    }
+                }
+            }, "reader-" + r));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (print) {
+            System.out.println(String.format(Locale.ROOT,
+                    "{\"readers\":%d,\"stations\":%d,\"getsPerSecond\":%.0f,\"p50Us\":%d,\"p99Us\":%d,"
+                            + "\"writesPerSecond\":%.0f,\"bodyChanges\":%d}",
+                    readers, stations, reads.sum() / (double) seconds, latency.getValueAtPercentile(50),
+                    latency.getValueAtPercentile(99), writes.sum() / (double) seconds, bodyChanges.sum()));
+        }
+    }
+
+    private static void put(WeatherRequestHandler handler, int station, long reading) {
+        byte[] body = ("{\"id\":\"station_" + station + "\",\"air_temp\":\"" + (reading % 40) + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] head = "PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        handler.handle(WeatherProtocol.parseHead(head, head.length), body);
+    }
+}
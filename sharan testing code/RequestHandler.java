@@ -0,0 +1,26 @@
+package com.weather.app;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Application side of a ConnectionEngine: turns one framed request into a response.
+ * Implementations are called from engine threads and must be thread-safe.
+ */
+@FunctionalInterface
+public interface RequestHandler {
+
+    WeatherProtocol.Response handle(WeatherProtocol.Request request, byte[] body);
+
+    // For engines that must not block: a handler that waits on something (a log sync, another node)
+    // overrides this to complete the response later; by default it is handled right away
+    default CompletableFuture<WeatherProtocol.Response> handleAsync(WeatherProtocol.Request request, byte[] body) {
+        return CompletableFuture.completedFuture(handle(request, body));
+    }
+
+    // Engines report connections as they come and go, e.g. for metrics
+    default void connectionOpened() {
+    }
+
+    default void connectionClosed() {
+    }
+}
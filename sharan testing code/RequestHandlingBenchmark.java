@@ -0,0 +1,192 @@
+package com.weather.app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Benchmarks each step of AggregationServer request handling in-process, without sockets:
+ * PUT header parsing, Lamport-Clock handling, JSON body parsing, store update and GET serialization,
+ * plus a whole single-record PUT against a batched PUT of the same records. The ".streaming" variants
+ * run the allocation-free WeatherJsonReader/WeatherJsonWriter path next to the String-based one.
+ * GET is measured served from the store's cached feed, rebuilt after a single-station update, and
+ * re-serialized from scratch as it was before the cache. Conditional and ?since= GETs show what a poller
+ * costs when little or nothing has changed. publish[] fans one update out to SUBSCRIBERS event-stream queues.
+ * The batched PUT is also run gzip-compressed and in WeatherBinaryCodec's encoding, next to the client-side
+ * cost of producing each body, and GET with Accept-Encoding: gzip; bytes per record of each encoding are
+ * printed as extra JSON lines.
+ *
+ * Usage: RequestHandlingBenchmark [stationCount]
+ */
+public class RequestHandlingBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    private static final int SUBSCRIBERS = 1000;
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] GET_REQUEST = "GET /weather.json HTTP/1.1\r\nHost: localhost\r\nLamport-Clock: 1\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static final String SAMPLE_RECORD = "{ \"id\": \"IDS60901\", \"name\": \"Adelaide (West Terrace /  ngayirdapira)\", "
+            + "\"state\": \"SA\", \"time_zone\": \"CST\", \"lat\": -34.9, \"lon\": 138.6, "
+            + "\"local_date_time\": \"15/04:00pm\", \"local_date_time_full\": \"20230715160000\", "
+            + "\"air_temp\": 13.3, \"apparent_t\": 9.5, \"cloud\": \"Partly cloudy\", \"dewpt\": 5.7, "
+            + "\"press\": 1023.9, \"rel_hum\": 60, \"wind_dir\": \"S\", \"wind_spd_kmh\": 15, \"wind_spd_kt\": 8 }";
+
+    public static void main(String[] args) {
+        int stationCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        byte[] putRequest = ("PUT /weather.json HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "User-Agent: ATOMClient/1/0\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + SAMPLE_RECORD.length() + "\r\n" +
+                "Lamport-Clock: 42\r\n" +
+                "\r\n" +
+                SAMPLE_RECORD).getBytes(StandardCharsets.UTF_8);
+        WeatherProtocol.Request parsedRequest = WeatherProtocol.parseHead(putRequest, putRequest.length);
+        Map<String, String> parsedRecord = WeatherProtocol.parseRecord(SAMPLE_RECORD);
+
+        WeatherStore store = new WeatherStore();
+        String[] stationIds = new String[stationCount];
+        for (int i = 0; i < stationCount; i++) {
+            stationIds[i] = "station_" + i;
+            store.put(new StationRecord(stationIds[i], parsedRecord, 0, System.currentTimeMillis()));
+        }
+        WeatherRequestHandler handler = new WeatherRequestHandler(store);
+        int[] next = {0};
+        long[] serverClock = {0};
+
+        // The same BATCH_SIZE records sent as one batched PUT body
+        List<Map<String, String>> batchRecords = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Map<String, String> record = new LinkedHashMap<>(parsedRecord);
+            record.put("id", stationIds[i % stationCount]);
+            batchRecords.add(record);
+        }
+        byte[] singleBody = SAMPLE_RECORD.getBytes(StandardCharsets.UTF_8);
+        byte[] batchBody = WeatherProtocol.toBatchJson(batchRecords).getBytes(StandardCharsets.UTF_8);
+        WeatherProtocol.Request getRequest = WeatherProtocol.parseHead(GET_REQUEST, GET_REQUEST.length);
+
+        // Streaming path: reusable readings parsed from bytes and a reusable output buffer
+        WeatherReading reading = new WeatherReading();
+        List<WeatherReading> readings = new ArrayList<>(stationCount);
+        for (int i = 0; i < stationCount; i++) {
+            WeatherJsonReader.read(singleBody, 0, singleBody.length, reading);
+            WeatherReading copy = new WeatherReading();
+            copy.copyFrom(reading);
+            readings.add(copy);
+        }
+        ByteBuffer feedBuffer = ByteBuffer.allocate(WeatherJsonWriter.encodedLength(readings));
+
+        MicroBenchmark bench = new MicroBenchmark("request-handling");
+        bench.run("parsePutHeaders", () -> WeatherProtocol.parseHead(putRequest, putRequest.length));
+        bench.run("lamportClock", () -> {
+            // Receive rule: local = max(local, received) + 1
+            serverClock[0] = Math.max(serverClock[0], WeatherProtocol.parseLamportClock(parsedRequest)) + 1;
+            return parsedRequest;
+        });
+        bench.run("parseJsonBody", () -> WeatherProtocol.parseRecord(SAMPLE_RECORD));
+        bench.run("parseJsonBody.streaming", () -> {
+            WeatherJsonReader.read(singleBody, 0, singleBody.length, reading);
+            return reading;
+        });
+        bench.run("storeUpdate", () -> {
+            String id = stationIds[next[0]++ % stationIds.length];
+            return store.put(new StationRecord(id, parsedRecord, next[0], 0L));
+        });
+        bench.run("serializeGet[" + stationCount + "]", () -> handler.handle(getRequest, EMPTY));
+        bench.run("serializeGet.afterPut[" + stationCount + "]", () -> {
+            String id = stationIds[next[0]++ % stationIds.length];
+            store.put(new StationRecord(id, parsedRecord, next[0], 0L));
+            return handler.handle(getRequest, EMPTY);
+        });
+        bench.run("serializeGet.uncached[" + stationCount + "]", () -> {
+            List<Map<String, String>> fields = new ArrayList<>(stationCount);
+            for (StationRecord record : store.snapshot()) {
+                fields.add(record.fields);
+            }
+            return WeatherProtocol.toFeedJson(fields).getBytes(StandardCharsets.UTF_8);
+        });
+        WeatherProtocol.Response current = handler.handle(getRequest, EMPTY);
+        byte[] conditional = ("GET /weather.json HTTP/1.1\r\nIf-None-Match: " + current.headers.get("ETag") + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        WeatherProtocol.Request conditionalRequest = WeatherProtocol.parseHead(conditional, conditional.length);
+        bench.run("conditionalGet.notModified[" + stationCount + "]", () -> handler.handle(conditionalRequest, EMPTY));
+        bench.run("deltaGet.onePut[" + stationCount + "]", () -> {
+            long since = store.maxClock();
+            String id = stationIds[next[0]++ % stationIds.length];
+            store.put(new StationRecord(id, parsedRecord, since + 1, 0L));
+            byte[] delta = ("GET /weather.json?since=" + since + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            return handler.handle(WeatherProtocol.parseHead(delta, delta.length), EMPTY);
+        });
+        bench.run("serializeGet.streaming[" + stationCount + "]", () -> {
+            feedBuffer.clear();
+            WeatherJsonWriter.writeFeed(readings, feedBuffer);
+            return feedBuffer;
+        });
+
+        UpdateBroadcaster broadcaster = new UpdateBroadcaster();
+        List<UpdateBroadcaster.Subscriber> subscribers = new ArrayList<>(SUBSCRIBERS);
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            subscribers.add(broadcaster.subscribe());
+        }
+        List<StationRecord> update = List.of(new StationRecord(stationIds[0], parsedRecord, 1, 0L));
+        bench.run("publish[" + SUBSCRIBERS + "]", () -> {
+            long clock = next[0]++;
+            broadcaster.publish(update, clock, () -> clock);
+            for (UpdateBroadcaster.Subscriber subscriber : subscribers) {
+                subscriber.poll();
+            }
+            return broadcaster;
+        });
+
+        // ns/op of putBatch covers BATCH_SIZE records; compare with BATCH_SIZE x putSingle
+        bench.run("putSingle", () -> handler.handle(parsedRequest, singleBody));
+        bench.run("putBatch[" + BATCH_SIZE + "]", () -> handler.handle(parsedRequest, batchBody));
+
+        // The same batch in each encoding: what the content server spends producing it, the server
+        // spends applying it, and what crosses the wire
+        byte[] gzipBatchBody = WeatherProtocol.gzip(batchBody);
+        byte[] binaryBatchBody = WeatherBinaryCodec.encode(batchRecords);
+        WeatherProtocol.Request gzipPut = putHead("Content-Type: application/json\r\nContent-Encoding: gzip\r\n");
+        WeatherProtocol.Request binaryPut = putHead("Content-Type: " + WeatherBinaryCodec.BINARY_CONTENT_TYPE + "\r\n");
+        bench.run("encodeBatch.json[" + BATCH_SIZE + "]",
+                () -> WeatherProtocol.toBatchJson(batchRecords).getBytes(StandardCharsets.UTF_8));
+        bench.run("encodeBatch.gzip[" + BATCH_SIZE + "]",
+                () -> WeatherProtocol.gzip(WeatherProtocol.toBatchJson(batchRecords).getBytes(StandardCharsets.UTF_8)));
+        bench.run("encodeBatch.binary[" + BATCH_SIZE + "]", () -> WeatherBinaryCodec.encode(batchRecords));
+        bench.run("putBatch.gzip[" + BATCH_SIZE + "]", () -> handler.handle(gzipPut, gzipBatchBody));
+        bench.run("putBatch.binary[" + BATCH_SIZE + "]", () -> handler.handle(binaryPut, binaryBatchBody));
+        printBytesPerRecord("json", batchBody.length, BATCH_SIZE);
+        printBytesPerRecord("gzip", gzipBatchBody.length, BATCH_SIZE);
+        printBytesPerRecord("binary", binaryBatchBody.length, BATCH_SIZE);
+        printBytesPerRecord("binary+gzip", WeatherProtocol.gzip(binaryBatchBody).length, BATCH_SIZE);
+
+        byte[] gzipGet = "GET /weather.json HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        WeatherProtocol.Request gzipGetRequest = WeatherProtocol.parseHead(gzipGet, gzipGet.length);
+        bench.run("serializeGet.gzip[" + stationCount + "]", () -> handler.handle(gzipGetRequest, EMPTY));
+        bench.run("serializeGet.gzip.afterPut[" + stationCount + "]", () -> {
+            String id = stationIds[next[0]++ % stationIds.length];
+            store.put(new StationRecord(id, parsedRecord, next[0], 0L));
+            return handler.handle(gzipGetRequest, EMPTY);
+        });
+        printBytesPerRecord("feed.json", handler.handle(getRequest, EMPTY).body.remaining(), store.size());
+        printBytesPerRecord("feed.gzip", handler.handle(gzipGetRequest, EMPTY).body.remaining(), store.size());
+    }
+
+    private static WeatherProtocol.Request putHead(String headers) {
+        byte[] head = ("PUT /weather.json HTTP/1.1\r\nHost: localhost\r\n" + headers + "Lamport-Clock: 42\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        return WeatherProtocol.parseHead(head, head.length);
+    }
+
+    private static void printBytesPerRecord(String encoding, int bytes, int records) {
+        System.out.println(String.format(Locale.ROOT,
+                "{\"suite\":\"request-handling\",\"encoding\":\"%s\",\"bytesPerRecord\":%.1f}",
+                encoding, (double) bytes / records));
+    }
+}
@@ -0,0 +1,214 @@
+package com.weather.app;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When and how often a content server retries a failed upload (see RetryingWeatherClient).
+ *
+ * Backoff is either fixed, the old behaviour, or exponential with decorrelated jitter: each delay is drawn
+ * uniformly between the base delay and three times the previous one (the base delay before the first
+ * retry), capped. Clients that failed together therefore come back spread out rather than in lockstep
+ * when the server restarts, from their first retry on.
+ *
+ * Two optional guards are shared by every upload that goes through the same policy. A retry budget
+ * allows retries only up to a fraction of first attempts (plus a small floor), so an outage does not
+ * turn into a multiple of the normal load. A circuit breaker opens after a run of failures and sends
+ * nothing until openMillis have passed, then lets a single probe through.
+ *
+ * A policy may also ask for hedging: if the primary has not answered within the given percentile of its
+ * recent latencies, the same request is sent to an alternate server and the first answer wins.
+ */
+public class RetryPolicy {
+
+    private final String name;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final boolean jitter;
+    private final int maxAttempts;
+    private Budget budget;
+    private CircuitBreaker breaker;
+    private double hedgePercentile;
+
+    private RetryPolicy(String name, long baseDelayMillis, long maxDelayMillis, boolean jitter, int maxAttempts) {
+        this.name = name;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+    // The same delay before every retry
+    public static RetryPolicy fixed(long delayMillis, int maxAttempts) {
+        return new RetryPolicy("fixed", delayMillis, delayMillis, false, maxAttempts);
+    }
+
+    // Decorrelated jitter: delay = min(cap, random(base, 3 * previous delay)), the previous delay starting at base
+    public static RetryPolicy decorrelatedJitter(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        return new RetryPolicy("jitter", baseDelayMillis, maxDelayMillis, true, maxAttempts);
+    }
+
+    // Allow retries up to ratio of first attempts, plus minRetries banked up front
+    public RetryPolicy withBudget(double ratio, int minRetries) {
+        budget = new Budget(ratio, minRetries);
+        return this;
+    }
+
+    public RetryPolicy withCircuitBreaker(int failureThreshold, long openMillis) {
+        breaker = new CircuitBreaker(failureThreshold, openMillis);
+        return this;
+    }
+
+    // Hedge once the primary is slower than this percentile (e.g. 95) of its observed latencies
+    public RetryPolicy withHedging(double percentile) {
+        hedgePercentile = percentile;
+        return this;
+    }
+
+    public String name() {
+        StringBuilder sb = new StringBuilder(name);
+        if (budget != null) {
+            sb.append("+budget");
+        }
+        if (breaker != null) {
+            sb.append("+breaker");
+        }
+        if (hedgePercentile > 0) {
+            sb.append("+hedge");
+        }
+        return sb.toString();
+    }
+
+    int maxAttempts() {
+        return maxAttempts;
+    }
+
+    double hedgePercentile() {
+        return hedgePercentile;
+    }
+
+    // Delay before the next attempt, given the previous delay (0 before the first retry)
+    long nextDelay(long previousDelayMillis) {
+        if (!jitter) {
+            return baseDelayMillis;
+        }
+        // Seeded with the base delay, so first retries are spread as well instead of all landing on it
+        long previous = previousDelayMillis > 0 ? previousDelayMillis : baseDelayMillis;
+        long upper = Math.max(baseDelayMillis, previous * 3);
+        long delay = upper > baseDelayMillis
+                ? ThreadLocalRandom.current().nextLong(baseDelayMillis, upper + 1)
+                : baseDelayMillis;
+        return Math.min(maxDelayMillis, delay);
+    }
+
+    // Whether an attempt may be sent now; retry distinguishes retries from first attempts for the budget
+    boolean tryAcquire(boolean retry) {
+        if (budget != null) {
+            if (!retry) {
+                budget.recordRequest();
+            } else if (!budget.tryRetry()) {
+                return false;
+            }
+        }
+        // Asked last: letting a request through may make it the breaker's one probe
+        if (breaker != null && !breaker.allowRequest()) {
+            if (retry && budget != null) {
+                budget.refund();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    void recordSuccess() {
+        if (breaker != null) {
+            breaker.recordSuccess();
+        }
+    }
+
+    void recordFailure() {
+        if (breaker != null) {
+            breaker.recordFailure();
+        }
+    }
+
+    // How long until the breaker lets a request through; 0 when closed
+    long blockedForMillis() {
+        return breaker == null ? 0 : breaker.remainingOpenMillis();
+    }
+
+    // Token bucket: each first attempt deposits ratio of a retry, each retry withdraws a whole one;
+    // no more than minRetries (at least one) can be banked
+    static final class Budget {
+        private final double ratio;
+        private final double maxTokens;
+        private double tokens;
+
+        Budget(double ratio, int minRetries) {
+            this.ratio = ratio;
+            this.tokens = minRetries;
+            this.maxTokens = Math.max(minRetries, 1);
+        }
+
+        synchronized void recordRequest() {
+            tokens = Math.min(maxTokens, tokens + ratio);
+        }
+
+        synchronized boolean tryRetry() {
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(maxTokens, tokens + 1);
+        }
+    }
+
+    // Closed -> open after failureThreshold consecutive failures -> one probe after openMillis -> closed on success
+    static final class CircuitBreaker {
+        private final int failureThreshold;
+        private final long openMillis;
+        private int consecutiveFailures;
+        private long openedAt = -1;
+        private boolean probing;
+
+        CircuitBreaker(int failureThreshold, long openMillis) {
+            this.failureThreshold = failureThreshold;
+            this.openMillis = openMillis;
+        }
+
+        synchronized boolean allowRequest() {
+            if (openedAt < 0) {
+                return true;
+            }
+            if (probing || System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            probing = true; // Half open: this request decides
+            return true;
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            openedAt = -1;
+            probing = false;
+        }
+
+        synchronized void recordFailure() {
+            consecutiveFailures++;
+            if (probing || consecutiveFailures >= failureThreshold) {
+                openedAt = System.currentTimeMillis();
+                probing = false;
+            }
+        }
+
+        synchronized long remainingOpenMillis() {
+            if (openedAt < 0) {
+                return 0;
+            }
+            return Math.max(0, openMillis - (System.currentTimeMillis() - openedAt));
+        }
+    }
+}
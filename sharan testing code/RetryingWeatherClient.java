@@ -0,0 +1,234 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-server uploads that follow a RetryPolicy instead of sleeping a fixed time between attempts.
+ *
+ * A connection failure or a 502/503 is retried after the policy's backoff, as long as its budget and
+ * circuit breaker allow, and never sooner than a Retry-After the server sent with it; any other response
+ * is returned as is. With an alternate server and a hedging policy, a GET the primary has not answered
+ * within the chosen percentile of its latencies is sent to the alternate as well, and the first answer
+ * that is not a 502/503 is used; those only count once nothing else is on its way.
+ *
+ * A PUT is not idempotent: the server gives every PUT it applies a new clock, so a reading applied twice
+ * is a second update, and a late copy can overwrite a newer reading from the same station. PUTs are
+ * therefore never hedged, and are retried only when they cannot have been applied: the server answered
+ * 502/503, or the connection could not be opened. A PUT that fails after it was sent (a timeout, a reset
+ * mid-response) is given up on. Each server gets a small pool of keep-alive connections, so a request
+ * left stalled on one does not hold up the next.
+ */
+public class RetryingWeatherClient implements AutoCloseable {
+
+    // Latencies to see before hedging, so one early fast answer does not set the bar
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    private final String host;
+    private final int port;
+    private final String alternateHost;
+    private final int alternatePort;
+    // Idle keep-alive connections per server
+    private final ConcurrentLinkedQueue<WeatherHttpClient> primaryIdle = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<WeatherHttpClient> alternateIdle = new ConcurrentLinkedQueue<>();
+    private final RetryPolicy policy;
+    private final LatencyHistogram primaryLatencyMicros = new LatencyHistogram();
+    private final ExecutorService hedgePool;
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+
+    public RetryingWeatherClient(String host, int port, RetryPolicy policy) {
+        this(host, port, null, -1, policy);
+    }
+
+    // alternateHost: a server to hedge reads to, or null
+    public RetryingWeatherClient(String host, int port, String alternateHost, int alternatePort, RetryPolicy policy) {
+        this.host = host;
+        this.port = port;
+        this.alternateHost = alternateHost;
+        this.alternatePort = alternatePort;
+        this.policy = policy;
+        this.hedgePool = alternateHost != null && policy.hedgePercentile() > 0
+                ? Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "hedged-send");
+                    t.setDaemon(true);
+                    return t;
+                })
+                : null;
+    }
+
+    public WeatherProtocol.Response send(WeatherHttpClient.Request request) throws IOException {
+        IOException failure = null;
+        long delay = 0;
+        long serverDelay = 0;
+        for (int attempt = 0; attempt < policy.maxAttempts(); attempt++) {
+            if (attempt > 0) {
+                delay = policy.nextDelay(delay);
+                if (!sleep(Math.max(Math.max(delay, serverDelay), policy.blockedForMillis()))) {
+                    break;
+                }
+            }
+            if (!policy.tryAcquire(attempt > 0)) {
+                failure = new IOException(attempt == 0 ? "Circuit open; not sending" : "Retry budget exhausted", failure);
+                break;
+            }
+            attempts.increment();
+            try {
+                WeatherProtocol.Response response = attempt(request);
+                if (isUnavailable(response)) {
+                    policy.recordFailure();
+                    serverDelay = WeatherProtocol.retryAfterMillis(response);
+                    failure = new IOException("Server answered " + response.status + " " + response.reason);
+                    continue;
+                }
+                policy.recordSuccess();
+                return response;
+            } catch (IOException e) {
+                policy.recordFailure();
+                serverDelay = 0;
+                failure = e;
+                if (!isIdempotent(request) && !neverSent(e)) {
+                    break; // May have been applied; sending it again could apply it twice
+                }
+            }
+        }
+        throw failure != null ? failure : new IOException("Upload abandoned");
+    }
+
+    // Attempts sent, first tries and retries together
+    public long attempts() {
+        return attempts.sum();
+    }
+
+    public long hedges() {
+        return hedges.sum();
+    }
+
+    // Hedges answered before the primary
+    public long hedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    @Override
+    public void close() {
+        WeatherHttpClient idle;
+        while ((idle = primaryIdle.poll()) != null) {
+            idle.close();
+        }
+        while ((idle = alternateIdle.poll()) != null) {
+            idle.close();
+        }
+        if (hedgePool != null) {
+            hedgePool.shutdownNow();
+        }
+    }
+
+    private WeatherProtocol.Response attempt(WeatherHttpClient.Request request) throws IOException {
+        if (hedgePool == null || !isIdempotent(request)) {
+            return timedPrimary(request);
+        }
+        long hedgeAfterMicros = primaryLatencyMicros.getTotalCount() < MIN_HEDGE_SAMPLES
+                ? -1 : primaryLatencyMicros.getValueAtPercentile(policy.hedgePercentile());
+        CompletionService<WeatherProtocol.Response> answers = new ExecutorCompletionService<>(hedgePool);
+        Future<WeatherProtocol.Response> fromPrimary = answers.submit(() -> timedPrimary(request));
+        int pending = 1;
+        try {
+            Future<WeatherProtocol.Response> first = hedgeAfterMicros < 0
+                    ? answers.take()
+                    : answers.poll(hedgeAfterMicros, TimeUnit.MICROSECONDS);
+            if (first == null) {
+                hedges.increment();
+                answers.submit(() -> send(alternateIdle, alternateHost, alternatePort, request));
+                pending++;
+                first = answers.take();
+            }
+            // First success wins; a failure or a 502/503 only counts once nothing else is on its way
+            ExecutionException failed = null;
+            WeatherProtocol.Response unavailable = null;
+            while (true) {
+                pending--;
+                try {
+                    WeatherProtocol.Response response = first.get();
+                    if (!isUnavailable(response)) {
+                        if (first != fromPrimary) {
+                            hedgesWon.increment();
+                        }
+                        return response;
+                    }
+                    unavailable = response;
+                } catch (ExecutionException e) {
+                    failed = failed == null ? e : failed;
+                }
+                if (pending == 0) {
+                    break;
+                }
+                first = answers.take();
+            }
+            if (unavailable != null) {
+                return unavailable; // Retried by send(), honouring its Retry-After
+            }
+            throw failed.getCause() instanceof IOException ? (IOException) failed.getCause() : new IOException(failed.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for an answer", e);
+        }
+    }
+
+    private static boolean isIdempotent(WeatherHttpClient.Request request) {
+        return "GET".equals(request.method);
+    }
+
+    // The connection could not be opened, so the request never reached the server
+    private static boolean neverSent(IOException e) {
+        return e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException;
+    }
+
+    private static boolean isUnavailable(WeatherProtocol.Response response) {
+        return response.status == 502 || response.status == 503;
+    }
+
+    private WeatherProtocol.Response timedPrimary(WeatherHttpClient.Request request) throws IOException {
+        long start = System.nanoTime();
+        WeatherProtocol.Response response = send(primaryIdle, host, port, request);
+        primaryLatencyMicros.recordValue((System.nanoTime() - start) / 1000);
+        return response;
+    }
+
+    private static WeatherProtocol.Response send(ConcurrentLinkedQueue<WeatherHttpClient> idle, String host, int port,
+                                                 WeatherHttpClient.Request request) throws IOException {
+        WeatherHttpClient client = idle.poll();
+        if (client == null) {
+            client = new WeatherHttpClient(host, port);
+        }
+        try {
+            WeatherProtocol.Response response = client.send(request);
+            idle.add(client);
+            return response;
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -1,65 +1,242 @@
 package com.weather.app;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for the AggregationServer.
+ *
+ * Usage: ScalabilityTest [closed|open] [stageSeconds] [putRatio] [requestsPerClientPerSecond] [blocking|nio|both] [admissionTargetMillis]
+ *
+ * closed: every simulated content server sends its next request as soon as the previous one returns.
+ * open:   requests arrive at a fixed rate regardless of how fast the server answers, and latency is
+ *         measured from the scheduled send time so queueing delay is not hidden.
+ *
+ * The server runs in this process: a WeatherRequestHandler behind the chosen ConnectionEngine on 4567.
+ * With "both", one is started per connection engine (blocking on 4567, nio on 4568) and every stage is
+ * run against each of them with the same client count.
+ *
+ * With admissionTargetMillis the servers run with AdmissionControl, and requests they turn away with 503
+ * are counted as rejected rather than as errors; goodput counts only the requests that were served.
+ *
+ * Each stage prints one JSON line with throughput and p50/p99/p999 latency (microseconds) for PUT and GET.
+ */
 public class ScalabilityTest {
 
-    private static final String SERVER_URL = "http://localhost:4567";
-    private static final String FILE_PATH = "data.txt"; // Ensure this file exists with valid data
-    private static final int[] CLIENT_COUNTS = {5, 10, 20, 50}; // Client count per scalability stage
-
-    public static void main(String[] args) throws InterruptedException {
-        // Start the AggregationServer in a separate thread
-        Thread serverThread = new Thread(() -> {
-            try {
-                AggregationServer.main(new String[]{"4567"});  // Assuming AggregationServer takes a port argument
-            } catch (Exception e) {
-                System.err.println("Server failed to start: " + e.getMessage());
+    private static final String SERVER_HOST = "localhost";
+    private static final int SERVER_PORT = 4567;
+    private static final String[] ENGINES = {"blocking", "nio"};
+    private static final int[] CLIENT_COUNTS = {5, 10, 20, 50, 200, 1000, 2000}; // Client count per scalability stage
+    private static final int SOCKET_TIMEOUT_MS = 10000;
+    private static final long STAGE_PAUSE_MS = 5000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String mode = args.length > 0 ? args[0] : "closed";
+        int stageSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        double putRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.5;
+        double ratePerClient = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+        String engine = args.length > 4 ? args[4] : ConnectionEngine.DEFAULT_ENGINE;
+        long admissionTargetMillis = args.length > 5 ? Long.parseLong(args[5]) : 0;
+
+        if (!mode.equals("closed") && !mode.equals("open")) {
+            System.err.println("Unknown mode '" + mode + "', expected 'closed' or 'open'");
+            return;
+        }
+
+        String[] engines = engine.equals("both") ? ENGINES : new String[]{engine};
+
+        // Run one server per engine in this process, each on its own port
+        List<ConnectionEngine> servers = new ArrayList<>();
+        try {
+            for (int e = 0; e < engines.length; e++) {
+                WeatherRequestHandler handler = new WeatherRequestHandler(new WeatherStore());
+                if (admissionTargetMillis > 0) {
+                    // Room to queue every client of the largest stage; the rest are turned away with 503
+                    handler.admitWith(new AdmissionControl(admissionTargetMillis,
+                            CLIENT_COUNTS[CLIENT_COUNTS.length - 1], 1));
+                }
+                ConnectionEngine server = ConnectionEngine.create(engines[e], SERVER_PORT + e, handler);
+                server.start();
+                servers.add(server);
             }
-        });
-        serverThread.start();
+            runStages(engines, mode, stageSeconds, putRatio, ratePerClient);
+        } finally {
+            for (ConnectionEngine server : servers) {
+                server.stop();
+            }
+        }
+    }
 
-        // Allow the server some time to initialize
-        Thread.sleep(3000);
+    private static void runStages(String[] engines, String mode, int stageSeconds, double putRatio, double ratePerClient)
+            throws InterruptedException {
+        for (int stage = 0; stage < CLIENT_COUNTS.length; stage++) {
+            int clientCount = CLIENT_COUNTS[stage];
+            for (int e = 0; e < engines.length; e++) {
+                int port = SERVER_PORT + e;
+                StageResult result = mode.equals("open")
+                        ? runOpenLoop(port, clientCount, stageSeconds, putRatio, ratePerClient)
+                        : runClosedLoop(port, clientCount, stageSeconds, putRatio);
 
-        for (int clientCount : CLIENT_COUNTS) {
-            System.out.println("\nTesting with " + clientCount + " concurrent clients...");
+                System.out.println(result.toJson(stage + 1, mode, engines[e], clientCount));
 
-            ExecutorService clientPool = Executors.newFixedThreadPool(clientCount);
+                // Introduce a delay before the next run
+                Thread.sleep(STAGE_PAUSE_MS);
+            }
+        }
+    }
 
-            long startTime = System.currentTimeMillis();
+    // Every client loops request/response back-to-back until the stage deadline
+    private static StageResult runClosedLoop(int port, int clientCount, int stageSeconds, double putRatio) throws InterruptedException {
+        StageResult result = new StageResult();
+        ExecutorService clientPool = Executors.newFixedThreadPool(clientCount);
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.SECONDS.toNanos(stageSeconds);
+
+        for (int i = 0; i < clientCount; i++) {
+            int clientId = i;
+            clientPool.execute(() -> {
+                long lamportClock = 0;
+                while (System.nanoTime() < deadline) {
+                    long sendTime = System.nanoTime();
+                    lamportClock = sendRequest(port, result, clientId, lamportClock, sendTime, putRatio);
+                }
+            });
+        }
+
+        clientPool.shutdown();
+        clientPool.awaitTermination(stageSeconds + 30L, TimeUnit.SECONDS);
+        result.elapsedNanos = System.nanoTime() - startTime;
+        return result;
+    }
 
-            for (int i = 0; i < clientCount; i++) {
-                int clientId = i;
-                clientPool.submit(() -> {
+    // Requests are dispatched on a fixed schedule; a slow server builds up a backlog instead of slowing the senders
+    private static StageResult runOpenLoop(int port, int clientCount, int stageSeconds, double putRatio, double ratePerClient)
+            throws InterruptedException {
+        StageResult result = new StageResult();
+        ExecutorService clientPool = Executors.newFixedThreadPool(clientCount);
+        long intervalNanos = (long) (1_000_000_000L / (clientCount * ratePerClient));
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.SECONDS.toNanos(stageSeconds);
+        AtomicLong lamportClock = new AtomicLong();
+
+        for (long n = 0; ; n++) {
+            long scheduledTime = startTime + n * intervalNanos;
+            if (scheduledTime >= deadline) {
+                break;
+            }
+            long wait = scheduledTime - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int clientId = (int) (n % clientCount);
+            clientPool.execute(() -> {
+                long clock = sendRequest(port, result, clientId, lamportClock.get(), scheduledTime, putRatio);
+                lamportClock.accumulateAndGet(clock, Math::max);
+            });
+        }
+
+        clientPool.shutdown();
+        clientPool.awaitTermination(stageSeconds + 30L, TimeUnit.SECONDS);
+        result.elapsedNanos = System.nanoTime() - startTime;
+        return result;
+    }
+
+    // Send one PUT or GET, record its latency against sendTime and return the client's updated Lamport clock
+    private static long sendRequest(int port, StageResult result, int clientId, long lamportClock, long sendTime, double putRatio) {
+        boolean isPut = ThreadLocalRandom.current().nextDouble() < putRatio;
+        long clock = lamportClock + 1;
+
+        try (Socket socket = new Socket(SERVER_HOST, port)) {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            if (isPut) {
+                String body = "{ \"id\": \"station_" + clientId + "\", \"temperature\": \""
+                        + (20 + ThreadLocalRandom.current().nextInt(15)) + "\" }";
+                byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+                out.write(("PUT /weather.json HTTP/1.1\r\n" +
+                        "Host: " + SERVER_HOST + "\r\n" +
+                        "Content-Type: application/json\r\n" +
+                        "Content-Length: " + bodyBytes.length + "\r\n" +
+                        "Lamport-Clock: " + clock + "\r\n" +
+                        "Connection: close\r\n" +
+                        "\r\n").getBytes(StandardCharsets.UTF_8));
+                out.write(bodyBytes);
+            } else {
+                out.write(("GET /weather.json HTTP/1.1\r\n" +
+                        "Host: " + SERVER_HOST + "\r\n" +
+                        "Lamport-Clock: " + clock + "\r\n" +
+                        "Connection: close\r\n" +
+                        "\r\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+
+            String statusLine = in.readLine();
+            boolean ok = statusLine != null && (statusLine.contains(" 200") || statusLine.contains(" 201"));
+            boolean rejected = statusLine != null && statusLine.contains(" 503");
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.regionMatches(true, 0, "Lamport-Clock:", 0, 14)) {
                     try {
-                        System.out.println("Client " + clientId + " is attempting to connect and send data.");
-                        ContentServer.sendDataWithRetry(SERVER_URL, FILE_PATH, ContentServer.RETRY_LIMIT); // Using retry limit
-                        System.out.println("Client " + clientId + " sent data successfully.");
-                    } catch (Exception e) {
-                        System.err.println("Client " + clientId + " encountered an error: " + e.getMessage());
+                        clock = Math.max(clock, Long.parseLong(line.substring(14).trim()));
+                    } catch (NumberFormatException ignored) {
+                        // Keep our own clock if the server sent something unexpected
                     }
-                });
+                }
             }
 
-            // Shut down the client pool and wait for all tasks to complete
-            clientPool.shutdown();
-            clientPool.awaitTermination(30, TimeUnit.SECONDS); // Adjust if higher client counts need more time
-
-            long endTime = System.currentTimeMillis();
-            System.out.println("Completed test with " + clientCount + " clients in " + (endTime - startTime) + " ms.");
+            long latencyMicros = (System.nanoTime() - sendTime) / 1_000;
+            if (ok) {
+                (isPut ? result.putLatency : result.getLatency).recordValue(latencyMicros);
+            } else if (rejected) {
+                result.rejected.incrementAndGet();
+            } else {
+                result.errors.incrementAndGet();
+            }
+        } catch (IOException e) {
+            result.errors.incrementAndGet();
+        }
+        return clock;
+    }
 
-            // Introduce a delay before scaling up to the next stage
-            Thread.sleep(5000);
+    // Latency and error counts collected over one stage
+    private static class StageResult {
+        final LatencyHistogram putLatency = new LatencyHistogram();
+        final LatencyHistogram getLatency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        long elapsedNanos;
+
+        String toJson(int stage, String mode, String engine, int clientCount) {
+            long requests = putLatency.getTotalCount() + getLatency.getTotalCount();
+            double seconds = elapsedNanos / 1e9;
+            return String.format(Locale.ROOT,
+                    "{\"stage\":%d,\"mode\":\"%s\",\"engine\":\"%s\",\"clients\":%d,\"elapsedMs\":%d,\"requests\":%d,\"errors\":%d,"
+                            + "\"rejected\":%d,\"requestsPerSecond\":%.1f,\"put\":%s,\"get\":%s}",
+                    stage, mode, engine, clientCount, elapsedNanos / 1_000_000, requests, errors.get(), rejected.get(),
+                    seconds > 0 ? requests / seconds : 0.0, histogramJson(putLatency), histogramJson(getLatency));
         }
 
-        System.out.println("\nScalability test completed. Check server logs for performance under load.");
+        private static String histogramJson(LatencyHistogram histogram) {
+            return String.format(Locale.ROOT,
+                    "{\"count\":%d,\"meanUs\":%.1f,\"p50Us\":%d,\"p99Us\":%d,\"p999Us\":%d,\"maxUs\":%d}",
+                    histogram.getTotalCount(), histogram.getMean(),
+                    histogram.getValueAtPercentile(50.0), histogram.getValueAtPercentile(99.0),
+                    histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+        }
     }
 }
-
-
@@ -0,0 +1,203 @@
+package com.weather.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * AggregationServer metrics, served by GET /metrics in the Prometheus text format.
+ *
+ * Everything recorded on the request path is a LongAdder (a histogram is one LongAdder per bucket plus
+ * one for the sum), so concurrent PUTs increment separate cells instead of contending on one word, and
+ * nothing is locked. Gauges such as store size are not recorded at all: they are read when /metrics is
+ * scraped.
+ */
+public final class ServerMetrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Latency bucket upper bounds, in seconds as exposed
+    private static final double[] BUCKET_SECONDS = {
+            0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * 1e9);
+        }
+    }
+
+    // Prometheus histogram of durations; buckets are counted individually and summed up when scraped
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        void write(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BUCKET_SECONDS.length ? format(BUCKET_SECONDS[i]) : "+Inf";
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_sum").append(braces).append(' ').append(format(sumNanos.sum() / 1e9)).append('\n');
+            out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    // Request methods get their own series; anything else is counted as "other"
+    private static final String[] METHODS = {"GET", "PUT", "other"};
+
+    private final LongAdder[] requests = new LongAdder[METHODS.length];
+    private final Histogram[] requestDurations = new Histogram[METHODS.length];
+    private final LongAdder serverErrors = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final Histogram walSync = new Histogram();
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    public ServerMetrics() {
+        for (int i = 0; i < METHODS.length; i++) {
+            requests[i] = new LongAdder();
+            requestDurations[i] = new Histogram();
+        }
+    }
+
+    // A value read at scrape time, e.g. store size; register before the server starts
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    void requestStarted() {
+        inFlight.increment();
+    }
+
+    void requestFinished(String method, int status, long nanos) {
+        inFlight.decrement();
+        int index = "GET".equals(method) ? 0 : "PUT".equals(method) ? 1 : 2;
+        requests[index].increment();
+        requestDurations[index].record(nanos);
+        if (status >= 500) {
+            serverErrors.increment();
+        }
+    }
+
+    void requestRejected() {
+        rejected.increment();
+    }
+
+    void connectionOpened() {
+        connections.increment();
+    }
+
+    void connectionClosed() {
+        connections.decrement();
+    }
+
+    void stationsExpired(int count) {
+        expired.add(count);
+    }
+
+    void walSynced(long nanos) {
+        walSync.record(nanos);
+    }
+
+    public long requestCount(String method) {
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                return requests[i].sum();
+            }
+        }
+        return requests[METHODS.length - 1].sum();
+    }
+
+    public long activeConnections() {
+        return connections.sum();
+    }
+
+    // The whole exposition, one family after another
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        family(out, "weather_requests_total", "counter", "Requests handled, by method.");
+        for (int i = 0; i < METHODS.length; i++) {
+            out.append("weather_requests_total{method=\"").append(METHODS[i]).append("\"} ")
+                    .append(requests[i].sum()).append('\n');
+        }
+        family(out, "weather_request_duration_seconds", "histogram", "Time from parsed request to response, by method.");
+        for (int i = 0; i < METHODS.length; i++) {
+            requestDurations[i].write(out, "weather_request_duration_seconds", "method=\"" + METHODS[i] + "\"");
+        }
+        single(out, "weather_server_errors_total", "counter", "Responses with a 5xx status.", serverErrors.sum());
+        single(out, "weather_requests_rejected_total", "counter", "Requests turned away with 503 by admission control.",
+                rejected.sum());
+        single(out, "weather_requests_in_flight", "gauge", "Requests being handled right now.", inFlight.sum());
+        single(out, "weather_active_connections", "gauge", "Open client connections.", connections.sum());
+        single(out, "weather_stations_expired_total", "counter", "Stations dropped for going stale.", expired.sum());
+        family(out, "weather_wal_sync_duration_seconds", "histogram", "Write-ahead log write and fsync time per group commit.");
+        walSync.write(out, "weather_wal_sync_duration_seconds", "");
+        List<Gauge> registered;
+        synchronized (this) {
+            registered = new ArrayList<>(gauges);
+        }
+        for (Gauge gauge : registered) {
+            single(out, gauge.name, "gauge", gauge.help, gauge.value.getAsLong());
+        }
+        return out.toString();
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void single(StringBuilder out, String name, String type, String help, long value) {
+        family(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.9g", value).replaceAll("\\.?0+(?=$|e)", "");
+    }
+}
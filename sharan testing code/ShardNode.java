@@ -0,0 +1,346 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * One AggregationServer of a sharded deployment: owns the stations a ShardRing assigns to it.
+ *
+ * PUTs for stations owned elsewhere are refused with 421 and the current Shard-Map-Version, so a client
+ * with a stale map (see ShardedWeatherClient) refreshes it from GET /shards and resends. A plain GET of
+ * the feed is scattered to every shard in parallel and the arrays are joined; conditional, ?since= and
+ * event-stream GETs use per-shard clocks and are answered for this shard only, as is ?scope=local.
+ *
+ * Rebalancing: PUT /shards with a newer map makes the node refuse the stations it no longer owns, hand
+ * them to their new owners with their clocks (PUT /shards/transfer, a WriteAheadLog frame) and drop
+ * them. Under consistent hashing only the stations landing on a new shard move.
+ *
+ * Gathering and rebalancing wait on other shards, so they run on worker threads and complete their
+ * response from there (handleAsync); an NIO engine's event loop never blocks on a peer, which would
+ * deadlock two shards gathering from each other at once.
+ *
+ * Usage: ShardNode <self host:port> <host:port,host:port,...> [--engine=blocking|nio] [--clock=lamport|hybrid] [--expire-after=<seconds>]
+ */
+public class ShardNode implements RequestHandler {
+
+    public static final String SHARDS_PATH = "/shards";
+    static final String FEED_PATH = "/weather.json";
+    static final String TRANSFER_PATH = "/shards/transfer";
+    static final String MAP_VERSION_HEADER = "Shard-Map-Version";
+    private static final int REBALANCE_PASSES = 3;
+
+    private final String self;
+    private final WeatherStore store;
+    private final WeatherRequestHandler handler;
+    private volatile ShardRing ring;
+    // Runs whatever waits on other shards: gathering the feed and rebalancing
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "shard-worker");
+        t.setDaemon(true);
+        return t;
+    });
+    // Idle keep-alive connections to other shards
+    private final Map<String, ConcurrentLinkedQueue<WeatherHttpClient>> peers = new ConcurrentHashMap<>();
+
+    public ShardNode(String self, ShardRing ring, WeatherStore store, WeatherRequestHandler handler) {
+        this.self = self;
+        this.ring = ring;
+        this.store = store;
+        this.handler = handler;
+        handler.acceptOnly(stationId -> this.ring.ownerOf(stationId).equals(self));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ShardNode <self host:port> <host:port,host:port,...> [--engine=blocking|nio] [--clock=lamport|hybrid] [--expire-after=<seconds>] [--trace=<file>] [--admission=<targetMillis>]");
+            return;
+        }
+        List<String> shards = new ArrayList<>();
+        for (String shard : args[1].split(",")) {
+            shards.add(shard.trim());
+        }
+        WeatherStore store = new WeatherStore();
+        WeatherRequestHandler handler = new WeatherRequestHandler(store, null, HybridLogicalClock.fromArgs(args));
+        TraceLog trace = TraceLog.fromArgs(args);
+        if (trace != null) {
+            handler.traceTo(trace);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    trace.close();
+                } catch (IOException e) {
+                    System.err.println("Could not finish the trace: " + e.getMessage());
+                }
+            }));
+        }
+        AdmissionControl admission = AdmissionControl.fromArgs(args);
+        if (admission != null) {
+            handler.admitWith(admission);
+        }
+        long ttlMillis = StationExpiry.ttlFromArgs(args);
+        if (ttlMillis > 0) {
+            handler.expireAfter(ttlMillis);
+        }
+        ShardNode node = new ShardNode(args[0], new ShardRing(1, shards), store, handler);
+        int port = Integer.parseInt(args[0].substring(args[0].lastIndexOf(':') + 1));
+        ConnectionEngine engine = ConnectionEngine.create(ConnectionEngine.engineFromArgs(args), port, node);
+        engine.start();
+        System.out.println("Shard " + args[0] + " of " + shards.size() + " listening on port " + engine.getPort());
+    }
+
+    public ShardRing ring() {
+        return ring;
+    }
+
+    @Override
+    public void connectionOpened() {
+        handler.connectionOpened();
+    }
+
+    @Override
+    public void connectionClosed() {
+        handler.connectionClosed();
+    }
+
+    @Override
+    public WeatherProtocol.Response handle(WeatherProtocol.Request request, byte[] body) {
+        return handleAsync(request, body).join();
+    }
+
+    @Override
+    public CompletableFuture<WeatherProtocol.Response> handleAsync(WeatherProtocol.Request request, byte[] body) {
+        if (request.path.startsWith(TRANSFER_PATH) && "PUT".equals(request.method)) {
+            return CompletableFuture.completedFuture(acceptTransfer(body));
+        }
+        if (request.path.startsWith(SHARDS_PATH)) {
+            if ("GET".equals(request.method)) {
+                return CompletableFuture.completedFuture(
+                        new WeatherProtocol.Response(200, "OK", ring.toJson().getBytes(StandardCharsets.UTF_8))
+                                .header("Content-Type", "application/json"));
+            }
+            if ("PUT".equals(request.method)) {
+                return CompletableFuture.supplyAsync(() -> changeRing(body), workers);
+            }
+        }
+        if ("GET".equals(request.method) && isWholeFeed(request)) {
+            return gather();
+        }
+        return handler.handleAsync(request, body).thenApply(this::withMapVersion);
+    }
+
+    // A refused PUT tells the client which map to fetch
+    private WeatherProtocol.Response withMapVersion(WeatherProtocol.Response response) {
+        if (response.status == 421) {
+            response.header(MAP_VERSION_HEADER, String.valueOf(ring.version()));
+        }
+        return response;
+    }
+
+    // Move to a newer map, handing over every station this node no longer owns; returns stations moved
+    public synchronized int rebalance(ShardRing newRing) throws IOException {
+        if (newRing.version() <= ring.version()) {
+            return 0;
+        }
+        // From here on PUTs for moving stations are refused, so the copies sent below are final; a few
+        // passes pick up PUTs that were already past the ownership check when the map changed
+        ring = newRing;
+        int moved = 0;
+        for (int pass = 0; pass < REBALANCE_PASSES; pass++) {
+            Map<String, List<StationRecord>> leaving = new LinkedHashMap<>();
+            for (StationRecord record : store.snapshot()) {
+                String owner = newRing.ownerOf(record.stationId);
+                if (!owner.equals(self)) {
+                    leaving.computeIfAbsent(owner, o -> new ArrayList<>()).add(record);
+                }
+            }
+            if (leaving.isEmpty()) {
+                break;
+            }
+            for (Map.Entry<String, List<StationRecord>> entry : leaving.entrySet()) {
+                transfer(entry.getKey(), entry.getValue());
+                for (StationRecord record : entry.getValue()) {
+                    if (store.remove(record.stationId, record.lamportClock)) {
+                        moved++;
+                    }
+                }
+            }
+        }
+        return moved;
+    }
+
+    private WeatherProtocol.Response changeRing(byte[] body) {
+        try {
+            int moved = rebalance(ShardRing.fromJson(new String(body, StandardCharsets.UTF_8)));
+            return new WeatherProtocol.Response(200, "OK", ("{\"moved\":" + moved + "}").getBytes(StandardCharsets.UTF_8))
+                    .header("Content-Type", "application/json");
+        } catch (IllegalArgumentException e) {
+            return new WeatherProtocol.Response(400, "Bad Request", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return new WeatherProtocol.Response(502, "Bad Gateway",
+                    ("Rebalance failed: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void transfer(String owner, List<StationRecord> records) throws IOException {
+        WeatherProtocol.Response response = send(owner,
+                new WeatherHttpClient.Request("PUT", TRANSFER_PATH, WriteAheadLog.encode(records))
+                        .header("Content-Type", "application/octet-stream")
+                        .header("Lamport-Clock", String.valueOf(handler.currentClock())));
+        if (response.status != 200) {
+            throw new IOException("Shard " + owner + " refused transfer: " + response.status);
+        }
+    }
+
+    private WeatherProtocol.Response acceptTransfer(byte[] body) {
+        if (body.length < 8) {
+            return new WeatherProtocol.Response(400, "Bad Request", "Truncated transfer".getBytes(StandardCharsets.UTF_8));
+        }
+        ByteBuffer frame = ByteBuffer.wrap(body);
+        int length = frame.getInt();
+        int crc = frame.getInt();
+        if (length != body.length - 8) {
+            return new WeatherProtocol.Response(400, "Bad Request", "Truncated transfer".getBytes(StandardCharsets.UTF_8));
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(body, 8, length);
+        if ((int) checksum.getValue() != crc) {
+            return new WeatherProtocol.Response(400, "Bad Request", "Transfer checksum mismatch".getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            handler.applyTransferred(WriteAheadLog.decode(body, 8, length));
+        } catch (IOException e) {
+            return new WeatherProtocol.Response(400, "Bad Request", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+        }
+        return new WeatherProtocol.Response(200, "OK");
+    }
+
+    // Only the feed itself is gathered; /metrics and any other GET describe this node and stay local
+    private static boolean isWholeFeed(WeatherProtocol.Request request) {
+        String accept = request.header("accept");
+        return isFeedPath(request.path)
+                && !"local".equals(request.queryParameter("scope"))
+                && request.queryParameter("since") == null
+                && request.header("if-none-match") == null
+                && (accept == null || !accept.contains("text/event-stream"));
+    }
+
+    private static boolean isFeedPath(String path) {
+        return path.equals(FEED_PATH) || path.startsWith(FEED_PATH + "?");
+    }
+
+    // Ask every other shard for its part in parallel on the workers, then join the arrays behind our own
+    private CompletableFuture<WeatherProtocol.Response> gather() {
+        List<CompletableFuture<WeatherProtocol.Response>> parts = new ArrayList<>();
+        for (String shard : ring.shards()) {
+            if (!shard.equals(self)) {
+                parts.add(CompletableFuture.supplyAsync(() -> localFeed(shard), workers));
+            }
+        }
+        ByteBuffer own = store.feedBuffer();
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).handle((all, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof UncheckedIOException) {
+                    cause = cause.getCause();
+                }
+                return new WeatherProtocol.Response(502, "Bad Gateway",
+                        ("Shard unavailable: " + cause.getMessage()).getBytes(StandardCharsets.UTF_8));
+            }
+            List<ByteBuffer> bodies = new ArrayList<>();
+            bodies.add(own);
+            for (CompletableFuture<WeatherProtocol.Response> part : parts) {
+                bodies.add(part.join().body);
+            }
+            return new WeatherProtocol.Response(200, "OK", joinArrays(bodies))
+                    .header("Content-Type", "application/json")
+                    .header("Lamport-Clock", String.valueOf(handler.currentClock()));
+        });
+    }
+
+    // Another shard's own stations; anything but 200 fails the gather
+    private WeatherProtocol.Response localFeed(String shard) {
+        try {
+            WeatherProtocol.Response response = send(shard, new WeatherHttpClient.Request("GET", FEED_PATH + "?scope=local", null));
+            if (response.status != 200) {
+                throw new IOException("shard answered " + response.status);
+            }
+            return response;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Concatenate JSON arrays into one, without parsing their elements
+    static byte[] joinArrays(List<ByteBuffer> arrays) {
+        int length = 2;
+        for (ByteBuffer array : arrays) {
+            length += array.remaining() + 1;
+        }
+        byte[] out = new byte[length];
+        int pos = 0;
+        out[pos++] = '[';
+        for (ByteBuffer array : arrays) {
+            ByteBuffer view = array.duplicate();
+            int start = view.position();
+            int end = view.limit();
+            while (start < end && view.get(start) != '[') {
+                start++;
+            }
+            while (end > start && view.get(end - 1) != ']') {
+                end--;
+            }
+            int elementsLength = end - start - 2;
+            if (elementsLength <= 0 || isBlank(view, start + 1, end - 1)) {
+                continue;
+            }
+            if (pos > 1) {
+                out[pos++] = ',';
+            }
+            view.position(start + 1).limit(end - 1);
+            view.get(out, pos, elementsLength);
+            pos += elementsLength;
+        }
+        out[pos++] = ']';
+        return Arrays.copyOf(out, pos);
+    }
+
+    private static boolean isBlank(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte c = buffer.get(i);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private WeatherProtocol.Response send(String shard, WeatherHttpClient.Request request) throws IOException {
+        ConcurrentLinkedQueue<WeatherHttpClient> idle = peers.computeIfAbsent(shard, s -> new ConcurrentLinkedQueue<>());
+        WeatherHttpClient client = idle.poll();
+        if (client == null) {
+            int colon = shard.lastIndexOf(':');
+            client = new WeatherHttpClient(shard.substring(0, colon), Integer.parseInt(shard.substring(colon + 1)));
+        }
+        try {
+            WeatherProtocol.Response response = client.send(request);
+            idle.add(client);
+            return response;
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+}
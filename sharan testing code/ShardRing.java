@@ -0,0 +1,110 @@
+package com.weather.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring mapping station ids to shards ("host:port" of an AggregationServer).
+ *
+ * Each shard is placed at VIRTUAL_NODES points on a 64-bit ring and owns the ids hashing between its
+ * point and the previous one, so adding a shard only moves the stations that now fall on its points,
+ * about 1/N of them, and only ever to the new shard. The version increases with every membership change
+ * so clients and shards can tell a stale map from a current one.
+ *
+ * JSON form, served at GET /shards: {"version":2,"shards":["host:port",...]}
+ */
+public final class ShardRing {
+
+    static final int VIRTUAL_NODES = 128;
+
+    private final long version;
+    private final List<String> shards;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    public ShardRing(long version, List<String> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one shard");
+        }
+        this.version = version;
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (String shard : shards) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+    // The ring with one more shard and the next version
+    public ShardRing withShard(String shard) {
+        List<String> grown = new ArrayList<>(shards);
+        grown.add(shard);
+        return new ShardRing(version + 1, grown);
+    }
+
+    public String ownerOf(String stationId) {
+        Map.Entry<Long, String> owner = points.ceilingEntry(hash(stationId));
+        return owner != null ? owner.getValue() : points.firstEntry().getValue();
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public List<String> shards() {
+        return shards;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"version\":").append(version).append(",\"shards\":[");
+        for (int i = 0; i < shards.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            WeatherProtocol.appendString(sb, shards.get(i));
+        }
+        return sb.append("]}").toString();
+    }
+
+    public static ShardRing fromJson(String json) {
+        int versionKey = json.indexOf("\"version\"");
+        int shardsKey = json.indexOf("\"shards\"");
+        if (versionKey < 0 || shardsKey < 0) {
+            throw new IllegalArgumentException("Not a shard map: " + json);
+        }
+        int pos = json.indexOf(':', versionKey) + 1;
+        int end = pos;
+        while (end < json.length() && (Character.isDigit(json.charAt(end)) || Character.isWhitespace(json.charAt(end)))) {
+            end++;
+        }
+        long version = Long.parseLong(json.substring(pos, end).trim());
+
+        List<String> shards = new ArrayList<>();
+        int close = json.indexOf(']', shardsKey);
+        int quote = json.indexOf('"', json.indexOf('[', shardsKey));
+        while (quote >= 0 && quote < close) {
+            int endQuote = json.indexOf('"', quote + 1);
+            shards.add(json.substring(quote + 1, endQuote));
+            quote = json.indexOf('"', endQuote + 1);
+        }
+        return new ShardRing(version, shards);
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a 64-bit finalizer so nearby ids spread over the ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,144 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-server side of a sharded deployment: sends each reading straight to the shard that owns it.
+ *
+ * The shard map is fetched once from GET /shards and cached. A shard that no longer owns a station
+ * answers 421; the client then refreshes the map and resends just the refused readings. Readings for
+ * the same shard go out as one batched PUT over a kept-alive connection, and the Lamport clock is
+ * carried from every response into the next request, so a reading resent to a new owner is stamped
+ * after anything the old owner held. With a hybrid clock the client ticks a HybridLogicalClock instead
+ * and sends it as Hybrid-Clock, so shards in hybrid mode see readings stamped no earlier than they were sent.
+ */
+public class ShardedWeatherClient implements AutoCloseable {
+
+    private final List<String> seeds;
+    private final boolean hybridClock;
+    private final Map<String, WeatherHttpClient> connections = new HashMap<>();
+    private ShardRing ring;
+    private long lamportClock;
+    private int mapRefreshes;
+
+    // seeds: "host:port" of any shards, used to fetch the shard map
+    public ShardedWeatherClient(List<String> seeds) {
+        this(seeds, false);
+    }
+
+    public ShardedWeatherClient(List<String> seeds, boolean hybridClock) {
+        this.seeds = new ArrayList<>(seeds);
+        this.hybridClock = hybridClock;
+    }
+
+    // PUT every reading to its owning shard; returns how many were accepted
+    public synchronized int put(List<Map<String, String>> readings) throws IOException {
+        if (ring == null) {
+            refreshMap();
+        }
+        List<Map<String, String>> pending = readings;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Map<String, List<Map<String, String>>> byShard = new LinkedHashMap<>();
+            for (Map<String, String> reading : pending) {
+                byShard.computeIfAbsent(ring.ownerOf(reading.get("id")), s -> new ArrayList<>()).add(reading);
+            }
+
+            int accepted = 0;
+            List<Map<String, String>> misrouted = new ArrayList<>();
+            for (Map.Entry<String, List<Map<String, String>>> shard : byShard.entrySet()) {
+                WeatherProtocol.Response response = connection(shard.getKey()).send(
+                        new WeatherHttpClient.Request("PUT", "/weather.json",
+                                WeatherProtocol.toBatchJson(shard.getValue()).getBytes(StandardCharsets.UTF_8))
+                                .header("Content-Type", "application/json")
+                                .header(hybridClock ? "Hybrid-Clock" : "Lamport-Clock", String.valueOf(tick())));
+                observeClock(response);
+                if (response.status == 421) {
+                    misrouted.addAll(shard.getValue());
+                } else if (response.status == 200 || response.status == 201) {
+                    accepted += shard.getValue().size();
+                } else {
+                    throw new IOException("Shard " + shard.getKey() + " answered " + response.status);
+                }
+            }
+            if (misrouted.isEmpty()) {
+                return readings.size() - pending.size() + accepted;
+            }
+            refreshMap();
+            pending = misrouted;
+        }
+        throw new IOException(pending.size() + " readings still misrouted after refreshing the shard map");
+    }
+
+    // Fetch the current map from the first shard (known or seed) that answers
+    public synchronized ShardRing refreshMap() throws IOException {
+        List<String> candidates = new ArrayList<>(seeds);
+        if (ring != null) {
+            candidates.addAll(0, ring.shards());
+        }
+        IOException failure = null;
+        for (String shard : candidates) {
+            try {
+                WeatherProtocol.Response response = connection(shard).send(
+                        new WeatherHttpClient.Request("GET", ShardNode.SHARDS_PATH, null));
+                if (response.status == 200) {
+                    ShardRing fetched = ShardRing.fromJson(new String(response.bodyBytes(), StandardCharsets.UTF_8));
+                    if (ring == null || fetched.version() >= ring.version()) {
+                        ring = fetched;
+                        mapRefreshes++;
+                        return ring;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new IOException("No shard returned a current shard map");
+    }
+
+    public synchronized ShardRing shardMap() {
+        return ring;
+    }
+
+    public synchronized int mapRefreshes() {
+        return mapRefreshes;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (WeatherHttpClient connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    private long tick() {
+        lamportClock = hybridClock
+                ? HybridLogicalClock.next(lamportClock, 0, System.currentTimeMillis())
+                : lamportClock + 1;
+        return lamportClock;
+    }
+
+    private void observeClock(WeatherProtocol.Response response) {
+        String clock = response.headers.get(hybridClock ? "hybrid-clock" : "lamport-clock");
+        if (clock != null) {
+            try {
+                lamportClock = Math.max(lamportClock, Long.parseLong(clock.trim()));
+            } catch (NumberFormatException ignored) {
+                // Not a clock we can use; keep ours
+            }
+        }
+    }
+
+    private WeatherHttpClient connection(String shard) {
+        return connections.computeIfAbsent(shard, s -> {
+            int colon = s.lastIndexOf(':');
+            return new WeatherHttpClient(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1)));
+        });
+    }
+}
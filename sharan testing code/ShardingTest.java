@@ -0,0 +1,225 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Automated check for a sharded AggregationServer deployment on localhost ports.
+ *
+ * Starts SHARD_COUNT ShardNodes, PUTs readings through a ShardedWeatherClient and checks that each shard
+ * holds only its own stations and that a whole-feed GET gathers all of them, also when every shard is
+ * gathering from the others at the same time (with either engine a shard must keep answering its peers
+ * while its own gathers wait on them). Then adds one shard,
+ * rebalances, and reports how many stations moved against how many the ring says should have. Finally
+ * writes again through a client still holding the old map, which must recover through 421 and a refresh.
+ * With --clock=hybrid every shard and the client run hybrid logical clocks, and the report includes how far
+ * the final clock is from wall-clock time.
+ *
+ * Usage: ShardingTest [blocking|nio] [stations] [--clock=lamport|hybrid]
+ */
+public class ShardingTest {
+
+    private static final int SHARD_COUNT = 3;
+    private static final int BASE_PORT = 4700;
+    private static final int BATCH_SIZE = 100;
+    private static final int CONCURRENT_GATHERS_PER_SHARD = 8;
+
+    public static void main(String[] args) throws Exception {
+        boolean hybridClock = HybridLogicalClock.fromArgs(args);
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            }
+        }
+        String engineName = positional.size() > 0 ? positional.get(0) : ConnectionEngine.DEFAULT_ENGINE;
+        int stations = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 10000;
+
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            addresses.add("localhost:" + (BASE_PORT + i));
+        }
+        ShardRing ring = new ShardRing(1, addresses);
+        List<ShardNode> nodes = new ArrayList<>();
+        List<ConnectionEngine> engines = new ArrayList<>();
+        for (String address : addresses) {
+            startShard(engineName, hybridClock, address, ring, nodes, engines);
+        }
+
+        ShardedWeatherClient writer = new ShardedWeatherClient(List.of(addresses.get(0)), hybridClock);
+        long start = System.nanoTime();
+        int accepted = putAll(writer, stations, 1);
+        double putMs = (System.nanoTime() - start) / 1e6;
+
+        Map<String, String> gathered = gatherValues(addresses.get(0));
+        long concurrentStart = System.nanoTime();
+        int concurrentComplete = concurrentGathers(addresses, stations);
+        double concurrentMs = (System.nanoTime() - concurrentStart) / 1e6;
+        boolean placed = true;
+        for (String address : addresses) {
+            for (String id : localIds(address)) {
+                placed &= ring.ownerOf(id).equals(address);
+            }
+        }
+
+        // A fourth shard joins: count the stations whose owner changes under the new ring
+        String joining = "localhost:" + (BASE_PORT + SHARD_COUNT);
+        ShardRing grown = ring.withShard(joining);
+        int expectedMoves = 0;
+        boolean onlyToNewShard = true;
+        for (int s = 0; s < stations; s++) {
+            String id = "station_" + s;
+            if (!ring.ownerOf(id).equals(grown.ownerOf(id))) {
+                expectedMoves++;
+                onlyToNewShard &= grown.ownerOf(id).equals(joining);
+            }
+        }
+        startShard(engineName, hybridClock, joining, grown, nodes, engines);
+        long rebalanceStart = System.nanoTime();
+        int moved = 0;
+        for (String address : addresses) {
+            moved += changeRing(address, grown);
+        }
+        double rebalanceMs = (System.nanoTime() - rebalanceStart) / 1e6;
+        List<String> onNewShard = localIds(joining);
+
+        // The first writer still routes by ring version 1
+        int refreshesBefore = writer.mapRefreshes();
+        putAll(writer, stations, 2);
+        int staleRefreshes = writer.mapRefreshes() - refreshesBefore;
+        Map<String, String> regathered = gatherValues(joining);
+        int wrongValues = 0;
+        for (int s = 0; s < stations; s++) {
+            if (!"2".equals(regathered.get("station_" + s))) {
+                wrongValues++;
+            }
+        }
+
+        // Against wall time, the clock a hybrid shard hands out should be at most a few milliseconds off
+        String clock = send(joining, new WeatherHttpClient.Request("GET", "/weather.json?scope=local", null))
+                .headers.get("hybrid-clock");
+        String clockLag = clock == null ? "null"
+                : String.valueOf(System.currentTimeMillis() - HybridLogicalClock.physicalMillis(Long.parseLong(clock)));
+
+        System.out.println(String.format(Locale.ROOT,
+                "{\"engine\":\"%s\",\"clock\":\"%s\",\"clockLagMs\":%s,\"stations\":%d,\"accepted\":%d,"
+                        + "\"putMs\":%.1f,\"gathered\":%d,\"concurrentGathers\":%d,\"concurrentGathersComplete\":%d,"
+                        + "\"concurrentGatherMs\":%.1f,"
+                        + "\"placedOnOwner\":%b,\"expectedMoves\":%d,\"moved\":%d,\"onNewShard\":%d,"
+                        + "\"movedOnlyToNewShard\":%b,\"rebalanceMs\":%.1f,\"staleMapRefreshes\":%d,"
+                        + "\"gatheredAfterRebalance\":%d,\"wrongValues\":%d}",
+                engineName, hybridClock ? "hybrid" : "lamport", clockLag, stations, accepted, putMs, gathered.size(),
+                addresses.size() * CONCURRENT_GATHERS_PER_SHARD, concurrentComplete, concurrentMs,
+                placed, expectedMoves, moved, onNewShard.size(), onlyToNewShard, rebalanceMs, staleRefreshes, regathered.size(), wrongValues));
+
+        writer.close();
+        for (ConnectionEngine engine : engines) {
+            engine.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void startShard(String engineName, boolean hybridClock, String address, ShardRing ring,
+                                   List<ShardNode> nodes, List<ConnectionEngine> engines) throws IOException {
+        WeatherStore store = new WeatherStore();
+        ShardNode node = new ShardNode(address, ring, store, new WeatherRequestHandler(store, null, hybridClock));
+        ConnectionEngine engine = ConnectionEngine.create(engineName,
+                Integer.parseInt(address.substring(address.lastIndexOf(':') + 1)), node);
+        engine.start();
+        nodes.add(node);
+        engines.add(engine);
+    }
+
+    // PUT station_0..station_{n-1} with the given value, BATCH_SIZE readings at a time
+    private static int putAll(ShardedWeatherClient client, int stations, int value) throws IOException {
+        int accepted = 0;
+        List<Map<String, String>> batch = new ArrayList<>();
+        for (int s = 0; s < stations; s++) {
+            Map<String, String> reading = new LinkedHashMap<>();
+            reading.put("id", "station_" + s);
+            reading.put("value", String.valueOf(value));
+            batch.add(reading);
+            if (batch.size() == BATCH_SIZE || s == stations - 1) {
+                accepted += client.put(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        return accepted;
+    }
+
+    private static int changeRing(String address, ShardRing ring) throws IOException {
+        WeatherProtocol.Response response = send(address, new WeatherHttpClient.Request("PUT", ShardNode.SHARDS_PATH,
+                ring.toJson().getBytes(StandardCharsets.UTF_8)).header("Content-Type", "application/json"));
+        if (response.status != 200) {
+            throw new IOException("Shard " + address + " refused the new map: " + response.status);
+        }
+        String body = new String(response.bodyBytes(), StandardCharsets.UTF_8);
+        return Integer.parseInt(body.substring(body.indexOf(':') + 1, body.indexOf('}')).trim());
+    }
+
+    // Station id -> value from a whole-feed GET, gathered across shards by the node asked
+    private static Map<String, String> gatherValues(String address) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        for (Map<String, String> record : feed(address, "/weather.json")) {
+            values.put(record.get("id"), record.get("value"));
+        }
+        return values;
+    }
+
+    // Whole-feed GETs sent to every shard at once; returns how many came back with every station
+    private static int concurrentGathers(List<String> addresses, int stations) throws InterruptedException {
+        ExecutorService clients = Executors.newFixedThreadPool(addresses.size() * CONCURRENT_GATHERS_PER_SHARD);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (String address : addresses) {
+            for (int i = 0; i < CONCURRENT_GATHERS_PER_SHARD; i++) {
+                results.add(clients.submit(() -> gatherValues(address).size() == stations));
+            }
+        }
+        int complete = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (result.get()) {
+                    complete++;
+                }
+            } catch (ExecutionException e) {
+                System.err.println("Concurrent gather failed: " + e.getCause().getMessage());
+            }
+        }
+        clients.shutdown();
+        return complete;
+    }
+
+    private static List<String> localIds(String address) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (Map<String, String> record : feed(address, "/weather.json?scope=local")) {
+            ids.add(record.get("id"));
+        }
+        return ids;
+    }
+
+    private static List<Map<String, String>> feed(String address, String path) throws IOException {
+        WeatherProtocol.Response response = send(address, new WeatherHttpClient.Request("GET", path, null));
+        if (response.status != 200) {
+            throw new IOException("GET " + path + " from " + address + " answered " + response.status);
+        }
+        return WeatherProtocol.parseBatch(new String(response.bodyBytes(), StandardCharsets.UTF_8), null);
+    }
+
+    private static WeatherProtocol.Response send(String address, WeatherHttpClient.Request request) throws IOException {
+        int colon = address.lastIndexOf(':');
+        try (WeatherHttpClient client = new WeatherHttpClient(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)))) {
+            return client.send(request);
+        }
+    }
+}
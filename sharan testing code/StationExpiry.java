@@ -0,0 +1,135 @@
+package com.weather.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Finds stations whose content server has stopped sending: a station is due once ttl has passed since
+ * the server received its latest reading.
+ *
+ * With hybrid clocks a reading's clock already says when it was stamped, so it is scheduled by that and
+ * found stale by one compare, clock < HybridLogicalClock.at(now - ttl), whichever reading the station
+ * holds by then; with Lamport clocks it is scheduled by receivedAtMillis and stale only while it is still
+ * the reading that was scheduled. The same check decides the catch-up after recovery or promotion, when
+ * every held station is scheduled at once and those already past their time fire on the next tick.
+ *
+ * Every applied reading is scheduled on a TimingWheel; nothing is cancelled when a station is updated
+ * again. The superseded entry still fires, and the handler skips it because the station's clock has
+ * moved on, so an update costs one queue insert and the expiry thread never scans the whole store.
+ * Writers only touch a lock-free queue; the expiry thread moves it into the wheel on every tick.
+ */
+final class StationExpiry implements AutoCloseable {
+
+    static final String EXPIRY_FLAG = "--expire-after=";
+    static final long DEFAULT_TICK_MILLIS = 10;
+
+    // A station and the clock of the reading that was its latest when scheduled
+    static final class Candidate {
+        final String stationId;
+        final long clock;
+        final long deadlineMillis;
+
+        Candidate(String stationId, long clock, long deadlineMillis) {
+            this.stationId = stationId;
+            this.clock = clock;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long tickMillis;
+    private final boolean hybridClock;
+    private final Consumer<List<Candidate>> expire;
+    private final ConcurrentLinkedQueue<Candidate> scheduled = new ConcurrentLinkedQueue<>();
+    private final TimingWheel<Candidate> wheel;
+    private final Thread ticker;
+    private volatile boolean running;
+
+    StationExpiry(long ttlMillis, boolean hybridClock, Consumer<List<Candidate>> expire) {
+        this(ttlMillis, DEFAULT_TICK_MILLIS, hybridClock, expire);
+    }
+
+    StationExpiry(long ttlMillis, long tickMillis, boolean hybridClock, Consumer<List<Candidate>> expire) {
+        this.ttlMillis = ttlMillis;
+        this.tickMillis = tickMillis;
+        this.hybridClock = hybridClock;
+        this.expire = expire;
+        this.wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+        this.ticker = new Thread(this::run, "station-expiry");
+        ticker.setDaemon(true);
+    }
+
+    // Time to live from an --expire-after=<seconds> argument, or 0 (never expire) when absent
+    static long ttlFromArgs(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(EXPIRY_FLAG)) {
+                return (long) (Double.parseDouble(arg.substring(EXPIRY_FLAG.length())) * 1000);
+            }
+        }
+        return 0;
+    }
+
+    void start() {
+        running = true;
+        ticker.start();
+    }
+
+    // Readings just applied; expiry records among them are not scheduled
+    void schedule(List<StationRecord> records) {
+        for (StationRecord record : records) {
+            if (!record.isExpiry()) {
+                scheduled.add(new Candidate(record.stationId, record.lamportClock, deadline(record)));
+            }
+        }
+    }
+
+    // Whether current, the station's latest reading, has outlived ttl when candidate fires
+    boolean isStale(StationRecord current, Candidate candidate, long nowMillis) {
+        return hybridClock
+                ? current.lamportClock < HybridLogicalClock.at(nowMillis - ttlMillis)
+                : current.lamportClock == candidate.clock;
+    }
+
+    // One millisecond past the stamp's own, so at the deadline the whole millisecond is older than ttl
+    private long deadline(StationRecord record) {
+        return hybridClock
+                ? HybridLogicalClock.physicalMillis(record.lamportClock) + ttlMillis + 1
+                : record.receivedAtMillis + ttlMillis;
+    }
+
+    long ttlMillis() {
+        return ttlMillis;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+    }
+
+    private void run() {
+        List<Candidate> due = new ArrayList<>();
+        while (running) {
+            Candidate candidate;
+            while ((candidate = scheduled.poll()) != null) {
+                wheel.schedule(candidate, candidate.deadlineMillis);
+            }
+            wheel.advance(System.currentTimeMillis(), due::add);
+            if (!due.isEmpty()) {
+                try {
+                    expire.accept(due);
+                } catch (RuntimeException e) {
+                    System.err.println("Station expiry failed: " + e.getMessage());
+                }
+                due = new ArrayList<>();
+            }
+            try {
+                Thread.sleep(tickMillis - System.currentTimeMillis() % tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
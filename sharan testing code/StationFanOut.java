@@ -0,0 +1,219 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One process standing in for many content servers: thousands of logical station feeds, each with its
+ * own Lamport clock and upload interval, share a few keep-alive connections.
+ *
+ * Feeds wait in a DelayQueue until they are due. Each connection has one sender thread that takes the
+ * next due feed plus any others already due (up to PIPELINE_DEPTH) and pipelines their PUTs on its
+ * connection, so the thread count is the connection count, not the station count. A feed's body is
+ * encoded once from the shared parsed records and again only when its reading is replaced. A feed
+ * that falls behind is sent once and rescheduled from now rather than sent repeatedly to catch up, and
+ * a feed the server turned away with Retry-After is not sent again before that delay has passed.
+ */
+public class StationFanOut implements AutoCloseable {
+
+    // Most PUTs a sender writes before reading their responses
+    static final int PIPELINE_DEPTH = 16;
+
+    private static final class Feed implements Delayed {
+        final String stationId;
+        final long intervalNanos;
+        volatile byte[] body;
+        // Only touched by the sender currently holding the feed
+        long lamportClock;
+        long dueNanos;
+        long retryAfterNanos;
+
+        Feed(String stationId, byte[] body, long intervalNanos, long dueNanos) {
+            this.stationId = stationId;
+            this.body = body;
+            this.intervalNanos = intervalNanos;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Feed) other).dueNanos);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final DelayQueue<Feed> due = new DelayQueue<>();
+    private final Map<String, Feed> feeds = new ConcurrentHashMap<>();
+    private final List<Thread> senders = new ArrayList<>();
+    private final LatencyHistogram lateMicros = new LatencyHistogram();
+    private final LongAdder uploads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile boolean running;
+
+    public StationFanOut(String host, int port, int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed");
+        }
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+    }
+
+    // One feed per station in records, each uploading every intervalMillis; first uploads are spread over one interval
+    public void addStations(List<Map<String, String>> records, long intervalMillis) {
+        addStations(records, records.size(), intervalMillis);
+    }
+
+    // count feeds cycling through records, renamed <id>_<n> once the records run out
+    public void addStations(List<Map<String, String>> records, int count, long intervalMillis) {
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Map<String, String> template = records.get(i % records.size());
+            String stationId = i < records.size() ? template.get("id") : template.get("id") + "_" + (i / records.size());
+            Feed feed = new Feed(stationId, encode(template, stationId), intervalNanos, start + intervalNanos * i / count);
+            if (feeds.putIfAbsent(stationId, feed) == null) {
+                due.add(feed);
+            }
+        }
+    }
+
+    // Replace a station's reading; its next scheduled upload sends it
+    public void update(Map<String, String> reading) {
+        Feed feed = feeds.get(reading.get("id"));
+        if (feed == null) {
+            throw new IllegalArgumentException("No feed for station " + reading.get("id"));
+        }
+        feed.body = encode(reading, feed.stationId);
+    }
+
+    public synchronized void start() {
+        running = true;
+        for (int i = 0; i < connections; i++) {
+            Thread sender = new Thread(this::send, "fan-out-" + i);
+            sender.setDaemon(true);
+            senders.add(sender);
+            sender.start();
+        }
+    }
+
+    public int stationCount() {
+        return feeds.size();
+    }
+
+    public long uploads() {
+        return uploads.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    // How long after its due time each upload was written; grows once the senders cannot keep up
+    public LatencyHistogram lateMicros() {
+        return lateMicros;
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        for (Thread sender : senders) {
+            sender.interrupt();
+        }
+        for (Thread sender : senders) {
+            try {
+                sender.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void send() {
+        List<Feed> batch = new ArrayList<>(PIPELINE_DEPTH);
+        List<WeatherHttpClient.Request> requests = new ArrayList<>(PIPELINE_DEPTH);
+        try (WeatherHttpClient client = new WeatherHttpClient(host, port)) {
+            while (running) {
+                batch.add(due.take());
+                due.drainTo(batch, PIPELINE_DEPTH - 1);
+                long now = System.nanoTime();
+                for (Feed feed : batch) {
+                    lateMicros.recordValue(Math.max(0, now - feed.dueNanos) / 1000);
+                    requests.add(new WeatherHttpClient.Request("PUT", "/weather.json", feed.body)
+                            .header("Content-Type", "application/json")
+                            .header("Lamport-Clock", String.valueOf(feed.lamportClock + 1)));
+                }
+                try {
+                    List<WeatherProtocol.Response> responses = client.pipeline(requests);
+                    for (int i = 0; i < batch.size(); i++) {
+                        observe(batch.get(i), responses.get(i));
+                    }
+                } catch (WeatherHttpClient.PipelineException e) {
+                    List<WeatherProtocol.Response> answered = e.answered();
+                    for (int i = 0; i < answered.size(); i++) {
+                        observe(batch.get(i), answered.get(i));
+                    }
+                    failures.add(batch.size() - answered.size());
+                } catch (IOException e) {
+                    failures.add(batch.size());
+                }
+                for (Feed feed : batch) {
+                    feed.dueNanos = Math.max(feed.dueNanos + feed.intervalNanos, now + feed.retryAfterNanos);
+                    feed.retryAfterNanos = 0;
+                    due.add(feed);
+                }
+                batch.clear();
+                requests.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closing
+        }
+    }
+
+    private void observe(Feed feed, WeatherProtocol.Response response) {
+        long clock = feed.lamportClock + 1;
+        String serverClock = response.headers.get(WeatherProtocol.LAMPORT_HEADER);
+        if (serverClock != null) {
+            try {
+                clock = Math.max(clock, Long.parseLong(serverClock.trim()));
+            } catch (NumberFormatException ignored) {
+                // Keep our own clock if the server sent something unexpected
+            }
+        }
+        feed.lamportClock = clock;
+        if (response.status == 200 || response.status == 201) {
+            uploads.increment();
+        } else {
+            failures.increment();
+            feed.retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(WeatherProtocol.retryAfterMillis(response));
+        }
+    }
+
+    private static byte[] encode(Map<String, String> reading, String stationId) {
+        Map<String, String> fields = reading;
+        if (!stationId.equals(reading.get("id"))) {
+            fields = new LinkedHashMap<>(reading);
+            fields.put("id", stationId);
+        }
+        StringBuilder json = new StringBuilder(512);
+        WeatherProtocol.appendRecord(json, fields);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
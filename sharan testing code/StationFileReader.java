@@ -0,0 +1,64 @@
+package com.weather.app;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a content-server data file ("key:value" per line, each station starting with an "id" line)
+ * into station records, and splits them into upload batches.
+ */
+public final class StationFileReader {
+
+    private StationFileReader() {
+    }
+
+    public static List<Map<String, String>> readRecords(Path file) throws IOException {
+        List<Map<String, String>> records = new ArrayList<>();
+        Map<String, String> current = null;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Map<String, String> next = applyLine(line, current);
+                if (next != current) {
+                    records.add(next);
+                    current = next;
+                }
+            }
+        }
+        return records;
+    }
+
+    // Add one line to current; returns a new record when the line starts a station, current otherwise
+    static Map<String, String> applyLine(String line, Map<String, String> current) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            return current; // Blank or malformed line
+        }
+        String key = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        if (key.equals("id") || current == null) {
+            current = new LinkedHashMap<>();
+        }
+        current.put(key, value);
+        return current;
+    }
+
+    // Split records into consecutive batches of at most batchSize, each sent as one PUT
+    public static List<List<Map<String, String>>> batches(List<Map<String, String>> records, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        List<List<Map<String, String>>> batches = new ArrayList<>();
+        for (int i = 0; i < records.size(); i += batchSize) {
+            batches.add(new ArrayList<>(records.subList(i, Math.min(records.size(), i + batchSize))));
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,202 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tails a content-server data file (the StationFileReader format) instead of re-reading it for every send.
+ *
+ * Each call reads only the bytes appended since the last one, from a FileChannel position, and returns
+ * the stations whose record differs from what was last returned for them, so a content server sends
+ * nothing when the file has not changed and one record when one station was appended. A line is used
+ * once its newline has been written, and a station once its record is complete: when the next "id" line
+ * starts another one, or, for the last station in the file, when a read finds the file has not grown
+ * since the previous read and ends on a newline. A record still being written is therefore not sent
+ * half done. If the file shrinks or is replaced, it is read again from the start and still only changed
+ * stations are returned.
+ *
+ * awaitChanges() blocks on a WatchService for the file's directory; its timeout doubles as a poll
+ * interval on platforms where WatchService itself polls. While the last record waits to be confirmed it
+ * reads again after SETTLE_MILLIS without a change rather than waiting out the whole timeout.
+ */
+public class StationFileTailer implements AutoCloseable {
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    // Quiet time after which a last record that ends on a newline is taken as complete
+    private static final long SETTLE_MILLIS = 50;
+
+    private final Path file;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+    // Last record returned per station
+    private final Map<String, Map<String, String>> sent = new HashMap<>();
+    private WatchService watcher;
+    private Object fileKey;
+    private long position;
+    // Bytes of a line whose newline has not been written yet
+    private byte[] partial = new byte[256];
+    private int partialLength;
+    // Record of the station whose lines were read last; complete once another starts or the file settles
+    private Map<String, String> current;
+    // current has been returned as complete and no line has been added to it since
+    private boolean currentReturned;
+    private long bytesRead;
+    private long unchangedSkipped;
+
+    public StationFileTailer(Path file) {
+        this.file = file.toAbsolutePath();
+    }
+
+    // Stations added or changed since the last call; the first call returns every station in the file
+    // except the last, which the next call returns if the file has not grown meanwhile
+    public synchronized List<Map<String, String>> readChanges() throws IOException {
+        Map<String, Map<String, String>> touched = new LinkedHashMap<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Object key = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+            long size = channel.size();
+            if (size < position || (key != null && fileKey != null && !key.equals(fileKey))) {
+                restart(); // Truncated or replaced
+            }
+            fileKey = key;
+            boolean grew = position < size;
+            while (position < size) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+                bytesRead += n;
+                buffer.flip();
+                consume(touched);
+            }
+            if (!grew && partialLength == 0) {
+                completeCurrent(touched); // Nothing appended since the last read: the writer is done with it
+            }
+        } catch (NoSuchFileException e) {
+            return List.of(); // Not written yet, or between a delete and a rename
+        }
+
+        List<Map<String, String>> changes = new ArrayList<>(touched.size());
+        for (Map.Entry<String, Map<String, String>> entry : touched.entrySet()) {
+            if (entry.getValue().equals(sent.get(entry.getKey()))) {
+                unchangedSkipped++;
+                continue;
+            }
+            Map<String, String> copy = new LinkedHashMap<>(entry.getValue()); // The open record may still grow
+            sent.put(entry.getKey(), copy);
+            changes.add(copy);
+        }
+        return changes;
+    }
+
+    // Wait up to timeoutMillis for the file to change; returns the changed stations, empty on timeout
+    public List<Map<String, String>> awaitChanges(long timeoutMillis) throws IOException, InterruptedException {
+        List<Map<String, String>> changes = readChanges();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (changes.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            WatchKey key;
+            try {
+                long wait = awaitingCompletion() ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS)) : remaining;
+                key = watcher().poll(wait, TimeUnit.NANOSECONDS);
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            if (key != null) {
+                key.pollEvents(); // Any event in the directory just prompts a read; readChanges() finds out what
+                key.reset();
+            }
+            changes = readChanges();
+        }
+        return changes;
+    }
+
+    // Bytes read from the file so far, restarts included
+    public synchronized long bytesRead() {
+        return bytesRead;
+    }
+
+    // Stations whose lines were read again but came out the same as last sent
+    public synchronized long unchangedSkipped() {
+        return unchangedSkipped;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private synchronized boolean awaitingCompletion() {
+        return current != null && !currentReturned;
+    }
+
+    private synchronized WatchService watcher() throws IOException {
+        if (watcher == null) {
+            watcher = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        return watcher;
+    }
+
+    private void consume(Map<String, Map<String, String>> touched) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b != '\n') {
+                if (partialLength == partial.length) {
+                    partial = Arrays.copyOf(partial, partial.length * 2);
+                }
+                partial[partialLength++] = b;
+                continue;
+            }
+            int length = partialLength > 0 && partial[partialLength - 1] == '\r' ? partialLength - 1 : partialLength;
+            String line = new String(partial, 0, length, StandardCharsets.UTF_8);
+            partialLength = 0;
+            Map<String, String> next = StationFileReader.applyLine(line, current);
+            if (next != current) {
+                completeCurrent(touched); // The next station starts, so the previous record is whole
+                current = next;
+            }
+            currentReturned = false;
+        }
+    }
+
+    private void completeCurrent(Map<String, Map<String, String>> touched) {
+        String stationId = current == null ? null : current.get("id");
+        if (stationId != null && !currentReturned) {
+            touched.put(stationId, current);
+        }
+        currentReturned = true;
+    }
+
+    private void restart() {
+        position = 0;
+        partialLength = 0;
+        current = null;
+        currentReturned = false;
+    }
+}
@@ -0,0 +1,64 @@
+package com.weather.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One station's latest reading as held by the AggregationServer, stamped with the Lamport clock
+ * the server assigned when it applied the update. Records are immutable, so the JSON encoding is
+ * computed once and reused by every GET until the station is updated again.
+ *
+ * An expiry record (see StationExpiry) carries no fields: applied to a store it drops the station,
+ * unless the station has been updated since the reading it expires.
+ */
+public final class StationRecord {
+
+    public final String stationId;
+    public final Map<String, String> fields;
+    public final long lamportClock;
+    public final long receivedAtMillis;
+    // For an expiry record, the clock of the reading it expires; -1 for a reading
+    public final long expiredClock;
+    private volatile byte[] json;
+
+    public StationRecord(String stationId, Map<String, String> fields, long lamportClock, long receivedAtMillis) {
+        this(stationId, fields, lamportClock, receivedAtMillis, -1);
+    }
+
+    // A reading whose feed encoding is already known, e.g. written by WeatherJsonWriter from the PUT's own bytes
+    StationRecord(String stationId, Map<String, String> fields, long lamportClock, long receivedAtMillis, byte[] json) {
+        this(stationId, fields, lamportClock, receivedAtMillis, -1);
+        this.json = json; // null: encoded from fields when first served
+    }
+
+    private StationRecord(String stationId, Map<String, String> fields, long lamportClock, long receivedAtMillis,
+                          long expiredClock) {
+        this.stationId = stationId;
+        this.fields = Collections.unmodifiableMap(fields);
+        this.lamportClock = lamportClock;
+        this.receivedAtMillis = receivedAtMillis;
+        this.expiredClock = expiredClock;
+    }
+
+    // Drops stationId if its latest reading is still the one stamped expiredClock; lamportClock orders the expiry itself
+    public static StationRecord expiry(String stationId, long expiredClock, long lamportClock, long atMillis) {
+        return new StationRecord(stationId, Collections.emptyMap(), lamportClock, atMillis, expiredClock);
+    }
+
+    public boolean isExpiry() {
+        return expiredClock >= 0;
+    }
+
+    // Encoded JSON object for the GET feed; racing threads may both encode, with the same result
+    public byte[] json() {
+        byte[] encoded = json;
+        if (encoded == null) {
+            StringBuilder sb = new StringBuilder(256);
+            WeatherProtocol.appendRecord(sb, fields);
+            encoded = sb.toString().getBytes(StandardCharsets.UTF_8);
+            json = encoded;
+        }
+        return encoded;
+    }
+}
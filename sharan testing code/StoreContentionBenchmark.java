@@ -0,0 +1,116 @@
+package com.weather.app;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Store write throughput at 1-64 writer threads, each updating its own stations, with and without a
+ * reader continuously building the GET feed. A single-lock map is run alongside as the baseline.
+ *
+ * Usage: StoreContentionBenchmark [secondsPerRun] [stationsPerWriter]
+ */
+public class StoreContentionBenchmark {
+
+    private static final int[] WRITER_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    // What a writer does to the store under test
+    private interface Store {
+        void put(StationRecord record);
+
+        Object read();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int stationsPerWriter = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        Map<String, String> fields = new HashMap<>();
+        fields.put("air_temp", "13.3");
+
+        for (int writers : WRITER_COUNTS) {
+            for (boolean withReader : new boolean[]{false, true}) {
+                WeatherStore weatherStore = new WeatherStore();
+                run("striped", weatherStore(weatherStore), writers, withReader, seconds, stationsPerWriter, fields);
+                run("single-lock", singleLockStore(), writers, withReader, seconds, stationsPerWriter, fields);
+            }
+        }
+    }
+
+    private static Store weatherStore(WeatherStore store) {
+        return new Store() {
+            public void put(StationRecord record) {
+                store.put(record);
+            }
+
+            public Object read() {
+                return store.feedBuffer();
+            }
+        };
+    }
+
+    // The previous design: every operation takes the same monitor
+    private static Store singleLockStore() {
+        Map<String, StationRecord> map = new HashMap<>();
+        return new Store() {
+            public synchronized void put(StationRecord record) {
+                StationRecord current = map.get(record.stationId);
+                if (current == null || current.lamportClock <= record.lamportClock) {
+                    map.put(record.stationId, record);
+                }
+            }
+
+            public synchronized Object read() {
+                StringBuilder sb = new StringBuilder("[");
+                for (StationRecord record : map.values()) {
+                    WeatherProtocol.appendRecord(sb, record.fields);
+                }
+                return sb.append(']').toString();
+            }
+        };
+    }
+
+    private static void run(String name, Store store, int writers, boolean withReader, int seconds,
+                            int stationsPerWriter, Map<String, String> fields) throws InterruptedException {
+        LongAdder writes = new LongAdder();
+        LongAdder reads = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(writers + (withReader ? 1 : 0));
+
+        for (int w = 0; w < writers; w++) {
+            String[] ids = new String[stationsPerWriter];
+            for (int i = 0; i < stationsPerWriter; i++) {
+                ids[i] = "writer" + w + "_station" + i;
+            }
+            new Thread(() -> {
+                long clock = 0;
+                while (running.get()) {
+                    store.put(new StationRecord(ids[(int) (clock % ids.length)], fields, ++clock, 0L));
+                    writes.increment();
+                }
+                done.countDown();
+            }).start();
+        }
+        if (withReader) {
+            new Thread(() -> {
+                while (running.get()) {
+                    store.read();
+                    reads.increment();
+                }
+                done.countDown();
+            }).start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        done.await();
+
+        System.out.println(String.format(Locale.ROOT,
+                "{\"store\":\"%s\",\"writers\":%d,\"reader\":%b,\"writesPerSecond\":%.0f,\"readsPerSecond\":%.1f}",
+                name, writers, withReader, writes.sum() / (double) seconds, reads.sum() / (double) seconds));
+    }
+}
@@ -0,0 +1,224 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classic blocking engine: one platform thread per accepted connection.
+ * A connection that sends "Connection: keep-alive" stays open for further (possibly pipelined) requests.
+ * An event-stream subscriber keeps its thread, which blocks waiting for frames and writes them out.
+ */
+public class ThreadPerConnectionEngine implements ConnectionEngine {
+
+    private static final int KEEP_ALIVE_TIMEOUT_MS = 30000;
+    private static final long HEARTBEAT_INTERVAL_MS = 15000;
+
+    private final int port;
+    private final RequestHandler handler;
+    private final ExecutorService connectionPool = Executors.newCachedThreadPool();
+    // Open connections, closed on stop() so that a stopped server really goes away for its clients
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+
+    public ThreadPerConnectionEngine(int port, RequestHandler handler) {
+        this.port = port;
+        this.handler = handler;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptThread = new Thread(this::acceptLoop, "blocking-accept-" + port);
+        acceptThread.start();
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+        connectionPool.shutdownNow();
+        for (Socket socket : openSockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                openSockets.add(socket);
+                try {
+                    connectionPool.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    // Accepted just as the engine was stopped
+                    openSockets.remove(socket);
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Serve requests on one connection; keeps going while the client asks for keep-alive
+    private void serve(Socket socket) {
+        handler.connectionOpened();
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true); // Head and body go out as separate writes
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[4096];
+            int length = 0;
+
+            while (true) {
+                WeatherProtocol.Response response;
+                boolean keepAlive = false;
+                int consumed = length;
+                try {
+                    // Read until the end of the headers
+                    WeatherProtocol.Request request;
+                    while ((request = WeatherProtocol.parseHead(buffer, length)) == null) {
+                        if (length == buffer.length) {
+                            if (length >= WeatherProtocol.MAX_HEAD_SIZE) {
+                                throw new IllegalArgumentException("Request head too large");
+                            }
+                            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        }
+                        int n = in.read(buffer, length, buffer.length - length);
+                        if (n < 0) {
+                            return;
+                        }
+                        length += n;
+                    }
+
+                    // Then read exactly Content-Length body bytes; anything after belongs to the next request
+                    int contentLength = request.contentLength();
+                    if (contentLength > WeatherProtocol.MAX_BODY_SIZE) {
+                        // Refused before the body is read; the stream cannot be framed past it, so the connection ends
+                        writeResponse(out, WeatherProtocol.payloadTooLarge(), false);
+                        return;
+                    }
+                    int requestEnd = request.bodyOffset + contentLength;
+                    if (buffer.length < requestEnd) {
+                        buffer = Arrays.copyOf(buffer, requestEnd);
+                    }
+                    while (length < requestEnd) {
+                        int n = in.read(buffer, length, buffer.length - length);
+                        if (n < 0) {
+                            return;
+                        }
+                        length += n;
+                    }
+                    byte[] body = Arrays.copyOfRange(buffer, request.bodyOffset, requestEnd);
+                    keepAlive = WeatherProtocol.isKeepAlive(request);
+                    consumed = requestEnd;
+                    response = handler.handle(request, body);
+                } catch (IllegalArgumentException e) {
+                    response = new WeatherProtocol.Response(400, "Bad Request", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                } catch (RuntimeException e) {
+                    System.err.println("Request failed: " + e);
+                    response = WeatherProtocol.serverError(e);
+                }
+
+                if (response.stream != null) {
+                    stream(out, response);
+                    return;
+                }
+                writeResponse(out, response, keepAlive);
+                if (!keepAlive) {
+                    return;
+                }
+
+                // Shift any pipelined bytes to the front and wait for the next request
+                System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+                length -= consumed;
+                s.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection, just close it
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                System.err.println("Connection error: " + e.getMessage());
+            }
+        } finally {
+            openSockets.remove(socket);
+            handler.connectionClosed();
+        }
+    }
+
+    // Head, then the body straight from its buffer, which may be shared with other responses
+    private static void writeResponse(OutputStream out, WeatherProtocol.Response response, boolean keepAlive)
+            throws IOException {
+        if (!response.body.hasArray()) {
+            out.write(response.encode(keepAlive));
+        } else {
+            out.write(response.encodeHead(keepAlive));
+            write(out, response.body);
+        }
+        out.flush();
+    }
+
+    // Write the subscriber's frames as they are published until it is dropped or the client goes away
+    private static void stream(OutputStream out, WeatherProtocol.Response response) {
+        UpdateBroadcaster.Subscriber subscriber = response.stream;
+        try {
+            out.write(response.encodeHead(false));
+            while (true) {
+                ByteBuffer frame = subscriber.take(HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (subscriber.isClosed()) {
+                    return; // Dropped as a slow consumer
+                }
+                if (frame == null) {
+                    out.write(subscriber.heartbeat()); // Also how a vanished client is noticed
+                } else {
+                    write(out, frame);
+                }
+            }
+        } catch (IOException e) {
+            // Subscriber disconnected
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscriber.close();
+        }
+    }
+
+    private static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.weather.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: LEVELS wheels of SLOTS slots, where one slot of a level spans a whole turn
+ * of the level below. An entry goes into the coarsest level that can tell its deadline apart and is moved
+ * one level down each time that level's slot comes round, so scheduling is O(1) and each entry is
+ * touched at most LEVELS times before it fires, however many entries are waiting. Deadlines are rounded
+ * up to whole ticks; ones further out than the top level can hold wait in its last slot and are placed
+ * again when it turns.
+ *
+ * Not thread-safe: one thread schedules and advances (see StationExpiry).
+ */
+final class TimingWheel<T> {
+
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static final class Entry<T> {
+        final T item;
+        final long deadlineTick;
+
+        Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long tickMillis;
+    // Level l, slot s at index l * SLOTS + s
+    private final List<List<Entry<T>>> slots = new ArrayList<>(LEVELS * SLOTS);
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    // Fire item on the first advance to deadlineMillis or later; a deadline already past fires on the next tick
+    void schedule(T item, long deadlineMillis) {
+        long deadlineTick = Math.max(Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis), currentTick + 1);
+        place(new Entry<>(item, deadlineTick));
+        size++;
+    }
+
+    // Move time forward to nowMillis, handing every entry that came due to expired in deadline order
+    void advance(long nowMillis, Consumer<T> expired) {
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            if (size == 0) {
+                currentTick = targetTick;
+                return;
+            }
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+                }
+            }
+            int index = (int) (currentTick & SLOT_MASK);
+            List<Entry<T>> due = slots.get(index);
+            if (!due.isEmpty()) {
+                slots.set(index, new ArrayList<>());
+                size -= due.size();
+                for (Entry<T> entry : due) {
+                    expired.accept(entry.item);
+                }
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.deadlineTick - currentTick;
+        long position = entry.deadlineTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (delta >= 1L << (SLOT_BITS * LEVELS)) {
+            position = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        slots.get(level * SLOTS + (int) ((position >>> (SLOT_BITS * level)) & SLOT_MASK)).add(entry);
+    }
+
+    // Redistribute one slot of a coarser level into the levels below it
+    private void cascade(int level, int slot) {
+        int index = level * SLOTS + slot;
+        List<Entry<T>> entries = slots.get(index);
+        if (entries.isEmpty()) {
+            return;
+        }
+        slots.set(index, new ArrayList<>());
+        for (Entry<T> entry : entries) {
+            place(entry);
+        }
+    }
+}
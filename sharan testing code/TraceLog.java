@@ -0,0 +1,214 @@
+package com.weather.app;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Optional binary trace of how the server assigned clocks and applied updates, checked afterwards by
+ * TraceVerifier.
+ *
+ * Three kinds of entries are traced: a receive (the clock a request carried and the clock the server
+ * assigned to the update, in assignment order), an apply (a record's clock, the clock the station held
+ * before and whether the record replaced it, traced inside the store's per-station update so entries for
+ * one station are in apply order) and a remove (expiry or shard hand-over).
+ *
+ * Writers take the next sequence number with one atomic increment, fill that slot of a fixed ring and
+ * publish it; they never wait. If the flusher is a whole ring behind, the entry is dropped: its sequence
+ * number is set aside instead of published, and the flusher writes a marker at exactly that point, so the
+ * verifier knows where the trace has a gap. A single flusher thread writes the ring to the file in
+ * sequence order.
+ *
+ * File: "WTRC", version, then entries:
+ *   1 receive: received clock, assigned clock
+ *   2 apply:   clock, previous clock (-1 if none), replaced (byte), station id (u16 length + UTF-8)
+ *   3 remove:  up-to clock, previous clock (-1 if none), removed (byte), station id
+ *   4 dropped: entries lost here
+ */
+public final class TraceLog implements AutoCloseable {
+
+    static final String TRACE_FLAG = "--trace=";
+    static final int MAGIC = 0x57545243; // "WTRC"
+    static final int VERSION = 1;
+    static final byte RECEIVE = 1;
+    static final byte APPLY = 2;
+    static final byte REMOVE = 3;
+    static final byte DROPPED = 4;
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final int mask;
+    private final byte[] kinds;
+    private final long[] firstClocks;
+    private final long[] secondClocks;
+    private final boolean[] flags;
+    private final String[] stationIds;
+    // Sequence last published in each slot; a slot is readable once it holds the sequence being read
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long flushed;
+    // Sequence numbers taken by dropped entries, until the flusher reaches them
+    private final Set<Long> droppedSequences = ConcurrentHashMap.newKeySet();
+    private final LongAdder dropped = new LongAdder();
+    private final DataOutputStream out;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public TraceLog(Path file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    // capacity: entries the ring holds, rounded up to a power of two
+    public TraceLog(Path file, int capacity) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        kinds = new byte[size];
+        firstClocks = new long[size];
+        secondClocks = new long[size];
+        flags = new boolean[size];
+        stationIds = new String[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        flusher = new Thread(this::flushLoop, "trace-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // A trace log for a --trace=<file> argument, or null when absent
+    static TraceLog fromArgs(String[] args) throws IOException {
+        for (String arg : args) {
+            if (arg.startsWith(TRACE_FLAG)) {
+                return new TraceLog(Path.of(arg.substring(TRACE_FLAG.length())));
+            }
+        }
+        return null;
+    }
+
+    void receive(long receivedClock, long assignedClock) {
+        record(RECEIVE, receivedClock, assignedClock, false, null);
+    }
+
+    void apply(String stationId, long clock, long previousClock, boolean replaced) {
+        record(APPLY, clock, previousClock, replaced, stationId);
+    }
+
+    void remove(String stationId, long upToClock, long previousClock, boolean removed) {
+        record(REMOVE, upToClock, previousClock, removed, stationId);
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    // Write out everything traced so far and close the file
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+
+    private void record(byte kind, long first, long second, boolean flag, String stationId) {
+        long sequence = claimed.getAndIncrement();
+        if (sequence - flushed > mask) {
+            // A whole ring behind: lose the entry rather than stall the update, but keep its place
+            dropped.increment();
+            droppedSequences.add(sequence);
+            return;
+        }
+        int slot = (int) sequence & mask;
+        kinds[slot] = kind;
+        firstClocks[slot] = first;
+        secondClocks[slot] = second;
+        flags[slot] = flag;
+        stationIds[slot] = stationId;
+        published.set(slot, sequence); // Makes the plain writes above visible to the flusher
+    }
+
+    private void flushLoop() {
+        long next = 0;
+        long gap = 0;
+        try {
+            while (true) {
+                boolean stopping = !running;
+                long end = claimed.get();
+                while (next < end) {
+                    int slot = (int) next & mask;
+                    // Claimed but still being filled, unless it was dropped
+                    while (published.get(slot) != next) {
+                        if (droppedSequences.remove(next)) {
+                            break;
+                        }
+                        Thread.onSpinWait();
+                    }
+                    if (published.get(slot) != next) {
+                        gap++;
+                    } else {
+                        if (gap > 0) {
+                            writeGap(gap);
+                            gap = 0;
+                        }
+                        write(slot);
+                        stationIds[slot] = null;
+                    }
+                    next++;
+                    if ((next & 1023) == 0) {
+                        flushed = next; // Hand slots back in chunks rather than per entry
+                    }
+                }
+                flushed = next;
+                if (stopping) {
+                    if (gap > 0) {
+                        writeGap(gap);
+                    }
+                    out.flush();
+                    return;
+                }
+                if (claimed.get() == next) {
+                    out.flush();
+                    LockSupport.parkNanos(1_000_000);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Trace log write failed, tracing stopped: " + e.getMessage());
+            flushed = Long.MIN_VALUE / 2; // Every later entry is dropped
+        }
+    }
+
+    private void writeGap(long entries) throws IOException {
+        out.writeByte(DROPPED);
+        out.writeLong(entries);
+    }
+
+    private void write(int slot) throws IOException {
+        byte kind = kinds[slot];
+        out.writeByte(kind);
+        out.writeLong(firstClocks[slot]);
+        out.writeLong(secondClocks[slot]);
+        if (kind != RECEIVE) {
+            out.writeByte(flags[slot] ? 1 : 0);
+            byte[] id = stationIds[slot].getBytes(StandardCharsets.UTF_8);
+            out.writeShort(id.length);
+            out.write(id);
+        }
+    }
+}
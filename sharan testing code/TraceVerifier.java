@@ -0,0 +1,207 @@
+package com.weather.app;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays a TraceLog file and checks that the server's clocks and applies are consistent.
+ *
+ * Receives: every assigned clock must be above the clock the request carried (the Lamport receive rule)
+ * and above every clock assigned before it. Applies and removes are followed per station in the order
+ * they took effect: each must find the station at the clock the previous one left it, a record must
+ * replace the held one exactly when its clock is not lower, and a remove must happen exactly when the
+ * held clock is at or below its bound. An apply whose clock was only assigned later in the trace was
+ * applied before the server received it. Applies with no receive at all came from replication or a
+ * shard hand-over and are only counted. After a dropped-entries marker, station history starts over.
+ *
+ * Usage: TraceVerifier <traceFile>
+ */
+public final class TraceVerifier {
+
+    // Violations listed in full; beyond this only the counts grow
+    private static final int MAX_EXAMPLES = 10;
+
+    public static final class Result {
+        public long receives;
+        public long applies;
+        public long removes;
+        public long droppedEntries;
+        public long withoutReceive;
+        public long elapsedNanos;
+        public final Map<String, Long> violations = new LinkedHashMap<>();
+        public final List<String> examples = new ArrayList<>();
+
+        public boolean consistent() {
+            return violations.isEmpty();
+        }
+
+        public long entries() {
+            return receives + applies + removes;
+        }
+
+        void violation(String kind, String detail) {
+            violations.merge(kind, 1L, Long::sum);
+            if (examples.size() < MAX_EXAMPLES) {
+                examples.add(kind + ": " + detail);
+            }
+        }
+    }
+
+    private TraceVerifier() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceVerifier <traceFile>");
+            return;
+        }
+        print(verify(Path.of(args[0])));
+    }
+
+    public static void print(Result result) {
+        System.out.println("\n--- Trace Verification ---");
+        System.out.println("Entries: " + result.entries() + " (" + result.receives + " receives, " + result.applies
+                + " applies, " + result.removes + " removes), dropped while tracing: " + result.droppedEntries);
+        System.out.println("Applies Without A Receive (replicated or handed over): " + result.withoutReceive);
+        System.out.println("Verified At: " + (long) (result.entries() / Math.max(1e-9, result.elapsedNanos / 1e9))
+                + " entries/s");
+        for (Map.Entry<String, Long> violation : result.violations.entrySet()) {
+            System.out.println("Violation: " + violation.getKey() + " x" + violation.getValue());
+        }
+        for (String example : result.examples) {
+            System.out.println("  " + example);
+        }
+        System.out.println(result.consistent() ? "Lamport ordering: CONSISTENT" : "Lamport ordering: VIOLATED");
+    }
+
+    public static Result verify(Path traceFile) throws IOException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        // Assigned clocks in trace order; increasing unless an assignment-order violation was found
+        long[] assigned = new long[1024];
+        int assignedCount = 0;
+        long lastAssigned = Long.MIN_VALUE;
+        boolean assignedSorted = true;
+        // Clock each station was left at (-1 when absent), since the last gap
+        Map<String, long[]> held = new HashMap<>();
+        long[] unmatched = new long[256];
+        int unmatchedCount = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(traceFile), 1 << 20))) {
+            if (in.readInt() != TraceLog.MAGIC || in.readInt() != TraceLog.VERSION) {
+                throw new IOException("Not a version " + TraceLog.VERSION + " trace file: " + traceFile);
+            }
+            byte[] idBuffer = new byte[256];
+            while (true) {
+                int kind;
+                try {
+                    kind = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (kind == TraceLog.DROPPED) {
+                    result.droppedEntries += in.readLong();
+                    held.clear();
+                    continue;
+                }
+                long first = in.readLong();
+                long second = in.readLong();
+                if (kind == TraceLog.RECEIVE) {
+                    result.receives++;
+                    if (second <= first) {
+                        result.violation("assigned clock not above received clock", "received " + first + ", assigned " + second);
+                    }
+                    if (second <= lastAssigned) {
+                        result.violation("clock assigned out of order", second + " after " + lastAssigned);
+                        assignedSorted = false;
+                    }
+                    lastAssigned = Math.max(lastAssigned, second);
+                    if (assignedCount == assigned.length) {
+                        assigned = Arrays.copyOf(assigned, assigned.length * 2);
+                    }
+                    assigned[assignedCount++] = second;
+                    continue;
+                }
+                if (kind != TraceLog.APPLY && kind != TraceLog.REMOVE) {
+                    throw new IOException("Unknown trace entry kind " + kind);
+                }
+                boolean flag = in.readByte() != 0;
+                int idLength = in.readUnsignedShort();
+                if (idLength > idBuffer.length) {
+                    idBuffer = new byte[idLength];
+                }
+                in.readFully(idBuffer, 0, idLength);
+                String stationId = new String(idBuffer, 0, idLength, StandardCharsets.UTF_8);
+
+                long[] station = held.get(stationId);
+                if (station != null && station[0] != second) {
+                    result.violation("update lost or reordered", stationId + " expected at " + station[0]
+                            + " but found at " + second);
+                }
+                if (station == null) {
+                    station = new long[1];
+                    held.put(stationId, station);
+                }
+                if (kind == TraceLog.APPLY) {
+                    result.applies++;
+                    boolean shouldReplace = second < 0 || second <= first;
+                    if (flag != shouldReplace) {
+                        result.violation(flag ? "older reading replaced a newer one" : "newer reading discarded",
+                                stationId + " held " + second + ", got " + first);
+                    }
+                    station[0] = flag ? first : second;
+                    boolean received = assignedSorted
+                            ? Arrays.binarySearch(assigned, 0, assignedCount, first) >= 0
+                            : contains(assigned, assignedCount, first);
+                    if (!received) {
+                        if (unmatchedCount == unmatched.length) {
+                            unmatched = Arrays.copyOf(unmatched, unmatched.length * 2);
+                        }
+                        unmatched[unmatchedCount++] = first;
+                    }
+                } else {
+                    result.removes++;
+                    boolean shouldRemove = second >= 0 && second <= first;
+                    if (flag != shouldRemove) {
+                        result.violation(flag ? "station removed past its bound" : "stale station kept",
+                                stationId + " held " + second + ", bound " + first);
+                    }
+                    station[0] = flag ? -1 : second;
+                }
+            }
+        }
+
+        // Applies whose clock had not been assigned yet when they were traced
+        long[] allAssigned = Arrays.copyOf(assigned, assignedCount);
+        Arrays.sort(allAssigned);
+        for (int i = 0; i < unmatchedCount; i++) {
+            if (Arrays.binarySearch(allAssigned, unmatched[i]) >= 0) {
+                result.violation("applied before its clock was assigned", "clock " + unmatched[i]);
+            } else {
+                result.withoutReceive++;
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static boolean contains(long[] values, int count, long value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
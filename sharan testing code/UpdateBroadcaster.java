@@ -0,0 +1,267 @@
+package com.weather.app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Pushes applied updates to Server-Sent Events subscribers.
+ *
+ * Each update is encoded once into a frame whose bytes are shared by every subscriber; a subscriber only
+ * holds a view of it. Subscribers buffer at most MAX_QUEUED_BYTES of frames. One that falls further behind
+ * is disconnected rather than slowing the server down or growing without bound; it can reconnect with
+ * Last-Event-ID and is sent what it missed as a delta.
+ *
+ * Frame: "id: <feed version>", "event: update", "data: {"lamport_clock":n,"stations":[...]}". The id is
+ * the feed version (see WeatherRequestHandler), read while holding the publishing lock and before the
+ * frame's own update stops counting as pending, so resuming from it may repeat a station but not skip one.
+ * Stations dropped by StationExpiry are listed by id under "expired"; a frame that only drops stations is
+ * sent as "event: expire". A delta sent on resume does not list stations expired in the meantime.
+ * Other stream formats (the replication log) supply their own encoder and heartbeat.
+ */
+public class UpdateBroadcaster {
+
+    static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    static final byte[] SSE_HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] heartbeat;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final LongAdder framesPublished = new LongAdder();
+    private final LongAdder subscribersDropped = new LongAdder();
+
+    public UpdateBroadcaster() {
+        this(SSE_HEARTBEAT);
+    }
+
+    // heartbeat: bytes an engine may send on an idle stream, valid in the stream's format
+    public UpdateBroadcaster(byte[] heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    // One streaming client: a bounded queue of frame views, drained by the connection engine
+    public static final class Subscriber {
+        private final UpdateBroadcaster owner;
+        // Initial snapshot or delta; sent before any update frame and not counted against the bound
+        private final ArrayDeque<ByteBuffer> backfill = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+        private long queuedBytes;
+        private boolean closed;
+        private Runnable listener;
+
+        private Subscriber(UpdateBroadcaster owner) {
+            this.owner = owner;
+        }
+
+        // Called when the queue goes from empty to non-empty, or when the subscriber is dropped
+        public void onAvailable(Runnable listener) {
+            synchronized (this) {
+                this.listener = listener;
+            }
+        }
+
+        // Next queued buffer, or null if none is waiting
+        public synchronized ByteBuffer poll() {
+            if (!backfill.isEmpty()) {
+                return backfill.poll();
+            }
+            ByteBuffer frame = frames.poll();
+            if (frame != null) {
+                queuedBytes -= frame.remaining();
+            }
+            return frame;
+        }
+
+        // Wait up to timeout for a buffer; null on timeout or once closed
+        public synchronized ByteBuffer take(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (backfill.isEmpty() && frames.isEmpty() && !closed) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait(remaining);
+            }
+            return closed ? null : poll();
+        }
+
+        public byte[] heartbeat() {
+            return owner.heartbeat;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                backfill.clear();
+                frames.clear();
+                notifyAll();
+            }
+            owner.subscribers.remove(this);
+        }
+
+        // Queue the frame that brings the subscriber up to date, ahead of any update already queued
+        void backfill(ByteBuffer... parts) {
+            Runnable notify;
+            synchronized (this) {
+                notify = backfill.isEmpty() && frames.isEmpty() ? listener : null;
+                for (ByteBuffer part : parts) {
+                    backfill.add(part.duplicate());
+                }
+                notifyAll();
+            }
+            if (notify != null) {
+                notify.run();
+            }
+        }
+
+        // Queue the parts of one frame, or drop the subscriber if it is too far behind
+        boolean offer(ByteBuffer... parts) {
+            Runnable notify;
+            boolean accepted;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                long size = 0;
+                for (ByteBuffer part : parts) {
+                    size += part.remaining();
+                }
+                // Always accept a frame into an empty queue, however large
+                accepted = frames.isEmpty() || queuedBytes + size <= MAX_QUEUED_BYTES;
+                if (!accepted) {
+                    closed = true;
+                    backfill.clear();
+                    frames.clear();
+                    notify = listener;
+                } else {
+                    notify = backfill.isEmpty() && frames.isEmpty() ? listener : null;
+                    for (ByteBuffer part : parts) {
+                        frames.add(part.duplicate());
+                    }
+                    queuedBytes += size;
+                }
+                notifyAll();
+            }
+            if (notify != null) {
+                notify.run();
+            }
+            return accepted;
+        }
+    }
+
+    // Register a subscriber; frames published from now on are queued for it
+    public Subscriber subscribe() {
+        Subscriber subscriber = new Subscriber(this);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    // Encode records once and queue the frame for every subscriber, dropping those that cannot keep up
+    public void publish(List<StationRecord> records, long lamportClock, LongSupplier feedVersion) {
+        publish(version -> encodeFrame(records, lamportClock, version), feedVersion);
+    }
+
+    // Same, for a frame in any format; encoder receives the feed version to stamp it with
+    public void publish(LongFunction<byte[]> encoder, LongSupplier feedVersion) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        // Serialize publishers so every subscriber sees frames in the same order, with non-decreasing ids
+        synchronized (this) {
+            ByteBuffer frame = ByteBuffer.wrap(encoder.apply(feedVersion.getAsLong()));
+            for (Subscriber subscriber : subscribers) {
+                if (!subscriber.offer(frame)) {
+                    subscribers.remove(subscriber);
+                    subscribersDropped.increment();
+                }
+            }
+        }
+        framesPublished.increment();
+    }
+
+    // A frame carrying a whole feed (or delta) body, shared rather than copied into the frame
+    static ByteBuffer[] feedFrame(String event, long feedVersion, ByteBuffer feed) {
+        byte[] head = ("id: " + feedVersion + "\nevent: " + event + "\ndata: ").getBytes(StandardCharsets.US_ASCII);
+        return new ByteBuffer[]{ByteBuffer.wrap(head), feed.duplicate(), ByteBuffer.wrap(new byte[]{'\n', '\n'})};
+    }
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    public long framesPublished() {
+        return framesPublished.sum();
+    }
+
+    public long subscribersDropped() {
+        return subscribersDropped.sum();
+    }
+
+    static byte[] encodeFrame(List<StationRecord> records, long lamportClock, long feedVersion) {
+        for (StationRecord record : records) {
+            if (record.isExpiry()) {
+                return encodeExpiryFrame(records, lamportClock, feedVersion);
+            }
+        }
+        byte[] head = ("id: " + feedVersion + "\nevent: update\ndata: {\"lamport_clock\":" + lamportClock
+                + ",\"stations\":[").getBytes(StandardCharsets.US_ASCII);
+        int length = head.length + Math.max(0, records.size() - 1) + 4;
+        for (StationRecord record : records) {
+            length += record.json().length;
+        }
+        byte[] frame = new byte[length];
+        System.arraycopy(head, 0, frame, 0, head.length);
+        int pos = head.length;
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                frame[pos++] = ',';
+            }
+            byte[] json = records.get(i).json();
+            System.arraycopy(json, 0, frame, pos, json.length);
+            pos += json.length;
+        }
+        frame[pos++] = ']';
+        frame[pos++] = '}';
+        frame[pos++] = '\n';
+        frame[pos] = '\n';
+        return frame;
+    }
+
+    // Rare enough that it is not worth sizing the frame up front
+    private static byte[] encodeExpiryFrame(List<StationRecord> records, long lamportClock, long feedVersion) {
+        StringBuilder stations = new StringBuilder();
+        StringBuilder expired = new StringBuilder();
+        for (StationRecord record : records) {
+            if (record.isExpiry()) {
+                if (expired.length() > 0) {
+                    expired.append(',');
+                }
+                WeatherProtocol.appendString(expired, record.stationId);
+            } else {
+                if (stations.length() > 0) {
+                    stations.append(',');
+                }
+                stations.append(new String(record.json(), StandardCharsets.UTF_8));
+            }
+        }
+        StringBuilder frame = new StringBuilder(64 + stations.length() + expired.length())
+                .append("id: ").append(feedVersion)
+                .append("\nevent: ").append(stations.length() == 0 ? "expire" : "update")
+                .append("\ndata: {\"lamport_clock\":").append(lamportClock);
+        if (stations.length() > 0) {
+            frame.append(",\"stations\":[").append(stations).append(']');
+        }
+        frame.append(",\"expired\":[").append(expired).append("]}\n\n");
+        return frame.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
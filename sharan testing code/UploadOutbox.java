@@ -0,0 +1,238 @@
+package com.weather.app;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded outbox for a content server whose AggregationServer is unreachable.
+ *
+ * Readings are held per station and a newer one (by the content server's clock) replaces the one held,
+ * so an outage of any length costs one entry per station. Up to maxMemoryStations stations are held in
+ * memory; readings for further stations are appended to a spill file of at most maxDiskBytes and
+ * coalesced when it is read back, and readings that fit in neither are dropped and counted.
+ *
+ * flush() sends everything held as one JSON array PUT, gzip-compressed once the body is larger than
+ * WeatherProtocol.GZIP_MIN_BYTES. If the send fails the readings go back into the outbox, where readings
+ * taken in the meantime win if they are newer; they were counted when offered, so only a reading that no
+ * longer fits is counted again (as dropped). The spill file is only deleted once it has been read back
+ * whole, so a flush that cannot read it leaves it, and everything else, held for the next one.
+ */
+public class UploadOutbox {
+
+    // How a flush reaches the server, e.g. WeatherHttpClient::send or RetryingWeatherClient::send
+    @FunctionalInterface
+    public interface Transport {
+        WeatherProtocol.Response send(WeatherHttpClient.Request request) throws IOException;
+    }
+
+    private static final class Held {
+        final Map<String, String> reading;
+        final long clock;
+
+        Held(Map<String, String> reading, long clock) {
+            this.reading = reading;
+            this.clock = clock;
+        }
+    }
+
+    private final int maxMemoryStations;
+    private final Path spillPath;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<String, Held> memory = new LinkedHashMap<>();
+    private OutputStream spill;
+    private long spilledBytes;
+    private long offered;
+    private long coalesced;
+    private long dropped;
+    private long bytesSent;
+    private long bytesBeforeCompression;
+
+    // Memory only: readings for stations beyond maxMemoryStations are dropped
+    public UploadOutbox(int maxMemoryStations) {
+        this(maxMemoryStations, null, 0);
+    }
+
+    // spillPath: file for stations beyond maxMemoryStations, kept under maxDiskBytes
+    public UploadOutbox(int maxMemoryStations, Path spillPath, long maxDiskBytes) {
+        if (maxMemoryStations < 1) {
+            throw new IllegalArgumentException("An outbox must hold at least one station");
+        }
+        this.maxMemoryStations = maxMemoryStations;
+        this.spillPath = spillPath;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    // Hold a reading (it must have an "id"); returns false if it was dropped because the outbox is full
+    public synchronized boolean offer(Map<String, String> reading, long clock) {
+        offered++;
+        return hold(reading, clock, true);
+    }
+
+    // Send everything held as one batch; returns how many readings were sent
+    public int flush(Transport transport) throws IOException {
+        Map<String, Held> batch;
+        synchronized (this) {
+            batch = takeAll();
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<Map<String, String>> readings = new ArrayList<>(batch.size());
+        long newestClock = 0;
+        for (Held held : batch.values()) {
+            readings.add(held.reading);
+            newestClock = Math.max(newestClock, held.clock);
+        }
+        byte[] body = WeatherProtocol.toBatchJson(readings).getBytes(StandardCharsets.UTF_8);
+        int rawLength = body.length;
+        WeatherHttpClient.Request request = new WeatherHttpClient.Request("PUT", "/weather.json",
+                body.length > WeatherProtocol.GZIP_MIN_BYTES ? WeatherProtocol.gzip(body) : body)
+                .header("Content-Type", "application/json")
+                .header("Lamport-Clock", String.valueOf(newestClock));
+        if (body.length > WeatherProtocol.GZIP_MIN_BYTES) {
+            request.header("Content-Encoding", WeatherProtocol.GZIP_ENCODING);
+        }
+
+        try {
+            WeatherProtocol.Response response = transport.send(request);
+            if (response.status != 200 && response.status != 201) {
+                throw new IOException("Server answered " + response.status + " " + response.reason);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                for (Held held : batch.values()) {
+                    hold(held.reading, held.clock, false);
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            bytesSent += request.body.length;
+            bytesBeforeCompression += rawLength;
+        }
+        return batch.size();
+    }
+
+    // Stations held in memory; spilled readings are only counted once flushed
+    public synchronized int heldInMemory() {
+        return memory.size();
+    }
+
+    public synchronized long spilledBytes() {
+        return spilledBytes;
+    }
+
+    public synchronized long offered() {
+        return offered;
+    }
+
+    // Readings replaced by a newer one for the same station before being sent
+    public synchronized long coalesced() {
+        return coalesced;
+    }
+
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    // Body bytes sent by successful flushes, and what they would have been uncompressed
+    public synchronized long bytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized long bytesBeforeCompression() {
+        return bytesBeforeCompression;
+    }
+
+    // fresh: a newly offered reading rather than one going back after a failed flush, counted already
+    private boolean hold(Map<String, String> reading, long clock, boolean fresh) {
+        String stationId = reading.get("id");
+        if (stationId == null || stationId.isEmpty()) {
+            throw new IllegalArgumentException("Reading without an id");
+        }
+        Held current = memory.get(stationId);
+        if (current != null) {
+            if (fresh) {
+                coalesced++;
+            }
+            if (current.clock <= clock) {
+                memory.put(stationId, new Held(reading, clock));
+            }
+            return true;
+        }
+        if (memory.size() < maxMemoryStations) {
+            memory.put(stationId, new Held(reading, clock));
+            return true;
+        }
+
+        StringBuilder line = new StringBuilder(128).append(clock).append('\t');
+        WeatherProtocol.appendRecord(line, reading);
+        byte[] bytes = line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        if (spillPath == null || spilledBytes + bytes.length > maxDiskBytes) {
+            dropped++;
+            return false;
+        }
+        try {
+            if (spill == null) {
+                spill = new BufferedOutputStream(Files.newOutputStream(spillPath,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+            }
+            spill.write(bytes);
+            spilledBytes += bytes.length;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Outbox spill failed: " + e.getMessage());
+            dropped++;
+            return false;
+        }
+    }
+
+    // Everything held, spilled readings coalesced in; leaves the outbox empty, or untouched if it throws
+    private Map<String, Held> takeAll() throws IOException {
+        Map<String, Held> all = new LinkedHashMap<>(memory);
+        if (spill != null) {
+            spill.flush();
+            long superseded = 0;
+            try {
+                for (String line : Files.readAllLines(spillPath, StandardCharsets.UTF_8)) {
+                    int tab = line.indexOf('\t');
+                    if (tab < 0) {
+                        continue;
+                    }
+                    long clock = Long.parseLong(line.substring(0, tab));
+                    Map<String, String> reading = WeatherProtocol.parseRecord(line.substring(tab + 1));
+                    Held current = all.get(reading.get("id"));
+                    if (current != null) {
+                        superseded++;
+                    }
+                    if (current == null || current.clock <= clock) {
+                        all.put(reading.get("id"), new Held(reading, clock));
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unreadable outbox spill " + spillPath + ": " + e.getMessage(), e);
+            }
+            // Read back whole: from here on the readings are in the batch, not the file
+            coalesced += superseded;
+            spilledBytes = 0;
+            try {
+                spill.close();
+                Files.deleteIfExists(spillPath);
+            } catch (IOException e) {
+                System.err.println("Could not remove the outbox spill, the next one overwrites it: " + e.getMessage());
+            }
+            spill = null;
+        }
+        memory.clear();
+        return all;
+    }
+}
@@ -0,0 +1,196 @@
+package com.weather.app;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of station records, for PUT bodies sent with Content-Type BINARY_CONTENT_TYPE.
+ *
+ * A body is a sequence of records, each laid out big-endian as:
+ *
+ *   u32 length of the rest of the record
+ *   u32 numeric mask: bit i set if WeatherReading.SCHEMA field i follows as an 8-byte double
+ *   u32 text mask:    bit i set if schema field i follows as u16 length + UTF-8 bytes
+ *   the schema fields named by the masks, in schema order
+ *   u16 count of other fields, then each as key and value, both u16 length + UTF-8 bytes
+ *
+ * Numeric schema fields (lat, air_temp, ...) are sent as doubles only if decoding gives back exactly the
+ * text that was encoded ("60" stays "60", "13.3" stays "13.3"); anything else goes as text, so a record
+ * always decodes to the same values. Decoded records list schema fields first, then the others.
+ */
+public final class WeatherBinaryCodec {
+
+    public static final String BINARY_CONTENT_TYPE = "application/x-weather-binary";
+
+    private static final boolean[] NUMERIC = new boolean[WeatherReading.SCHEMA.length];
+    private static final Map<String, Integer> SCHEMA_INDEX = new LinkedHashMap<>();
+
+    static {
+        for (int field : new int[]{WeatherReading.LAT, WeatherReading.LON, WeatherReading.AIR_TEMP,
+                WeatherReading.APPARENT_T, WeatherReading.DEWPT, WeatherReading.PRESS, WeatherReading.REL_HUM,
+                WeatherReading.WIND_SPD_KMH, WeatherReading.WIND_SPD_KT}) {
+            NUMERIC[field] = true;
+        }
+        for (int i = 0; i < WeatherReading.SCHEMA.length; i++) {
+            SCHEMA_INDEX.put(WeatherReading.SCHEMA[i], i);
+        }
+    }
+
+    private WeatherBinaryCodec() {
+    }
+
+    public static byte[] encode(List<Map<String, String>> records) {
+        ByteBuffer out = ByteBuffer.allocate(256 * Math.max(1, records.size()));
+        String[] schemaValues = new String[WeatherReading.SCHEMA.length];
+        double[] numbers = new double[WeatherReading.SCHEMA.length];
+        for (Map<String, String> record : records) {
+            Arrays.fill(schemaValues, null);
+            int numericMask = 0;
+            int textMask = 0;
+            int others = 0;
+            for (Map.Entry<String, String> field : record.entrySet()) {
+                Integer index = SCHEMA_INDEX.get(field.getKey());
+                if (index == null) {
+                    others++;
+                    continue;
+                }
+                schemaValues[index] = field.getValue();
+                if (NUMERIC[index] && exactNumber(field.getValue(), numbers, index)) {
+                    numericMask |= 1 << index;
+                } else {
+                    textMask |= 1 << index;
+                }
+            }
+
+            out = ensure(out, 12);
+            int start = out.position();
+            out.putInt(0); // Length, filled in below
+            out.putInt(numericMask);
+            out.putInt(textMask);
+            for (int i = 0; i < schemaValues.length; i++) {
+                if ((numericMask & (1 << i)) != 0) {
+                    out = ensure(out, 8);
+                    out.putDouble(numbers[i]);
+                } else if ((textMask & (1 << i)) != 0) {
+                    out = putString(out, schemaValues[i]);
+                }
+            }
+            out = ensure(out, 2);
+            out.putShort((short) others);
+            if (others > 0) {
+                for (Map.Entry<String, String> field : record.entrySet()) {
+                    if (!SCHEMA_INDEX.containsKey(field.getKey())) {
+                        out = putString(out, field.getKey());
+                        out = putString(out, field.getValue());
+                    }
+                }
+            }
+            out.putInt(start, out.position() - start - 4);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    // Records of a binary body; throws IllegalArgumentException if it is malformed
+    public static List<Map<String, String>> decode(byte[] body) {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        List<Map<String, String>> records = new ArrayList<>();
+        try {
+            while (in.hasRemaining()) {
+                int length = in.getInt();
+                if (length < 10 || length > in.remaining()) {
+                    throw new IllegalArgumentException("Bad binary record length " + length);
+                }
+                int end = in.position() + length;
+                int numericMask = in.getInt();
+                int textMask = in.getInt();
+                if ((numericMask & textMask) != 0 || ((numericMask | textMask) >>> WeatherReading.SCHEMA.length) != 0) {
+                    throw new IllegalArgumentException("Bad binary record field mask");
+                }
+                Map<String, String> record = new LinkedHashMap<>();
+                for (int i = 0; i < WeatherReading.SCHEMA.length; i++) {
+                    if ((numericMask & (1 << i)) != 0) {
+                        record.put(WeatherReading.SCHEMA[i], formatNumber(in.getDouble()));
+                    } else if ((textMask & (1 << i)) != 0) {
+                        record.put(WeatherReading.SCHEMA[i], getString(in));
+                    }
+                }
+                int others = in.getShort() & 0xFFFF;
+                for (int i = 0; i < others; i++) {
+                    record.put(getString(in), getString(in));
+                }
+                if (in.position() != end) {
+                    throw new IllegalArgumentException("Binary record length does not match its fields");
+                }
+                records.add(record);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary record");
+        }
+        return records;
+    }
+
+    // Shortest text for a decoded number: whole numbers without ".0"
+    static String formatNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    // Parse text into numbers[index] if it survives the trip through a double unchanged
+    private static boolean exactNumber(String text, double[] numbers, int index) {
+        if (text.isEmpty() || text.length() > 24) {
+            return false;
+        }
+        char first = text.charAt(0);
+        if (first != '-' && (first < '0' || first > '9')) {
+            return false; // Also rules out "NaN", "Infinity" and leading spaces, which parseDouble accepts
+        }
+        try {
+            double value = Double.parseDouble(text);
+            if (!formatNumber(value).equals(text)) {
+                return false;
+            }
+            numbers[index] = value;
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static ByteBuffer putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Field longer than 65535 bytes");
+        }
+        out = ensure(out, 2 + bytes.length);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+        return out;
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Truncated binary field");
+        }
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer out, int bytes) {
+        if (out.remaining() >= bytes) {
+            return out;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+        out.flip();
+        return grown.put(out);
+    }
+}
@@ -0,0 +1,246 @@
+package com.weather.app;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 client for content servers that keeps one connection open across uploads.
+ *
+ * Requests are sent with "Connection: keep-alive" and responses are framed by Content-Length, so
+ * several PUTs can be pipelined on the same socket and read back in order. A connection the server
+ * has closed in the meantime is reopened transparently, and only requests the server cannot have
+ * acted on are sent again.
+ */
+public class WeatherHttpClient implements AutoCloseable {
+
+    private static final int SOCKET_TIMEOUT_MS = 10000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    // One request to send; header names are written as given
+    public static class Request {
+        final String method;
+        final String path;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        final byte[] body;
+
+        public Request(String method, String path, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.body = body == null ? new byte[0] : body;
+        }
+
+        public Request header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    public WeatherHttpClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Requests of a pipeline that may have reached the server but got no response; responses read before
+    // the failure are kept in answered(), in request order
+    public static class PipelineException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final List<WeatherProtocol.Response> answered;
+
+        PipelineException(List<WeatherProtocol.Response> answered, int sent, IOException cause) {
+            super("No response to " + (sent - answered.size()) + " of " + sent + " requests: " + cause.getMessage(), cause);
+            this.answered = answered;
+        }
+
+        public List<WeatherProtocol.Response> answered() {
+            return answered;
+        }
+    }
+
+    // The server closed or reset the connection before it started on the next response, so the requests
+    // from there on were never answered and, by HTTP's rules for a closing server, not acted on either
+    private static class ConnectionDroppedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ConnectionDroppedException(String message) {
+            super(message);
+        }
+    }
+
+    public WeatherProtocol.Response send(Request request) throws IOException {
+        List<Request> single = new ArrayList<>(1);
+        single.add(request);
+        return pipeline(single).get(0);
+    }
+
+    // Write every request before reading any response; responses come back in request order.
+    // Requests the server dropped unanswered (a stale keep-alive connection, or one closed partway through
+    // the pipeline) are sent once more on a fresh connection; after a timeout or a failure partway through a
+    // response they may already have been applied, so they are not resent and a PipelineException says so.
+    public synchronized List<WeatherProtocol.Response> pipeline(List<Request> requests) throws IOException {
+        List<WeatherProtocol.Response> responses = new ArrayList<>(requests.size());
+        try {
+            exchange(requests, responses);
+            return responses;
+        } catch (ConnectionDroppedException e) {
+            close();
+        } catch (IOException e) {
+            close();
+            throw responses.isEmpty() && requests.size() == 1 ? e : new PipelineException(responses, requests.size(), e);
+        }
+        try {
+            exchange(requests.subList(responses.size(), requests.size()), responses);
+            return responses;
+        } catch (IOException e) {
+            close();
+            throw responses.isEmpty() && requests.size() == 1 ? e : new PipelineException(responses, requests.size(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing to do, the connection is gone either way
+            }
+            socket = null;
+        }
+    }
+
+    private void exchange(List<Request> requests, List<WeatherProtocol.Response> responses) throws IOException {
+        boolean reused = socket != null;
+        if (socket == null) {
+            socket = new Socket(host, port);
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (Request request : requests) {
+            batch.write(encode(request));
+        }
+        try {
+            out.write(batch.toByteArray());
+            out.flush();
+        } catch (IOException e) {
+            if (reused) {
+                throw new ConnectionDroppedException("Idle connection closed by server: " + e.getMessage());
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < requests.size(); i++) {
+            WeatherProtocol.Response response;
+            try {
+                response = readResponse();
+            } catch (ConnectionDroppedException e) {
+                if (i == 0 && !reused) {
+                    throw new IOException(e.getMessage()); // A fresh connection did get the requests
+                }
+                throw e;
+            }
+            responses.add(response);
+            if ("close".equalsIgnoreCase(response.headers.get("connection"))) {
+                close();
+                if (i + 1 < requests.size()) {
+                    throw new ConnectionDroppedException("Server closed the connection after " + (i + 1) + " pipelined responses");
+                }
+            }
+        }
+    }
+
+    private byte[] encode(Request request) {
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.method).append(' ').append(request.path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(host).append("\r\n");
+        for (Map.Entry<String, String> h : request.headers.entrySet()) {
+            head.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(request.body.length).append("\r\n");
+        head.append("Connection: keep-alive\r\n\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] bytes = new byte[headBytes.length + request.body.length];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        System.arraycopy(request.body, 0, bytes, headBytes.length, request.body.length);
+        return bytes;
+    }
+
+    // Status line and headers, then exactly Content-Length body bytes; header names are lower-cased
+    private WeatherProtocol.Response readResponse() throws IOException {
+        int first;
+        try {
+            first = in.read();
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (SocketException e) {
+            throw new ConnectionDroppedException("Connection reset before the response: " + e.getMessage());
+        }
+        if (first < 0) {
+            throw new ConnectionDroppedException("Connection closed before the response");
+        }
+        String statusLine = (char) first + readLine();
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+
+        String contentLength = headers.get("content-length");
+        byte[] body = new byte[contentLength == null ? 0 : Integer.parseInt(contentLength)];
+        int read = 0;
+        while (read < body.length) {
+            int n = in.read(body, read, body.length - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed mid-body");
+            }
+            read += n;
+        }
+
+        WeatherProtocol.Response response = new WeatherProtocol.Response(
+                Integer.parseInt(parts[1]), parts.length > 2 ? parts[2] : "", body);
+        response.headers.putAll(headers);
+        return response;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,302 @@
+package com.weather.app;
+
+import java.util.function.Consumer;
+
+/**
+ * Streaming tokenizer for flat weather records that fills a reusable WeatherReading straight from
+ * request bytes. Once the reading's buffers have grown to fit, parsing allocates nothing.
+ *
+ * Only flat objects are accepted (string, number, true/false/null values), as sent by content servers.
+ * Strings are checked as they are scanned (complete escapes, no raw control characters) and literals must
+ * be numbers or true/false/null, so every value can be copied into the GET feed as it was sent.
+ */
+public final class WeatherJsonReader {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    private WeatherJsonReader() {
+    }
+
+    // Parse one JSON object from src[offset, offset + length) into reading; returns the index just past it
+    public static int read(byte[] src, int offset, int length, WeatherReading reading) {
+        reading.reset();
+        int end = offset + length;
+        int pos = skipWhitespace(src, offset, end);
+        pos = expect(src, pos, end, '{');
+        pos = skipWhitespace(src, pos, end);
+        if (pos < end && src[pos] == '}') {
+            return pos + 1;
+        }
+
+        while (true) {
+            pos = skipWhitespace(src, pos, end);
+            pos = expect(src, pos, end, '"');
+            int keyEnd = scanString(src, pos, end);
+            int keyStart = reading.appendText(src, pos, keyEnd - pos);
+            int keyLength = keyEnd - pos;
+            pos = skipWhitespace(src, keyEnd + 1, end);
+            pos = expect(src, pos, end, ':');
+            pos = skipWhitespace(src, pos, end);
+            if (pos >= end) {
+                throw new IllegalArgumentException("Expected a value at " + pos);
+            }
+
+            int valueEnd;
+            boolean isQuoted = src[pos] == '"';
+            if (isQuoted) {
+                pos++;
+                valueEnd = scanString(src, pos, end);
+            } else {
+                valueEnd = scanLiteral(src, pos, end);
+            }
+            int valueStart = reading.appendText(src, pos, valueEnd - pos);
+            int slot = reading.addField(keyStart, keyLength, valueStart, valueEnd - pos, isQuoted);
+
+            int schemaField = schemaIndex(reading.text, keyStart, keyLength);
+            if (schemaField >= 0) {
+                reading.schemaSlot[schemaField] = slot;
+                reading.numbers[schemaField] = parseNumber(src, pos, valueEnd);
+            }
+
+            pos = skipWhitespace(src, isQuoted ? valueEnd + 1 : valueEnd, end);
+            if (pos >= end) {
+                throw new IllegalArgumentException("Unterminated JSON object");
+            }
+            byte c = src[pos++];
+            if (c == '}') {
+                return pos;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException("Expected ',' or '}' at " + (pos - 1));
+            }
+        }
+    }
+
+    // Parse a PUT body of one object, a JSON array of objects, or NDJSON (one object per line), the forms
+    // WeatherProtocol.parseBatch accepts, handing each object to action in the reused reading
+    public static void readBatch(byte[] src, int offset, int length, boolean ndjson, WeatherReading reading,
+                                 Consumer<WeatherReading> action) {
+        int end = offset + length;
+        int pos = skipWhitespace(src, offset, end);
+        if (ndjson) {
+            while (pos < end) {
+                pos = read(src, pos, end - pos, reading);
+                action.accept(reading);
+                while (pos < end && (src[pos] == ' ' || src[pos] == '\t' || src[pos] == '\r')) {
+                    pos++;
+                }
+                if (pos < end && src[pos] != '\n') {
+                    throw new IllegalArgumentException("Expected a new line after the object at " + pos);
+                }
+                pos = skipWhitespace(src, pos, end);
+            }
+            return;
+        }
+        if (pos < end && src[pos] == '[') {
+            pos = skipWhitespace(src, pos + 1, end);
+            if (pos < end && src[pos] == ']') {
+                pos++;
+            } else {
+                while (true) {
+                    pos = read(src, pos, end - pos, reading);
+                    action.accept(reading);
+                    pos = skipWhitespace(src, pos, end);
+                    if (pos >= end) {
+                        throw new IllegalArgumentException("Unterminated JSON array");
+                    }
+                    byte c = src[pos++];
+                    if (c == ']') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw new IllegalArgumentException("Expected ',' or ']' at " + (pos - 1));
+                    }
+                }
+            }
+        } else {
+            pos = read(src, pos, end - pos, reading);
+            action.accept(reading);
+        }
+        if (skipWhitespace(src, pos, end) != end) {
+            throw new IllegalArgumentException("Unexpected content after JSON at " + pos);
+        }
+    }
+
+    private static int schemaIndex(byte[] text, int start, int length) {
+        for (int i = 0; i < WeatherReading.SCHEMA_BYTES.length; i++) {
+            byte[] name = WeatherReading.SCHEMA_BYTES[i];
+            if (name.length == length) {
+                int j = 0;
+                while (j < length && text[start + j] == name[j]) {
+                    j++;
+                }
+                if (j == length) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Index of the closing quote; escapes are checked and skipped over but left in place
+    private static int scanString(byte[] src, int pos, int end) {
+        while (pos < end) {
+            byte c = src[pos];
+            if (c == '"') {
+                return pos;
+            }
+            if (c >= 0 && c < 0x20) {
+                throw new IllegalArgumentException("Control character in string at " + pos);
+            }
+            pos += c == '\\' ? escapeLength(src, pos, end) : 1;
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    // Length of the escape starting with the backslash at pos
+    private static int escapeLength(byte[] src, int pos, int end) {
+        if (pos + 1 >= end) {
+            throw new IllegalArgumentException("Unterminated string");
+        }
+        switch (src[pos + 1]) {
+            case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+                return 2;
+            case 'u':
+                for (int i = pos + 2; i < pos + 6; i++) {
+                    if (i >= end || Character.digit(src[i], 16) < 0) {
+                        throw new IllegalArgumentException("Expected four hex digits after \\u at " + pos);
+                    }
+                }
+                return 6;
+            default:
+                throw new IllegalArgumentException("Invalid escape at " + pos);
+        }
+    }
+
+    private static int scanLiteral(byte[] src, int pos, int end) {
+        int start = pos;
+        while (pos < end) {
+            byte c = src[pos];
+            if (c == ',' || c == '}' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                break;
+            }
+            if (c == '{' || c == '[') {
+                throw new IllegalArgumentException("Nested values are not part of the weather schema");
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw new IllegalArgumentException("Expected a value at " + start);
+        }
+        if (!isNumberOrKeyword(src, start, pos)) {
+            throw new IllegalArgumentException("Expected a number, true, false or null at " + start);
+        }
+        return pos;
+    }
+
+    private static boolean isNumberOrKeyword(byte[] src, int start, int end) {
+        if (src[start] == 't' || src[start] == 'f' || src[start] == 'n') {
+            return matches(src, start, end, "true") || matches(src, start, end, "false") || matches(src, start, end, "null");
+        }
+        for (int i = start; i < end; i++) {
+            byte c = src[i];
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(byte[] src, int start, int end, String keyword) {
+        if (end - start != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (src[start + i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Decimal number in src[start, end) as a double, NaN if it is not one (e.g. a station name)
+    static double parseNumber(byte[] src, int start, int end) {
+        int pos = start;
+        boolean negative = pos < end && src[pos] == '-';
+        if (negative || (pos < end && src[pos] == '+')) {
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean inFraction = false;
+        for (; pos < end; pos++) {
+            byte c = src[pos];
+            if (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if (inFraction) {
+                        fractionDigits++;
+                    }
+                } else if (!inFraction) {
+                    return Double.NaN; // Too large for a weather reading
+                }
+            } else if (c == '.' && !inFraction) {
+                inFraction = true;
+            } else if (c == 'e' || c == 'E') {
+                break;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+
+        int exponent = -fractionDigits;
+        if (pos < end) {
+            pos++;
+            boolean negativeExponent = pos < end && src[pos] == '-';
+            if (negativeExponent || (pos < end && src[pos] == '+')) {
+                pos++;
+            }
+            int e = 0;
+            if (pos == end) {
+                return Double.NaN;
+            }
+            for (; pos < end; pos++) {
+                byte c = src[pos];
+                if (c < '0' || c > '9' || e > 300) {
+                    return Double.NaN;
+                }
+                e = e * 10 + (c - '0');
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value * Math.pow(10, exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    private static int skipWhitespace(byte[] src, int pos, int end) {
+        while (pos < end && (src[pos] == ' ' || src[pos] == '\t' || src[pos] == '\r' || src[pos] == '\n')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int expect(byte[] src, int pos, int end, char expected) {
+        if (pos >= end || src[pos] != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at " + pos);
+        }
+        return pos + 1;
+    }
+}
@@ -0,0 +1,83 @@
+package com.weather.app;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Writes WeatherReadings as JSON directly into a ByteBuffer, copying each field's raw bytes,
+ * so a GET response body is produced without building intermediate Strings.
+ */
+public final class WeatherJsonWriter {
+
+    private WeatherJsonWriter() {
+    }
+
+    // Exact number of bytes writeRecord will produce
+    public static int encodedLength(WeatherReading reading) {
+        int length = 2 + Math.max(0, reading.fieldCount - 1);
+        for (int i = 0; i < reading.fieldCount; i++) {
+            length += reading.keyLength[i] + 3 + reading.valueLength[i] + (reading.quoted[i] ? 2 : 0);
+        }
+        return length;
+    }
+
+    public static int encodedLength(List<WeatherReading> readings) {
+        int length = 2 + Math.max(0, readings.size() - 1);
+        for (int i = 0; i < readings.size(); i++) {
+            length += encodedLength(readings.get(i));
+        }
+        return length;
+    }
+
+    public static void writeRecord(WeatherReading reading, ByteBuffer out) {
+        byte[] text = reading.text;
+        out.put((byte) '{');
+        for (int i = 0; i < reading.fieldCount; i++) {
+            if (i > 0) {
+                out.put((byte) ',');
+            }
+            out.put((byte) '"').put(text, reading.keyStart[i], reading.keyLength[i]).put((byte) '"').put((byte) ':');
+            if (reading.quoted[i]) {
+                out.put((byte) '"').put(text, reading.valueStart[i], reading.valueLength[i]).put((byte) '"');
+            } else {
+                out.put(text, reading.valueStart[i], reading.valueLength[i]);
+            }
+        }
+        out.put((byte) '}');
+    }
+
+    // One record as the GET feed holds it: like writeRecord, except that numbers and other literals are
+    // written as strings, as WeatherProtocol.appendRecord writes every value of a record
+    public static byte[] storedRecord(WeatherReading reading) {
+        int length = encodedLength(reading);
+        for (int i = 0; i < reading.fieldCount; i++) {
+            if (!reading.quoted[i]) {
+                length += 2;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        byte[] text = reading.text;
+        out.put((byte) '{');
+        for (int i = 0; i < reading.fieldCount; i++) {
+            if (i > 0) {
+                out.put((byte) ',');
+            }
+            out.put((byte) '"').put(text, reading.keyStart[i], reading.keyLength[i]).put((byte) '"').put((byte) ':');
+            out.put((byte) '"').put(text, reading.valueStart[i], reading.valueLength[i]).put((byte) '"');
+        }
+        out.put((byte) '}');
+        return out.array();
+    }
+
+    // The GET /weather.json body: every reading as one JSON array
+    public static void writeFeed(List<WeatherReading> readings, ByteBuffer out) {
+        out.put((byte) '[');
+        for (int i = 0; i < readings.size(); i++) {
+            if (i > 0) {
+                out.put((byte) ',');
+            }
+            writeRecord(readings.get(i), out);
+        }
+        out.put((byte) ']');
+    }
+}
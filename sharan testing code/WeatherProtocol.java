@@ -0,0 +1,520 @@
+package com.weather.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The individual request-handling steps of the weather protocol, kept free of sockets so they can be
+ * driven in-process (see RequestHandlingBenchmark).
+ *
+ * A request is "METHOD path HTTP/1.1", a block of headers including Lamport-Clock, a blank line and,
+ * for PUT, a flat JSON object describing one station (or a batch of them, see parseBatch).
+ */
+public final class WeatherProtocol {
+
+    public static final String LAMPORT_HEADER = "lamport-clock";
+    public static final String HYBRID_HEADER = "hybrid-clock";
+    public static final String RETRY_AFTER_HEADER = "retry-after";
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    public static final String GZIP_ENCODING = "gzip";
+    // Bodies smaller than this are sent uncompressed: gzip's header and trailer would eat most of the gain
+    public static final int GZIP_MIN_BYTES = 1024;
+    // A compressed body may not inflate past this, so a small request cannot claim a huge buffer
+    static final int MAX_DECODED_BODY = 64 * 1024 * 1024;
+    // Engines refuse a request head past MAX_HEAD_SIZE with 400, and a declared body past MAX_BODY_SIZE
+    // with 413 before buffering any of it, so no header can make the server allocate more than this
+    static final int MAX_HEAD_SIZE = 64 * 1024;
+    static final int MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+    private WeatherProtocol() {
+    }
+
+    // Parsed request line and headers; header names are stored lower-case
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        public final int bodyOffset;
+
+        Request(String method, String path, Map<String, String> headers, int bodyOffset) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.bodyOffset = bodyOffset;
+        }
+
+        public String header(String name) {
+            return headers.get(name);
+        }
+
+        // Declared body length, 0 without the header; a length past Integer.MAX_VALUE reads as MAX_VALUE
+        public int contentLength() {
+            String value = headers.get("content-length");
+            if (value == null) {
+                return 0;
+            }
+            long length;
+            try {
+                length = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid Content-Length: " + value);
+            }
+            if (length < 0) {
+                throw new IllegalArgumentException("Invalid Content-Length: " + value);
+            }
+            return (int) Math.min(length, Integer.MAX_VALUE);
+        }
+
+        // Value of a ?name=value query parameter on the path, or null if absent
+        public String queryParameter(String name) {
+            int query = path.indexOf('?');
+            if (query < 0) {
+                return null;
+            }
+            for (String pair : path.substring(query + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                    return pair.substring(eq + 1);
+                }
+            }
+            return null;
+        }
+    }
+
+    // Status line, headers and body of a reply; encode() produces the bytes written to the socket
+    public static class Response {
+        public final int status;
+        public final String reason;
+        public final Map<String, String> headers = new LinkedHashMap<>();
+        // Body bytes between position and limit; may be a view of a buffer shared with other responses
+        public final ByteBuffer body;
+        // Set for an event stream: the connection stays open and the subscriber's frames follow the head
+        public UpdateBroadcaster.Subscriber stream;
+
+        public Response(int status, String reason) {
+            this(status, reason, new byte[0]);
+        }
+
+        public Response(int status, String reason, byte[] body) {
+            this(status, reason, ByteBuffer.wrap(body == null ? new byte[0] : body));
+        }
+
+        // The buffer's content is sent as is and must not be modified afterwards
+        public Response(int status, String reason, ByteBuffer body) {
+            this.status = status;
+            this.reason = reason;
+            this.body = body.duplicate();
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        // Turn this into a never-ending response fed by subscriber; it ends when the connection closes
+        public Response stream(UpdateBroadcaster.Subscriber subscriber) {
+            this.stream = subscriber;
+            return this;
+        }
+
+        public byte[] bodyBytes() {
+            byte[] bytes = new byte[body.remaining()];
+            body.duplicate().get(bytes);
+            return bytes;
+        }
+
+        // Status line and headers only, so the body can be written from its own buffer without a copy
+        public byte[] encodeHead(boolean keepAlive) {
+            StringBuilder head = new StringBuilder(128);
+            head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                head.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+            }
+            if (stream != null) {
+                // Delimited by closing the connection, so no Content-Length and no keep-alive
+                head.append("Connection: close\r\n\r\n");
+            } else {
+                head.append("Content-Length: ").append(body.remaining()).append("\r\n");
+                head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+            }
+            return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        public byte[] encode(boolean keepAlive) {
+            byte[] headBytes = encodeHead(keepAlive);
+            byte[] out = new byte[headBytes.length + body.remaining()];
+            System.arraycopy(headBytes, 0, out, 0, headBytes.length);
+            body.duplicate().get(out, headBytes.length, body.remaining());
+            return out;
+        }
+    }
+
+    // Answer to a request whose declared body is over MAX_BODY_SIZE
+    static Response payloadTooLarge() {
+        return new Response(413, "Payload Too Large",
+                ("Request body over " + MAX_BODY_SIZE + " bytes").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Answer to a request the handler failed on unexpectedly; the connection and the server carry on
+    static Response serverError(Throwable failure) {
+        return new Response(500, "Internal Server Error", String.valueOf(failure).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Parse the request line and headers; returns null until the terminating blank line is present
+    public static Request parseHead(byte[] buffer, int length) {
+        int headEnd = indexOfHeadEnd(buffer, length);
+        if (headEnd < 0) {
+            return null;
+        }
+        String head = new String(buffer, 0, headEnd, StandardCharsets.ISO_8859_1);
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2) {
+            throw new IllegalArgumentException("Malformed request line: " + lines[0]);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        return new Request(requestLine[0], requestLine[1], headers, headEnd + 4);
+    }
+
+    // Strong entity tag for a feed version
+    public static String etag(long clock) {
+        return "\"" + clock + "\"";
+    }
+
+    // True if an If-None-Match value ("*" or a list of tags, weak or strong) matches etag
+    public static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Persistent connections are opt-in so clients that read the response until EOF keep working
+    public static boolean isKeepAlive(Request request) {
+        return "keep-alive".equalsIgnoreCase(request.header("connection"));
+    }
+
+    // Lamport-Clock header value, or 0 if the client did not send one
+    public static long parseLamportClock(Request request) {
+        return parseClock(request, LAMPORT_HEADER, "Lamport-Clock");
+    }
+
+    // Retry-After of a response, in milliseconds, or 0 if absent or not in delay-seconds form
+    public static long retryAfterMillis(Response response) {
+        String value = response.headers.get(RETRY_AFTER_HEADER);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return 0; // An HTTP date; the caller's own backoff applies
+        }
+    }
+
+    // Hybrid-Clock header value (see HybridLogicalClock), or 0 if the client did not send one
+    public static long parseHybridClock(Request request) {
+        return parseClock(request, HYBRID_HEADER, "Hybrid-Clock");
+    }
+
+    private static long parseClock(Request request, String header, String displayName) {
+        String value = request.header(header);
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + displayName + " header: " + value);
+        }
+    }
+
+    // Parse a flat JSON object ({"id": "IDS60901", "air_temp": 13.3, ...}) into field -> value text
+    public static Map<String, String> parseRecord(String json) {
+        int[] pos = {0};
+        Map<String, String> record = parseObject(json, pos);
+        if (skipWhitespace(json, pos[0]) != json.length()) {
+            throw new IllegalArgumentException("Unexpected content after JSON object at " + pos[0]);
+        }
+        return record;
+    }
+
+    // Parse a PUT body carrying one or many station records: a single object, a JSON array of objects,
+    // or NDJSON (one object per line) when sent as application/x-ndjson
+    public static List<Map<String, String>> parseBatch(String body, String contentType) {
+        List<Map<String, String>> records = new ArrayList<>();
+        if (contentType != null && contentType.startsWith(NDJSON_CONTENT_TYPE)) {
+            for (String line : body.split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    records.add(parseRecord(line));
+                }
+            }
+            return records;
+        }
+
+        int[] pos = {skipWhitespace(body, 0)};
+        if (pos[0] < body.length() && body.charAt(pos[0]) == '[') {
+            pos[0]++;
+            pos[0] = skipWhitespace(body, pos[0]);
+            if (pos[0] < body.length() && body.charAt(pos[0]) == ']') {
+                pos[0]++;
+            } else {
+                while (true) {
+                    records.add(parseObject(body, pos));
+                    pos[0] = skipWhitespace(body, pos[0]);
+                    if (pos[0] >= body.length()) {
+                        throw new IllegalArgumentException("Unterminated JSON array");
+                    }
+                    char c = body.charAt(pos[0]++);
+                    if (c == ']') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw new IllegalArgumentException("Expected ',' or ']' at " + (pos[0] - 1));
+                    }
+                }
+            }
+        } else {
+            records.add(parseObject(body, pos));
+        }
+        if (skipWhitespace(body, pos[0]) != body.length()) {
+            throw new IllegalArgumentException("Unexpected content after JSON at " + pos[0]);
+        }
+        return records;
+    }
+
+    // Compress a body sent with Content-Encoding: gzip
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory write failed", e);
+        }
+        return compressed.toByteArray();
+    }
+
+    // Whether an Accept-Encoding header admits gzip (not listed with q=0)
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase(GZIP_ENCODING) && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") && parameter.substring(2).trim().matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Inflate a Content-Encoding: gzip body
+    public static byte[] gunzip(byte[] data) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                if (out.size() + n > MAX_DECODED_BODY) {
+                    throw new IOException("Compressed body inflates past " + MAX_DECODED_BODY + " bytes");
+                }
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // Serialize station records as a JSON array PUT body
+    public static String toBatchJson(List<Map<String, String>> records) {
+        return toFeedJson(records);
+    }
+
+    private static Map<String, String> parseObject(String json, int[] pos) {
+        Map<String, String> record = new LinkedHashMap<>();
+        pos[0] = skipWhitespace(json, pos[0]);
+        expect(json, pos, '{');
+        pos[0] = skipWhitespace(json, pos[0]);
+        if (pos[0] < json.length() && json.charAt(pos[0]) == '}') {
+            pos[0]++;
+            return record;
+        }
+        while (true) {
+            pos[0] = skipWhitespace(json, pos[0]);
+            String key = readString(json, pos);
+            pos[0] = skipWhitespace(json, pos[0]);
+            expect(json, pos, ':');
+            pos[0] = skipWhitespace(json, pos[0]);
+            if (pos[0] >= json.length()) {
+                throw new IllegalArgumentException("Expected a value at " + pos[0]);
+            }
+            String value = json.charAt(pos[0]) == '"' ? readString(json, pos) : readLiteral(json, pos);
+            record.put(key, value);
+            pos[0] = skipWhitespace(json, pos[0]);
+            if (pos[0] >= json.length()) {
+                throw new IllegalArgumentException("Unterminated JSON object");
+            }
+            char c = json.charAt(pos[0]++);
+            if (c == '}') {
+                return record;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException("Expected ',' or '}' at " + (pos[0] - 1));
+            }
+        }
+    }
+
+    // Serialize every station record as the GET /weather.json body
+    public static String toFeedJson(Collection<Map<String, String>> records) {
+        StringBuilder sb = new StringBuilder(64 + records.size() * 128);
+        sb.append('[');
+        boolean first = true;
+        for (Map<String, String> record : records) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            appendRecord(sb, record);
+        }
+        return sb.append(']').toString();
+    }
+
+    static void appendRecord(StringBuilder sb, Map<String, String> record) {
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> field : record.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            appendString(sb, field.getKey());
+            sb.append(':');
+            appendString(sb, field.getValue());
+        }
+        sb.append('}');
+    }
+
+    static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    static int indexOfHeadEnd(byte[] buffer, int length) {
+        for (int i = 0; i + 3 < length; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static void expect(String json, int[] pos, char expected) {
+        if (pos[0] >= json.length() || json.charAt(pos[0]) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    // Decode the escapes of a JSON string's contents (without its quotes)
+    static String unescape(String raw) {
+        return raw.indexOf('\\') < 0 ? raw : readString('"' + raw + '"', new int[]{0});
+    }
+
+    private static String readString(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        while (pos[0] < json.length()) {
+            char c = json.charAt(pos[0]++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                if (pos[0] >= json.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char escaped = json.charAt(pos[0]++);
+                switch (escaped) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos[0] + 4 > json.length()) {
+                            throw new IllegalArgumentException("Expected four hex digits after \\u at " + pos[0]);
+                        }
+                        sb.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+                        pos[0] += 4;
+                        break;
+                    default: sb.append(escaped);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private static String readLiteral(String json, int[] pos) {
+        int start = pos[0];
+        while (pos[0] < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        if (start == pos[0]) {
+            throw new IllegalArgumentException("Expected a value at " + start);
+        }
+        return json.substring(start, pos[0]);
+    }
+}
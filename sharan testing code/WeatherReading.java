@@ -0,0 +1,175 @@
+package com.weather.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reusable, mutable holder for one station record, filled by WeatherJsonReader and written out by
+ * WeatherJsonWriter without creating intermediate Strings.
+ *
+ * Every field's key and value are kept as raw bytes in one internal buffer (string escapes are kept
+ * as they arrived, so they can be written back verbatim). Numeric fields of the weather schema are
+ * also decoded to doubles at parse time.
+ */
+public final class WeatherReading {
+
+    // Known fields of the weather record schema, addressable by index
+    public static final String[] SCHEMA = {
+            "id", "name", "state", "time_zone", "lat", "lon", "local_date_time", "local_date_time_full",
+            "air_temp", "apparent_t", "cloud", "dewpt", "press", "rel_hum", "wind_dir", "wind_spd_kmh", "wind_spd_kt"
+    };
+    public static final int ID = 0;
+    public static final int LAT = 4;
+    public static final int LON = 5;
+    public static final int AIR_TEMP = 8;
+    public static final int APPARENT_T = 9;
+    public static final int DEWPT = 11;
+    public static final int PRESS = 12;
+    public static final int REL_HUM = 13;
+    public static final int WIND_SPD_KMH = 15;
+    public static final int WIND_SPD_KT = 16;
+
+    static final byte[][] SCHEMA_BYTES = new byte[SCHEMA.length][];
+
+    static {
+        for (int i = 0; i < SCHEMA.length; i++) {
+            SCHEMA_BYTES[i] = SCHEMA[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    byte[] text = new byte[512];
+    int textLength;
+
+    int fieldCount;
+    int[] keyStart = new int[24];
+    int[] keyLength = new int[24];
+    int[] valueStart = new int[24];
+    int[] valueLength = new int[24];
+    boolean[] quoted = new boolean[24];
+
+    // Slot of each schema field in the arrays above, or -1 if the record did not carry it
+    final int[] schemaSlot = new int[SCHEMA.length];
+    final double[] numbers = new double[SCHEMA.length];
+
+    public WeatherReading() {
+        reset();
+    }
+
+    public void reset() {
+        textLength = 0;
+        fieldCount = 0;
+        Arrays.fill(schemaSlot, -1);
+        Arrays.fill(numbers, Double.NaN);
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public boolean has(int schemaField) {
+        return schemaSlot[schemaField] >= 0;
+    }
+
+    // Decoded numeric value of a schema field, NaN if absent or not a number
+    public double getNumber(int schemaField) {
+        return numbers[schemaField];
+    }
+
+    public double airTemp() {
+        return numbers[AIR_TEMP];
+    }
+
+    // Compare a schema field's raw value with a String without allocating
+    public boolean valueEquals(int schemaField, String expected) {
+        int slot = schemaSlot[schemaField];
+        if (slot < 0 || valueLength[slot] != expected.length()) {
+            return false;
+        }
+        int start = valueStart[slot];
+        for (int i = 0; i < expected.length(); i++) {
+            if (text[start + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Raw value text of a schema field (allocates; for use off the hot path, e.g. as a store key)
+    public String getText(int schemaField) {
+        int slot = schemaSlot[schemaField];
+        return slot < 0 ? null : new String(text, valueStart[slot], valueLength[slot], StandardCharsets.UTF_8);
+    }
+
+    public String stationId() {
+        return getText(ID);
+    }
+
+    // Every field as key -> value text with string escapes decoded, as WeatherProtocol.parseRecord gives it;
+    // a key given twice keeps its last value
+    public Map<String, String> toFields() {
+        Map<String, String> fields = new LinkedHashMap<>(fieldCount * 2);
+        for (int i = 0; i < fieldCount; i++) {
+            fields.put(decode(keyStart[i], keyLength[i]), decode(valueStart[i], valueLength[i]));
+        }
+        return fields;
+    }
+
+    // Make this reading an exact copy of another, reusing this instance's buffers
+    public void copyFrom(WeatherReading other) {
+        ensureText(other.textLength);
+        System.arraycopy(other.text, 0, text, 0, other.textLength);
+        textLength = other.textLength;
+        ensureFields(other.fieldCount);
+        System.arraycopy(other.keyStart, 0, keyStart, 0, other.fieldCount);
+        System.arraycopy(other.keyLength, 0, keyLength, 0, other.fieldCount);
+        System.arraycopy(other.valueStart, 0, valueStart, 0, other.fieldCount);
+        System.arraycopy(other.valueLength, 0, valueLength, 0, other.fieldCount);
+        System.arraycopy(other.quoted, 0, quoted, 0, other.fieldCount);
+        fieldCount = other.fieldCount;
+        System.arraycopy(other.schemaSlot, 0, schemaSlot, 0, SCHEMA.length);
+        System.arraycopy(other.numbers, 0, numbers, 0, SCHEMA.length);
+    }
+
+    // Copy bytes into the text buffer and return where they start
+    int appendText(byte[] src, int offset, int length) {
+        ensureText(textLength + length);
+        System.arraycopy(src, offset, text, textLength, length);
+        int start = textLength;
+        textLength += length;
+        return start;
+    }
+
+    // Register the field whose key and value were just appended
+    int addField(int kStart, int kLength, int vStart, int vLength, boolean isQuoted) {
+        ensureFields(fieldCount + 1);
+        keyStart[fieldCount] = kStart;
+        keyLength[fieldCount] = kLength;
+        valueStart[fieldCount] = vStart;
+        valueLength[fieldCount] = vLength;
+        quoted[fieldCount] = isQuoted;
+        return fieldCount++;
+    }
+
+    private String decode(int start, int length) {
+        return WeatherProtocol.unescape(new String(text, start, length, StandardCharsets.UTF_8));
+    }
+
+    private void ensureText(int capacity) {
+        if (text.length < capacity) {
+            text = Arrays.copyOf(text, Math.max(capacity, text.length * 2));
+        }
+    }
+
+    private void ensureFields(int capacity) {
+        if (keyStart.length < capacity) {
+            int size = Math.max(capacity, keyStart.length * 2);
+            keyStart = Arrays.copyOf(keyStart, size);
+            keyLength = Arrays.copyOf(keyLength, size);
+            valueStart = Arrays.copyOf(valueStart, size);
+            valueLength = Arrays.copyOf(valueLength, size);
+            quoted = Arrays.copyOf(quoted, size);
+        }
+    }
+}
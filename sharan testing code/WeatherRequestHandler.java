@@ -0,0 +1,567 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * AggregationServer request handling on top of a ConnectionEngine.
+ *
+ * PUT stores one station record, or a batch of them (JSON array or NDJSON) under a single Lamport
+ * clock value, and answers 201 the first time a station is seen and 200 afterwards. A PUT body may be
+ * sent with Content-Encoding: gzip, and in WeatherBinaryCodec's encoding instead of JSON. GET returns every
+ * station as a JSON array, gzip-compressed for a client that sends Accept-Encoding: gzip. Every response
+ * carries the server's Lamport clock.
+ *
+ * In hybrid mode the clock is a HybridLogicalClock: it is advanced the same way, but never falls behind
+ * wall-clock time, so a record's clock also says when it was applied. Hybrid-Clock is accepted as well as
+ * Lamport-Clock, and both are sent back with the same value.
+ *
+ * GET responses carry an ETag naming the feed version: the highest clock at or below which every update
+ * has been applied and published to subscribers (a PUT's clock is assigned before it reaches the store,
+ * so PUTs can land out of clock order). If-None-Match with that tag gets 304 and no body, and GET /weather.json?since=<clock> returns
+ * only the stations updated after that clock; a poller passes the previous ETag as since.
+ *
+ * A GET with "Accept: text/event-stream" subscribes to updates instead (see UpdateBroadcaster). The stream
+ * starts with the whole feed, or with what changed since Last-Event-ID when a subscriber reconnects.
+ * When a WriteAheadLog is supplied, a PUT is logged first and is applied, published and shipped only once
+ * the log is synced, so nothing a crash could take back is ever seen. Its response completes from the
+ * log's flusher (handleAsync), so an engine that must not block is not held up by the sync.
+ * As a cluster replica (see ClusterNode) the store is fed by applyReplicated() instead of PUTs. As a
+ * shard (see ShardNode) only stations passing the ownership filter are accepted; a PUT naming any other
+ * station is refused with 421 as a whole.
+ *
+ * With expireAfter(), a station whose latest reading is older than the time to live is dropped. An expiry
+ * is an update like a PUT: it takes a clock, moves the ETag, is sent to subscribers and to the log, and
+ * is shipped to replicas, which do not expire stations themselves while they follow a primary.
+ *
+ * With traceTo(), the clock received and assigned for every update is traced next to the store's
+ * applies (see TraceLog), for TraceVerifier to check afterwards.
+ *
+ * GET /metrics returns ServerMetrics in the Prometheus text format; it does not advance the clock.
+ *
+ * With admitWith(), every other request first passes AdmissionControl; one turned away is answered 503
+ * with Retry-After before it reaches the clock or the store.
+ */
+public class WeatherRequestHandler implements RequestHandler {
+
+    // Reused by each engine thread to tokenize PUT bodies
+    private static final ThreadLocal<WeatherReading> READING = ThreadLocal.withInitial(WeatherReading::new);
+
+    private final WeatherStore store;
+    private final WriteAheadLog wal;
+    private final AtomicLong lamportClock = new AtomicLong();
+    // Clocks of PUTs not yet applied and published; guards the assignment of PUT clocks
+    private final TreeSet<Long> pendingClocks = new TreeSet<>();
+    private final UpdateBroadcaster updates = new UpdateBroadcaster();
+    private volatile Consumer<List<StationRecord>> appliedListener;
+    // On a replica, the primary's feed version as of the last replicated frame; caps our own
+    private volatile long replicatedVersion = Long.MAX_VALUE;
+    private volatile Predicate<String> ownsStation = stationId -> true;
+    private final boolean hybridClock;
+    private volatile StationExpiry expiry;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private volatile TraceLog trace;
+    private volatile AdmissionControl admission;
+
+    public WeatherRequestHandler(WeatherStore store) {
+        this(store, null);
+    }
+
+    // With a write-ahead log, a PUT is only acknowledged once its records are durable
+    public WeatherRequestHandler(WeatherStore store, WriteAheadLog wal) {
+        this(store, wal, false);
+    }
+
+    public WeatherRequestHandler(WeatherStore store, WriteAheadLog wal, boolean hybridClock) {
+        this.store = store;
+        this.wal = wal;
+        this.hybridClock = hybridClock;
+        // Continue from the highest clock already in the store (e.g. recovered from the log)
+        lamportClock.set(store.maxClock());
+        if (wal != null) {
+            wal.onSync(metrics::walSynced);
+        }
+        metrics.gauge("weather_stations", "Stations held.", store::size);
+        metrics.gauge("weather_lamport_clock", "Current clock value.", lamportClock::get);
+        metrics.gauge("weather_feed_version", "Clock up to which every update is visible (the ETag).", this::feedVersion);
+        metrics.gauge("weather_pending_updates", "Updates with a clock assigned that are not yet applied and published.",
+                () -> {
+                    synchronized (pendingClocks) {
+                        return pendingClocks.size();
+                    }
+                });
+        metrics.gauge("weather_subscribers", "Open event-stream subscriptions.", updates::subscriberCount);
+    }
+
+    @Override
+    public WeatherProtocol.Response handle(WeatherProtocol.Request request, byte[] body) {
+        try {
+            return respond(request, body, true).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    // Called from threads that must not block (the nio selector), so admission never waits here
+    @Override
+    public CompletableFuture<WeatherProtocol.Response> handleAsync(WeatherProtocol.Request request, byte[] body) {
+        return respond(request, body, false);
+    }
+
+    private CompletableFuture<WeatherProtocol.Response> respond(WeatherProtocol.Request request, byte[] body,
+                                                                boolean mayWait) {
+        long start = System.nanoTime();
+        metrics.requestStarted();
+        CompletableFuture<WeatherProtocol.Response> response;
+        try {
+            response = handleAdmitted(request, body, mayWait);
+        } catch (RuntimeException e) {
+            metrics.requestFinished(request.method, 500, System.nanoTime() - start);
+            throw e;
+        }
+        return response.whenComplete((done, e) ->
+                metrics.requestFinished(request.method, done == null ? 500 : done.status, System.nanoTime() - start));
+    }
+
+    // mayWait: whether a request at the admission limit may queue for a slot or must be rejected at once
+    private CompletableFuture<WeatherProtocol.Response> handleAdmitted(WeatherProtocol.Request request, byte[] body,
+                                                                       boolean mayWait) {
+        if ("GET".equals(request.method) && isMetricsPath(request.path)) {
+            return CompletableFuture.completedFuture(
+                    new WeatherProtocol.Response(200, "OK", metrics.scrape().getBytes(StandardCharsets.UTF_8))
+                            .header("Content-Type", ServerMetrics.CONTENT_TYPE));
+        }
+        AdmissionControl gate = admission;
+        if (gate == null) {
+            return handleClocked(request, body);
+        }
+        long admitted = mayWait ? gate.acquire() : gate.tryAcquire();
+        if (admitted == AdmissionControl.REJECTED) {
+            metrics.requestRejected();
+            return CompletableFuture.completedFuture(new WeatherProtocol.Response(503, "Service Unavailable")
+                    .header("Retry-After", String.valueOf(gate.retryAfterSeconds())));
+        }
+        CompletableFuture<WeatherProtocol.Response> response;
+        try {
+            response = handleClocked(request, body);
+        } catch (RuntimeException e) {
+            gate.release(admitted);
+            throw e;
+        }
+        // Released once answered, so a PUT waiting for its log sync still counts against the limit
+        return response.whenComplete((done, e) -> gate.release(admitted));
+    }
+
+    private CompletableFuture<WeatherProtocol.Response> handleClocked(WeatherProtocol.Request request, byte[] body) {
+        boolean isPut = "PUT".equals(request.method);
+        long received = WeatherProtocol.parseLamportClock(request);
+        if (hybridClock) {
+            received = Math.max(received, WeatherProtocol.parseHybridClock(request));
+        }
+        long clock = receive(received, isPut);
+        CompletableFuture<WeatherProtocol.Response> response;
+        switch (request.method) {
+            case "PUT":
+                try {
+                    response = handlePut(request, body, clock);
+                } catch (RuntimeException e) {
+                    applied(clock);
+                    throw e;
+                }
+                response = response.whenComplete((done, e) -> applied(clock));
+                break;
+            case "GET":
+                response = CompletableFuture.completedFuture(handleGet(request));
+                break;
+            default:
+                response = CompletableFuture.completedFuture(new WeatherProtocol.Response(400, "Bad Request"));
+        }
+        return response.thenApply(done -> {
+            if (hybridClock) {
+                done.header("Hybrid-Clock", String.valueOf(clock));
+            }
+            return done.header("Lamport-Clock", String.valueOf(clock));
+        });
+    }
+
+    public long currentClock() {
+        return lamportClock.get();
+    }
+
+    public boolean isHybridClock() {
+        return hybridClock;
+    }
+
+    // Trace updates to traceLog, store applies included
+    public void traceTo(TraceLog traceLog) {
+        trace = traceLog;
+        store.traceTo(traceLog);
+    }
+
+    // Bound the requests handled at once; register before the server starts
+    public void admitWith(AdmissionControl admissionControl) {
+        admission = admissionControl;
+        metrics.gauge("weather_admission_limit", "Requests handled at once before new ones queue or are turned away.",
+                admissionControl::limit);
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public void connectionOpened() {
+        metrics.connectionOpened();
+    }
+
+    @Override
+    public void connectionClosed() {
+        metrics.connectionClosed();
+    }
+
+    public UpdateBroadcaster updates() {
+        return updates;
+    }
+
+    // Called with every applied update while it still counts as pending, so it can be shipped elsewhere
+    public void onApplied(Consumer<List<StationRecord>> listener) {
+        appliedListener = listener;
+    }
+
+    // Accept PUTs only for stations this node owns
+    public void acceptOnly(Predicate<String> ownsStation) {
+        this.ownsStation = ownsStation;
+    }
+
+    // Apply records shipped by a primary, stamped with its feed version at the time it shipped them
+    public void applyReplicated(List<StationRecord> records, long primaryVersion) {
+        applyShipped(records);
+        long current = replicatedVersion;
+        replicatedVersion = current == Long.MAX_VALUE ? primaryVersion : Math.max(current, primaryVersion);
+    }
+
+    // Apply records handed over by another shard, keeping the clocks they were stored with
+    public void applyTransferred(List<StationRecord> records) {
+        applyShipped(records);
+    }
+
+    // Records produced elsewhere: clocks are kept, newer local updates win, and our clock moves past theirs
+    private void applyShipped(List<StationRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        store.applyBatch(records);
+        long newest = 0;
+        for (StationRecord record : records) {
+            newest = Math.max(newest, record.lamportClock);
+        }
+        lamportClock.accumulateAndGet(newest, Math::max);
+        updates.publish(records, newest, this::feedVersion);
+        StationExpiry current = expiry;
+        if (current != null) {
+            current.schedule(records);
+        }
+        if (wal != null) {
+            wal.append(records); // Not waited on: the sender already acknowledged these
+        }
+    }
+
+    // Stop capping the feed version by a primary's, e.g. after this replica has been promoted
+    public void stopReplicating() {
+        replicatedVersion = Long.MAX_VALUE;
+        StationExpiry current = expiry;
+        if (current != null) {
+            // Expiries that came due while replicating were skipped; those stations are due again now
+            current.schedule(store.snapshot());
+        }
+    }
+
+    // Drop stations not updated for ttlMillis, starting with those already held (e.g. recovered from the log)
+    public void expireAfter(long ttlMillis) {
+        StationExpiry started = new StationExpiry(ttlMillis, hybridClock, this::expire);
+        StationExpiry previous = expiry;
+        expiry = started;
+        if (previous != null) {
+            previous.close();
+        }
+        // Scheduled after publishing the expiry, so a reading applied meanwhile is scheduled at least once
+        started.schedule(store.snapshot());
+        started.start();
+    }
+
+    public void stopExpiring() {
+        StationExpiry current = expiry;
+        expiry = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    // Feed version: no update with this clock or lower is still on its way into the store or to subscribers
+    public long feedVersion() {
+        long version;
+        synchronized (pendingClocks) {
+            long stored = store.maxClock();
+            version = pendingClocks.isEmpty() ? stored : Math.min(stored, pendingClocks.first() - 1);
+        }
+        return Math.min(version, replicatedVersion);
+    }
+
+    // Lamport receive rule: local = max(local, received) + 1; an update's clock is registered as pending
+    private long receive(long received, boolean isUpdate) {
+        if (!isUpdate) {
+            return lamportClock.updateAndGet(local -> tick(local, received));
+        }
+        synchronized (pendingClocks) {
+            long clock = lamportClock.updateAndGet(local -> tick(local, received));
+            pendingClocks.add(clock);
+            TraceLog t = trace;
+            if (t != null) {
+                t.receive(received, clock); // Under the lock, so receives are traced in assignment order
+            }
+            return clock;
+        }
+    }
+
+    private long tick(long local, long received) {
+        return hybridClock
+                ? HybridLogicalClock.next(local, received, System.currentTimeMillis())
+                : Math.max(local, received) + 1;
+    }
+
+    private void applied(long clock) {
+        synchronized (pendingClocks) {
+            pendingClocks.remove(clock);
+        }
+    }
+
+    // Drop the due stations whose latest reading is stale (see StationExpiry), as one update under one clock
+    private void expire(List<StationExpiry.Candidate> due) {
+        StationExpiry schedule = expiry;
+        if (schedule == null || replicatedVersion != Long.MAX_VALUE) {
+            return; // Stopped, or a replica: the primary's expiries arrive in its log
+        }
+        long checkedAt = System.currentTimeMillis();
+        List<StationRecord> stale = new ArrayList<>();
+        for (StationExpiry.Candidate candidate : due) {
+            StationRecord current = store.get(candidate.stationId);
+            if (current != null && schedule.isStale(current, candidate, checkedAt)) {
+                stale.add(current);
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        long clock = receive(0, true);
+        List<StationRecord> expired = new ArrayList<>(stale.size());
+        try {
+            long now = System.currentTimeMillis();
+            for (StationRecord reading : stale) {
+                StationRecord record = StationRecord.expiry(reading.stationId, reading.lamportClock, clock, now);
+                if (store.expire(record)) {
+                    expired.add(record);
+                }
+            }
+            if (!expired.isEmpty()) {
+                metrics.stationsExpired(expired.size());
+                updates.publish(expired, clock, this::feedVersion);
+                Consumer<List<StationRecord>> listener = appliedListener;
+                if (listener != null) {
+                    listener.accept(expired);
+                }
+            }
+        } finally {
+            applied(clock);
+        }
+        if (wal != null && !expired.isEmpty()) {
+            wal.append(expired); // Not waited on: if lost, the station is found stale again after recovery
+        }
+    }
+
+    private static boolean isMetricsPath(String path) {
+        return path.equals("/metrics") || path.startsWith("/metrics?");
+    }
+
+    private CompletableFuture<WeatherProtocol.Response> handlePut(WeatherProtocol.Request request, byte[] body, long clock) {
+        if (body.length == 0) {
+            return CompletableFuture.completedFuture(new WeatherProtocol.Response(204, "No Content"));
+        }
+        String encoding = request.header("content-encoding");
+        if (encoding != null && !encoding.trim().equalsIgnoreCase("identity")) {
+            if (!encoding.trim().equalsIgnoreCase(WeatherProtocol.GZIP_ENCODING)) {
+                return CompletableFuture.completedFuture(new WeatherProtocol.Response(415, "Unsupported Media Type",
+                        ("Unsupported Content-Encoding: " + encoding).getBytes(StandardCharsets.UTF_8)));
+            }
+            try {
+                body = WeatherProtocol.gunzip(body);
+            } catch (IOException e) {
+                return CompletableFuture.completedFuture(new WeatherProtocol.Response(400, "Bad Request",
+                        ("Could not decompress body: " + e.getMessage()).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+
+        List<StationRecord> records;
+        try {
+            String contentType = request.header("content-type");
+            long now = System.currentTimeMillis();
+            if (contentType != null && contentType.trim().startsWith(WeatherBinaryCodec.BINARY_CONTENT_TYPE)) {
+                List<Map<String, String>> parsed = WeatherBinaryCodec.decode(body);
+                records = new ArrayList<>(parsed.size());
+                for (Map<String, String> fields : parsed) {
+                    records.add(new StationRecord(requireId(fields), fields, clock, now));
+                }
+            } else {
+                records = readJson(body, contentType, clock, now);
+            }
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(new WeatherProtocol.Response(500, "Internal Server Error",
+                    String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8)));
+        }
+        if (records.isEmpty()) {
+            return CompletableFuture.completedFuture(new WeatherProtocol.Response(204, "No Content"));
+        }
+        Predicate<String> owns = ownsStation;
+        for (StationRecord record : records) {
+            if (!owns.test(record.stationId)) {
+                return CompletableFuture.completedFuture(new WeatherProtocol.Response(421, "Misdirected Request",
+                        ("Station " + record.stationId + " belongs to another shard").getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+
+        if (wal == null) {
+            return CompletableFuture.completedFuture(stored(apply(records, clock)));
+        }
+        // Applied by the log's flusher once the records are durable, before the sync is acknowledged, so a
+        // checkpoint never drops a segment holding an entry the store does not have yet
+        int[] created = new int[1];
+        return wal.append(records, () -> created[0] = apply(records, clock)).handle((durable, e) -> e == null
+                ? stored(created[0])
+                : new WeatherProtocol.Response(500, "Internal Server Error",
+                        ("Could not persist update: " + e.getMessage()).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Store, publish and ship an accepted PUT; returns the stations it created
+    private int apply(List<StationRecord> records, long clock) {
+        int created = records.size() == 1 ? (store.put(records.get(0)) ? 1 : 0) : store.applyBatch(records);
+        // Publish while still pending, so a frame's feed version never covers an update not yet sent
+        updates.publish(records, clock, this::feedVersion);
+        Consumer<List<StationRecord>> listener = appliedListener;
+        if (listener != null) {
+            listener.accept(records);
+        }
+        applied(clock);
+        StationExpiry current = expiry;
+        if (current != null) {
+            current.schedule(records);
+        }
+        return created;
+    }
+
+    private static WeatherProtocol.Response stored(int created) {
+        return created > 0
+                ? new WeatherProtocol.Response(201, "Created")
+                : new WeatherProtocol.Response(200, "OK");
+    }
+
+    // Records tokenized straight from the body bytes; each keeps the feed encoding WeatherJsonWriter copies
+    // out of the same bytes, so a GET never encodes it again
+    private static List<StationRecord> readJson(byte[] body, String contentType, long clock, long now) {
+        List<StationRecord> records = new ArrayList<>();
+        boolean ndjson = contentType != null && contentType.trim().startsWith(WeatherProtocol.NDJSON_CONTENT_TYPE);
+        WeatherJsonReader.readBatch(body, 0, body.length, ndjson, READING.get(), reading -> {
+            Map<String, String> fields = reading.toFields();
+            // A key given twice: the map keeps the last value, so the encoding is left to the map as well
+            byte[] json = fields.size() == reading.fieldCount() ? WeatherJsonWriter.storedRecord(reading) : null;
+            records.add(new StationRecord(requireId(fields), fields, clock, now, json));
+        });
+        return records;
+    }
+
+    private static String requireId(Map<String, String> fields) {
+        String id = fields.get("id");
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("Station record without an id");
+        }
+        return id;
+    }
+
+    private WeatherProtocol.Response handleGet(WeatherProtocol.Request request) {
+        String accept = request.header("accept");
+        if (accept != null && accept.contains("text/event-stream")) {
+            return handleSubscribe(request);
+        }
+        String since = request.queryParameter("since");
+        long sinceClock = 0;
+        if (since != null) {
+            try {
+                sinceClock = Long.parseLong(since);
+            } catch (NumberFormatException e) {
+                return new WeatherProtocol.Response(400, "Bad Request",
+                        ("Invalid since: " + since).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // Read the version before the body, so the body holds at least everything the tag promises
+        String etag = WeatherProtocol.etag(feedVersion());
+        if (WeatherProtocol.etagMatches(request.header("if-none-match"), etag)) {
+            return new WeatherProtocol.Response(304, "Not Modified").header("ETag", etag);
+        }
+        boolean gzip = WeatherProtocol.acceptsGzip(request.header("accept-encoding"));
+        ByteBuffer body;
+        if (since == null) {
+            body = store.feedBuffer();
+            if (gzip && body.remaining() > WeatherProtocol.GZIP_MIN_BYTES) {
+                body = store.gzippedFeedBuffer();
+            } else {
+                gzip = false;
+            }
+        } else {
+            body = store.feedSince(sinceClock);
+            if (gzip && body.remaining() > WeatherProtocol.GZIP_MIN_BYTES) {
+                byte[] plain = new byte[body.remaining()];
+                body.get(plain);
+                body = ByteBuffer.wrap(WeatherProtocol.gzip(plain));
+            } else {
+                gzip = false;
+            }
+        }
+        WeatherProtocol.Response response = new WeatherProtocol.Response(200, "OK", body)
+                .header("Content-Type", "application/json")
+                .header("ETag", etag)
+                .header("Vary", "Accept-Encoding");
+        return gzip ? response.header("Content-Encoding", WeatherProtocol.GZIP_ENCODING) : response;
+    }
+
+    private WeatherProtocol.Response handleSubscribe(WeatherProtocol.Request request) {
+        String lastEventId = request.header("last-event-id");
+        long resumeFrom;
+        try {
+            resumeFrom = lastEventId == null ? -1 : Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return new WeatherProtocol.Response(400, "Bad Request",
+                    ("Invalid Last-Event-ID: " + lastEventId).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Subscribe before reading the store, so an update lands in the backfill, the stream, or both
+        UpdateBroadcaster.Subscriber subscriber = updates.subscribe();
+        long version = feedVersion();
+        subscriber.backfill(resumeFrom < 0
+                ? UpdateBroadcaster.feedFrame("snapshot", version, store.feedBuffer())
+                : UpdateBroadcaster.feedFrame("delta", version, store.feedSince(resumeFrom)));
+        return new WeatherProtocol.Response(200, "OK")
+                .header("Content-Type", "text/event-stream")
+                .header("Cache-Control", "no-cache")
+                .stream(subscriber);
+    }
+}
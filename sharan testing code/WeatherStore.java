@@ -0,0 +1,432 @@
+package com.weather.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Latest record per station. An update only replaces the current record if its Lamport clock is
+ * not older; the clock doubles as the entry's version. Expiry records remove a station instead, and the
+ * latest one per removed station is kept (in memory only) until the station comes back, so recordsSince()
+ * can hand a catching-up replica the removals it missed as well as the updates.
+ *
+ * Updates are decided in a ConcurrentHashMap, so writers for different stations do not share a lock.
+ * Readers never look at it: every write then publishes a new immutable version of the store, a
+ * PersistentStationMap that shares all but the updated path with the version before, and readers take
+ * the current version with a single volatile read. A writer re-reads the stations it touched when it
+ * publishes and retries if another version got in first, so versions never go back on an update, and
+ * a batch is published as one version: readers see all of it or none of it.
+ *
+ * After a restart the store can sit on top of a MappedSnapshot: stations nobody has updated since are
+ * read from the mapping on demand, and only updated stations live in memory.
+ *
+ * Each version caches the GET feed as one encoded buffer, built by the first GET of that version (other
+ * GETs of it wait for it rather than build it again) from each record's already-encoded JSON, so only
+ * stations updated since are encoded again. Its gzip-compressed form is cached with it, compressed by the
+ * first GET that asks for it.
+ *
+ * With traceTo(), every put and remove is traced from inside the station's atomic update, so a
+ * TraceLog holds each station's updates in the order they took effect.
+ */
+public class WeatherStore {
+
+    private final ConcurrentHashMap<String, StationRecord> stations = new ConcurrentHashMap<>();
+    private final AtomicLong maxClock = new AtomicLong();
+    // Latest expiry record of each station it removed, until a newer record brings the station back
+    private final ConcurrentHashMap<String, StationRecord> expiries = new ConcurrentHashMap<>();
+
+    private volatile MappedSnapshot base;
+    private volatile AtomicLongArray shadowed = new AtomicLongArray(0);
+    private final AtomicInteger baseOnly = new AtomicInteger();
+
+    // The version readers see; replaced by every write
+    private final AtomicReference<Version> current = new AtomicReference<>(new Version(PersistentStationMap.EMPTY));
+    private volatile TraceLog trace;
+
+    private static final class Version {
+        // Stations in memory; stations still only in the mapped snapshot are not in it
+        final PersistentStationMap stations;
+        // Encoded feed, built under the version's lock by its first GET
+        volatile ByteBuffer body;
+        // Compressed body; set at most a few times over (racing GETs compress the same bytes)
+        volatile ByteBuffer gzipped;
+
+        Version(PersistentStationMap stations) {
+            this.stations = stations;
+        }
+    }
+
+    // Serve stations missing from memory out of a mapped snapshot; call before accepting updates
+    public synchronized void attachBase(MappedSnapshot snapshot) {
+        shadowed = new AtomicLongArray((snapshot.size() + 63) / 64);
+        baseOnly.set(snapshot.size());
+        maxClock.accumulateAndGet(snapshot.maxClock(), Math::max);
+        for (String stationId : stations.keySet()) {
+            shadow(snapshot.indexOf(stationId));
+        }
+        base = snapshot;
+        publish(Collections.emptyList());
+    }
+
+    // Returns true if this created the station's first record
+    public boolean put(StationRecord record) {
+        if (record.isExpiry()) {
+            expire(record);
+            return false;
+        }
+        int[] fromBase = {-1};
+        boolean created = apply(record, fromBase);
+        publish(Collections.singletonList(record.stationId));
+        shadow(fromBase[0]); // Only once the published version holds the station
+        return created;
+    }
+
+    // Trace every put and remove from now on; null stops tracing
+    public void traceTo(TraceLog traceLog) {
+        trace = traceLog;
+    }
+
+    // Apply every record as one unit: readers see all of the batch or none of it
+    public int applyBatch(List<StationRecord> records) {
+        int created = 0;
+        List<String> touched = new ArrayList<>(records.size());
+        int[] fromBase = new int[records.size()];
+        int[] entry = {-1};
+        for (int i = 0; i < records.size(); i++) {
+            StationRecord record = records.get(i);
+            entry[0] = -1;
+            if (record.isExpiry()) {
+                if (removeUnpublished(record.stationId, record.expiredClock, entry)) {
+                    maxClock.accumulateAndGet(record.lamportClock, Math::max);
+                    keepExpiry(record);
+                }
+            } else if (apply(record, entry)) {
+                created++;
+            }
+            touched.add(record.stationId);
+            fromBase[i] = entry[0];
+        }
+        publish(touched);
+        for (int e : fromBase) {
+            shadow(e);
+        }
+        return created;
+    }
+
+    // Drop a station unless it has been updated past upToClock, e.g. once it has moved to another shard
+    public boolean remove(String stationId, long upToClock) {
+        int[] fromBase = {-1};
+        boolean removed = removeUnpublished(stationId, upToClock, fromBase);
+        if (removed || fromBase[0] >= 0) {
+            publish(Collections.singletonList(stationId));
+            shadow(fromBase[0]);
+        }
+        return removed;
+    }
+
+    // Apply an expiry record; returns true if the station was still on the expired reading and is gone now
+    public boolean expire(StationRecord expiry) {
+        boolean removed = remove(expiry.stationId, expiry.expiredClock);
+        if (removed) {
+            // Only a removal moves the clock, so a sweep that finds nothing stale leaves ETags alone
+            maxClock.accumulateAndGet(expiry.lamportClock, Math::max);
+            keepExpiry(expiry);
+        }
+        return removed;
+    }
+
+    private void keepExpiry(StationRecord expiry) {
+        expiries.merge(expiry.stationId, expiry, (kept, added) -> added.lamportClock >= kept.lamportClock ? added : kept);
+    }
+
+    // Decide an update in the map; fromBase[0] is set to the snapshot entry the station was taken over from
+    private boolean apply(StationRecord record, int[] fromBase) {
+        boolean[] created = {false};
+        stations.compute(record.stationId, (id, current) -> {
+            if (current == null) {
+                current = fromBase(id, fromBase);
+            }
+            if (current == null) {
+                created[0] = true;
+            }
+            StationRecord kept = current == null || current.lamportClock <= record.lamportClock ? record : current;
+            TraceLog t = trace;
+            if (t != null) {
+                t.apply(id, record.lamportClock, current == null ? -1 : current.lamportClock, kept == record);
+            }
+            if (kept == record && !expiries.isEmpty()) {
+                // Back after an expiry: the removal is history once a newer record is held
+                expiries.computeIfPresent(id, (station, expiry) -> expiry.lamportClock <= record.lamportClock ? null : expiry);
+            }
+            return kept;
+        });
+        maxClock.accumulateAndGet(record.lamportClock, Math::max);
+        return created[0];
+    }
+
+    // Decide a removal in the map; a removed snapshot station is hidden right away, as no version holds it
+    private boolean removeUnpublished(String stationId, long upToClock, int[] fromBase) {
+        boolean[] removed = {false};
+        stations.compute(stationId, (id, current) -> {
+            if (current == null) {
+                current = fromBase(id, fromBase);
+            }
+            removed[0] = current != null && current.lamportClock <= upToClock;
+            TraceLog t = trace;
+            if (t != null) {
+                t.remove(id, upToClock, current == null ? -1 : current.lamportClock, removed[0]);
+            }
+            return removed[0] ? null : current;
+        });
+        if (removed[0] && fromBase[0] >= 0) {
+            shadow(fromBase[0]);
+            fromBase[0] = -1;
+        }
+        return removed[0];
+    }
+
+    // Publish a version holding what the map has now for each of the stations; retried from the re-read
+    // map if another writer published first, so a slower writer never puts back an older record
+    private void publish(List<String> stationIds) {
+        while (true) {
+            Version before = current.get();
+            PersistentStationMap map = before.stations;
+            for (String stationId : stationIds) {
+                StationRecord record = stations.get(stationId);
+                map = record == null ? map.without(stationId) : map.with(record);
+            }
+            if (current.compareAndSet(before, new Version(map))) {
+                return;
+            }
+        }
+    }
+
+    public StationRecord get(String stationId) {
+        StationRecord record = stations.get(stationId);
+        if (record == null) {
+            MappedSnapshot snapshot = base;
+            if (snapshot != null) {
+                int entry = snapshot.indexOf(stationId);
+                if (entry >= 0 && !isShadowed(entry)) {
+                    record = snapshot.recordAt(entry);
+                }
+            }
+        }
+        return record;
+    }
+
+    public List<StationRecord> snapshot() {
+        Version version = current.get();
+        List<StationRecord> records = new ArrayList<>(size());
+        version.stations.forEach(records::add);
+        forEachInBase(version, 0, (snapshot, i) -> records.add(snapshot.recordAt(i)));
+        return records;
+    }
+
+    // GET /weather.json body of the current version, shared between its callers; callers must not modify it
+    public ByteBuffer feedBuffer() {
+        return body(current.get()).duplicate();
+    }
+
+    // feedBuffer() compressed for Content-Encoding: gzip, shared the same way
+    public ByteBuffer gzippedFeedBuffer() {
+        Version version = current.get();
+        ByteBuffer gzipped = version.gzipped;
+        if (gzipped == null) {
+            gzipped = ByteBuffer.wrap(WeatherProtocol.gzip(toArray(body(version))));
+            version.gzipped = gzipped;
+        }
+        return gzipped.duplicate();
+    }
+
+    // Records with a clock above the given one, e.g. for a replica catching up; expiries of stations still
+    // removed come first, so applying the list in order leaves a replica with what this store holds
+    public List<StationRecord> recordsSince(long clock) {
+        Version version = current.get();
+        List<StationRecord> records = new ArrayList<>();
+        for (StationRecord expiry : expiries.values()) {
+            if (expiry.lamportClock > clock) {
+                records.add(expiry);
+            }
+        }
+        version.stations.forEach(record -> {
+            if (record.lamportClock > clock) {
+                records.add(record);
+            }
+        });
+        forEachInBase(version, clock, (snapshot, i) -> records.add(snapshot.recordAt(i)));
+        return records;
+    }
+
+    // Stations whose record carries a clock above the given one, as a JSON array; built per call
+    public ByteBuffer feedSince(long clock) {
+        Version version = current.get();
+        List<byte[]> encoded = new ArrayList<>();
+        version.stations.forEach(record -> {
+            if (record.lamportClock > clock) {
+                encoded.add(record.json());
+            }
+        });
+        forEachInBase(version, clock, (snapshot, i) -> encoded.add(snapshot.jsonBytes(i)));
+        return ByteBuffer.wrap(joinArray(encoded));
+    }
+
+    // Highest Lamport clock of any record held
+    public long maxClock() {
+        return maxClock.get();
+    }
+
+    public int size() {
+        return stations.size() + baseOnly.get();
+    }
+
+    // Entries of the mapped snapshot with a clock above the given one that version does not override
+    private void forEachInBase(Version version, long clock, ObjIntConsumer<MappedSnapshot> action) {
+        MappedSnapshot snapshot = base;
+        if (snapshot == null || baseOnly.get() == 0 || snapshot.maxClock() <= clock) {
+            return; // The snapshot's header says whether any of its entries can qualify
+        }
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (inBase(version, snapshot, i) && snapshot.clockAt(i) > clock) {
+                action.accept(snapshot, i);
+            }
+        }
+    }
+
+    // A station taken over from the snapshot is shadowed only after a version holds it, so in between
+    // the version's own record is the one that counts
+    private boolean inBase(Version version, MappedSnapshot snapshot, int entry) {
+        return !isShadowed(entry)
+                && (version.stations.size() == 0 || version.stations.get(snapshot.stationIdAt(entry)) == null);
+    }
+
+    private ByteBuffer body(Version version) {
+        ByteBuffer body = version.body;
+        if (body == null) {
+            synchronized (version) {
+                body = version.body;
+                if (body == null) {
+                    body = ByteBuffer.wrap(buildFeed(version));
+                    version.body = body;
+                }
+            }
+        }
+        return body;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // Stations in the version contribute their cached encoding, stations still in the mapped snapshot are
+    // copied as stored; nothing is re-encoded except records that have never been served
+    private byte[] buildFeed(Version version) {
+        List<byte[]> encoded = new ArrayList<>(version.stations.size());
+        int[] length = {2};
+        version.stations.forEach(record -> {
+            byte[] json = record.json();
+            encoded.add(json);
+            length[0] += json.length + 1;
+        });
+        MappedSnapshot snapshot = base;
+        boolean withBase = snapshot != null && baseOnly.get() > 0;
+        boolean[] included = null;
+        if (withBase) {
+            included = new boolean[snapshot.size()];
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (inBase(version, snapshot, i)) {
+                    included[i] = true;
+                    length[0] += snapshot.jsonLength(i) + 1;
+                }
+            }
+        }
+
+        byte[] feed = new byte[length[0]];
+        int pos = 0;
+        feed[pos++] = '[';
+        for (byte[] json : encoded) {
+            if (pos > 1) {
+                feed[pos++] = ',';
+            }
+            System.arraycopy(json, 0, feed, pos, json.length);
+            pos += json.length;
+        }
+        if (withBase) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (!included[i]) {
+                    continue;
+                }
+                if (pos > 1) {
+                    feed[pos++] = ',';
+                }
+                snapshot.copyJson(i, feed, pos);
+                pos += snapshot.jsonLength(i);
+            }
+        }
+        feed[pos++] = ']';
+        return pos == length[0] ? feed : Arrays.copyOf(feed, pos);
+    }
+
+    private static byte[] joinArray(List<byte[]> elements) {
+        int length = 2 + Math.max(0, elements.size() - 1);
+        for (byte[] element : elements) {
+            length += element.length;
+        }
+        byte[] out = new byte[length];
+        int pos = 0;
+        out[pos++] = '[';
+        for (byte[] element : elements) {
+            if (pos > 1) {
+                out[pos++] = ',';
+            }
+            System.arraycopy(element, 0, out, pos, element.length);
+            pos += element.length;
+        }
+        out[pos] = ']';
+        return out;
+    }
+
+    // The snapshot record for a station being updated for the first time since restart, now owned by the
+    // map; its entry goes in fromBase[0], to be shadowed once a version holds the station
+    private StationRecord fromBase(String stationId, int[] fromBase) {
+        MappedSnapshot snapshot = base;
+        if (snapshot == null) {
+            return null;
+        }
+        int entry = snapshot.indexOf(stationId);
+        if (entry < 0 || isShadowed(entry)) {
+            return null;
+        }
+        fromBase[0] = entry;
+        return snapshot.recordAt(entry);
+    }
+
+    private boolean isShadowed(int entry) {
+        return (shadowed.get(entry >>> 6) & (1L << entry)) != 0;
+    }
+
+    private void shadow(int entry) {
+        if (entry < 0) {
+            return;
+        }
+        long bit = 1L << entry;
+        long word;
+        do {
+            word = shadowed.get(entry >>> 6);
+            if ((word & bit) != 0) {
+                return;
+            }
+        } while (!shadowed.compareAndSet(entry >>> 6, word, word | bit));
+        baseOnly.decrementAndGet();
+    }
+}
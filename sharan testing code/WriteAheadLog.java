@@ -0,0 +1,453 @@
+package com.weather.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log in front of the WeatherStore so accepted updates survive a restart.
+ *
+ * Writers hand their records to a single flusher thread and wait; the flusher writes everything that
+ * queued up while the previous fsync was running in one write and one fsync (group commit), so many
+ * concurrent PUTs share the cost of a sync. Once the log grows past a threshold the flusher renames it to
+ * weather.wal.old and starts a new one, and a checkpoint thread writes a MappedSnapshot of the store,
+ * renames it over the previous one and deletes the old segment, syncing the directory after each rename,
+ * so recovery maps one snapshot and replays a short log while appends never wait for a snapshot. Replaying
+ * a segment the snapshot already covers is harmless, since the newest clock wins.
+ *
+ * An entry must be in the store by the time its group commit is acknowledged, because a rotated segment
+ * is deleted once the snapshot taken after it is written: either it is applied before it is appended, or
+ * it is applied by the onDurable callback that the flusher runs after the sync and before it acknowledges.
+ *
+ * A write that fails leaves the log truncated back to the end of the last synced group, so frames
+ * acknowledged later never sit behind a torn one that replay would stop at. A failed fsync cannot be
+ * retried safely (the kernel may already have dropped the unsynced pages), so after one, or when the
+ * log cannot be truncated back, every further append fails and the server must be restarted to recover.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    private static final String LOG_FILE = "weather.wal";
+    private static final String OLD_LOG_FILE = "weather.wal.old";
+    private static final String SNAPSHOT_FILE = "weather.snapshot";
+    private static final long DEFAULT_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    private final Path logPath;
+    private final Path oldLogPath;
+    private final Path snapshotPath;
+    private final WeatherStore store;
+    private final long checkpointBytes;
+    private final List<Pending> queue = new ArrayList<>();
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "wal-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel log;
+    private Thread flusher;
+    private volatile boolean running;
+    private volatile LongConsumer syncListener;
+    // Set when the log can no longer take appends safely; every append fails from then on
+    private volatile IOException failure;
+    // Log bytes known to be on disk; flusher thread only once open() returns
+    private long durableSize;
+    // weather.wal.old exists and is not yet covered by the snapshot; set by the flusher, cleared by the checkpoint
+    private volatile boolean rotated;
+    private volatile boolean checkpointing;
+
+    // Records from one append() call, what to run once they are durable, and the future completed after it
+    private static class Pending {
+        final byte[] bytes;
+        final Runnable onDurable;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(byte[] bytes, Runnable onDurable) {
+            this.bytes = bytes;
+            this.onDurable = onDurable;
+        }
+    }
+
+    public WriteAheadLog(Path directory, WeatherStore store) {
+        this(directory, store, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    public WriteAheadLog(Path directory, WeatherStore store, long checkpointBytes) {
+        this.logPath = directory.resolve(LOG_FILE);
+        this.oldLogPath = directory.resolve(OLD_LOG_FILE);
+        this.snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        this.store = store;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    // Called on the flusher thread with the nanoseconds each group commit spent writing and syncing
+    public void onSync(LongConsumer listener) {
+        syncListener = listener;
+    }
+
+    // Load the snapshot and replay the log into the store, then start accepting appends; returns records replayed
+    public int open() throws IOException {
+        Files.createDirectories(logPath.getParent());
+        int recovered = 0;
+        if (Files.exists(snapshotPath)) {
+            // Map the snapshot instead of loading it; stations are decoded when first touched
+            MappedSnapshot snapshot = MappedSnapshot.open(snapshotPath);
+            store.attachBase(snapshot);
+            recovered += snapshot.size();
+        }
+        if (Files.exists(oldLogPath)) {
+            // Stopped between a rotation and its checkpoint: the old segment comes before the current one
+            try (FileChannel old = FileChannel.open(oldLogPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                recovered += replay(oldLogPath, old);
+            }
+            rotated = true;
+        }
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recovered += replay(logPath, log);
+        durableSize = log.size();
+        log.position(durableSize);
+
+        running = true;
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        if (rotated) {
+            checkpointing = true;
+            checkpointer.execute(this::checkpoint);
+        }
+        return recovered;
+    }
+
+    // Queue records for the next group commit; the future completes once they are on disk
+    public CompletableFuture<Void> append(List<StationRecord> records) {
+        return append(records, null);
+    }
+
+    // As append(records), running onDurable on the flusher thread once they are on disk and before the
+    // future completes; it is not run if they could not be written
+    public CompletableFuture<Void> append(List<StationRecord> records, Runnable onDurable) {
+        Pending pending = new Pending(encode(records), onDurable);
+        synchronized (queue) {
+            if (!running) {
+                pending.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+                return pending.done;
+            }
+            IOException failed = failure;
+            if (failed != null) {
+                pending.done.completeExceptionally(new IOException("Write-ahead log failed: " + failed.getMessage(), failed));
+                return pending.done;
+            }
+            queue.add(pending);
+            queue.notifyAll();
+        }
+        return pending.done;
+    }
+
+    // Append and block until durable
+    public void appendAndSync(List<StationRecord> records) throws IOException {
+        try {
+            append(records).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for log sync", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (queue) {
+            running = false;
+            queue.notifyAll();
+        }
+        try {
+            if (flusher != null) {
+                flusher.join();
+            }
+            // Let a running checkpoint finish rather than leave a half-written snapshot behind
+            checkpointer.shutdown();
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            if (log != null) {
+                log.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Error closing write-ahead log: " + e.getMessage());
+        }
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            synchronized (queue) {
+                while (queue.isEmpty() && running) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return; // Closed and drained
+                }
+                batch.addAll(queue);
+                queue.clear();
+            }
+            if (failure != null) {
+                fail(batch, new IOException("Write-ahead log failed: " + failure.getMessage(), failure));
+                batch.clear();
+                continue;
+            }
+
+            long start = System.nanoTime();
+            int size = 0;
+            for (Pending p : batch) {
+                size += p.bytes.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (Pending p : batch) {
+                buffer.put(p.bytes);
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+            } catch (IOException e) {
+                // Cut off whatever part of the batch got written, so later frames do not sit behind a torn one
+                // that replay would stop at
+                fail(batch, e);
+                rollBack(e);
+                batch.clear();
+                continue;
+            }
+            try {
+                log.force(false);
+            } catch (IOException e) {
+                // A failed fsync may have dropped dirty pages without saying which, and a retry can report
+                // success for data that is gone, so nothing more is accepted
+                fail(batch, e);
+                failure = e;
+                rollBack(e);
+                batch.clear();
+                continue;
+            }
+            durableSize += size;
+            LongConsumer listener = syncListener;
+            if (listener != null) {
+                listener.accept(System.nanoTime() - start);
+            }
+            for (Pending p : batch) {
+                try {
+                    if (p.onDurable != null) {
+                        p.onDurable.run();
+                    }
+                    p.done.complete(null);
+                } catch (RuntimeException e) {
+                    p.done.completeExceptionally(e);
+                }
+            }
+            if (durableSize >= checkpointBytes && !checkpointing && failure == null) {
+                startCheckpoint();
+            }
+            batch.clear();
+        }
+    }
+
+    private static void fail(List<Pending> batch, IOException e) {
+        for (Pending p : batch) {
+            p.done.completeExceptionally(e);
+        }
+    }
+
+    // Truncate the log back to its last synced end; if even that fails the log is failed for good
+    private void rollBack(IOException cause) {
+        try {
+            log.truncate(durableSize);
+            log.position(durableSize);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            failure = cause;
+        }
+    }
+
+    // Flusher thread: move the log aside and hand it to the checkpoint thread; every entry in it is in the store
+    private void startCheckpoint() {
+        if (!rotated) {
+            try {
+                Files.move(logPath, oldLogPath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Checkpoint failed, keeping the whole log: " + e.getMessage());
+                return;
+            }
+            rotated = true;
+            try {
+                log.close();
+                log = FileChannel.open(logPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                durableSize = 0;
+                forceDirectory();
+            } catch (IOException e) {
+                // Without a log file nothing can be made durable
+                failure = e;
+                System.err.println("Could not start a new write-ahead log: " + e.getMessage());
+                return;
+            }
+        }
+        checkpointing = true;
+        checkpointer.execute(this::checkpoint);
+    }
+
+    // Checkpoint thread: snapshot the store, then drop the old segment it covers
+    private void checkpoint() {
+        try {
+            Path tmp = snapshotPath.resolveSibling(SNAPSHOT_FILE + ".tmp");
+            MappedSnapshot.write(tmp, store.snapshot());
+            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // The new snapshot must be on disk under its name before the segment it replaces goes
+            forceDirectory();
+            Files.delete(oldLogPath);
+            forceDirectory();
+            rotated = false;
+        } catch (IOException e) {
+            // The old segment stays and the flusher tries again after its next group commit
+            System.err.println("Checkpoint failed, keeping the old log segment: " + e.getMessage());
+        } finally {
+            checkpointing = false;
+        }
+    }
+
+    // Make renames, creations and deletions in the log directory durable
+    private void forceDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(logPath.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    // Replay framed log entries into the store and cut off a torn or corrupt tail
+    private int replay(Path path, FileChannel channel) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int replayed = 0;
+        long validEnd = 0;
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(data, buffer.position(), length);
+            if ((int) checksum.getValue() != crc) {
+                break;
+            }
+            List<StationRecord> records = decode(data, buffer.position(), length);
+            store.applyBatch(records);
+            replayed += records.size();
+            buffer.position(buffer.position() + length);
+            validEnd = buffer.position();
+        }
+        if (validEnd < data.length) {
+            System.err.println("Ignoring " + (data.length - validEnd) + " trailing bytes in " + path);
+            channel.truncate(validEnd);
+        }
+        return replayed;
+    }
+
+    // Frame: [length][crc32][count][record]*, record = clock, receivedAt, id, field count, key/value pairs;
+    // an expiry record has field count -1 followed by the clock of the reading it expires. Strings are an
+    // int byte length and UTF-8 bytes, so a field of any size a PUT can carry fits (writeUTF stops at 64 KB)
+    static byte[] encode(List<StationRecord> records) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(64 + records.size() * 256);
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeInt(records.size());
+            for (StationRecord record : records) {
+                out.writeLong(record.lamportClock);
+                out.writeLong(record.receivedAtMillis);
+                writeString(out, record.stationId);
+                if (record.isExpiry()) {
+                    out.writeInt(-1);
+                    out.writeLong(record.expiredClock);
+                    continue;
+                }
+                out.writeInt(record.fields.size());
+                for (Map.Entry<String, String> field : record.fields.entrySet()) {
+                    writeString(out, field.getKey());
+                    writeString(out, field.getValue());
+                }
+            }
+            byte[] body = payload.toByteArray();
+            CRC32 checksum = new CRC32();
+            checksum.update(body);
+            return ByteBuffer.allocate(8 + body.length)
+                    .putInt(body.length).putInt((int) checksum.getValue()).put(body).array();
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory write failed", e);
+        }
+    }
+
+    static List<StationRecord> decode(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            int count = in.readInt();
+            List<StationRecord> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long clock = in.readLong();
+                long receivedAt = in.readLong();
+                String stationId = readString(in);
+                int fieldCount = in.readInt();
+                if (fieldCount < 0) {
+                    records.add(StationRecord.expiry(stationId, in.readLong(), clock, receivedAt));
+                    continue;
+                }
+                Map<String, String> fields = new LinkedHashMap<>();
+                for (int f = 0; f < fieldCount; f++) {
+                    fields.put(readString(in), readString(in));
+                }
+                records.add(new StationRecord(stationId, fields, clock, receivedAt));
+            }
+            return records;
+        } catch (EOFException e) {
+            throw new IOException("Truncated log entry", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Truncated log entry");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}